@@ -1,5 +1,6 @@
 package flatbuffers.events;
 
+import io.cloudtrust.keycloak.eventemitter.SerializationUtils;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.keycloak.events.EventType;
@@ -21,6 +22,16 @@ public class TypesTest {
         Assertions.assertEquals(enumNames.size(), flatLen);
     }
 
+    /**
+     * Event and resource types are translated by name: this test lists the Keycloak types missing from events.fbs,
+     * which would be serialized as UNKNOWN.
+     */
+    @Test
+    void testAllTypesAreMapped() {
+        Assertions.assertEquals(List.of(), SerializationUtils.getUnmappedEventTypes(), "Event types missing from events.fbs");
+        Assertions.assertEquals(List.of(), SerializationUtils.getUnmappedResourceTypes(), "Resource types missing from events.fbs");
+    }
+
     /**
      * This test checks that the list of EventType defined in flatbuffers matches the list defined by the current
      * Keycloak version. If it is not the case, it means that the file events.fbs needs to be updated according
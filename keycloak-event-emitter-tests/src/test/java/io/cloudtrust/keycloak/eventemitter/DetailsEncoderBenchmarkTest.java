@@ -0,0 +1,84 @@
+package io.cloudtrust.keycloak.eventemitter;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * Compares the memory allocated to encode the details of an event by {@link DetailsEncoder} and by the former
+ * Stream-based encoding. Strings and the builder are allocated the same way by both, so the difference is the
+ * overhead of the Stream pipeline. Run with the load-test profile.
+ */
+@Tag("benchmark")
+class DetailsEncoderBenchmarkTest {
+    private static final Logger logger = Logger.getLogger(DetailsEncoderBenchmarkTest.class);
+    private static final int WARMUP_ITERATIONS = 100_000;
+    private static final int ITERATIONS = 1_000_000;
+
+    private final Map<String, String> details = new HashMap<>();
+    private final FlatBufferBuilder builder = new FlatBufferBuilder(4096);
+
+    @Test
+    void compareAllocations() {
+        details.put("auth_method", "openid-connect");
+        details.put("token_id", "5c1e2a44-1b7d-4f0e-9d35-2a8f0c3c1a77");
+        details.put("grant_type", "refresh_token");
+        details.put("refresh_token_type", "Refresh");
+        details.put("scope", "openid profile email");
+        details.put("client_auth_method", "client-secret");
+        details.put("username", "jdoe");
+
+        DetailsEncoder encoder = new DetailsEncoder();
+        long streamBytes = measure("Stream", map -> encodeWithStream(builder, map));
+        long unsortedBytes = measure("DetailsEncoder", map -> encoder.encode(builder, map, false));
+        long sortedBytes = measure("DetailsEncoder (sorted)", map -> encoder.encode(builder, map, true));
+        Assertions.assertTrue(unsortedBytes < streamBytes);
+        Assertions.assertTrue(sortedBytes < streamBytes);
+    }
+
+    /**
+     * @return the bytes allocated per encoding
+     */
+    private long measure(String name, ToIntFunction<Map<String, String>> encoding) {
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().threadId();
+        long sink = run(encoding, WARMUP_ITERATIONS);
+        long allocatedBefore = threadBean.getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        sink += run(encoding, ITERATIONS);
+        long duration = System.nanoTime() - start;
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore;
+        logger.infof("%s: %d bytes and %d ns per encoding (%d)", name, allocated / ITERATIONS, duration / ITERATIONS, sink);
+        return allocated / ITERATIONS;
+    }
+
+    private long run(ToIntFunction<Map<String, String>> encoding, int iterations) {
+        long sink = 0;
+        for (int i = 0; i < iterations; i++) {
+            builder.clear();
+            sink += encoding.applyAsInt(details);
+        }
+        return sink;
+    }
+
+    /**
+     * Encoding used before {@link DetailsEncoder}.
+     */
+    private static int encodeWithStream(FlatBufferBuilder builder, Map<String, String> map) {
+        int[] offsets = map.entrySet().stream()
+                .mapToInt(entry -> {
+                    int key = builder.createString(entry.getKey());
+                    int value = builder.createString(entry.getValue());
+                    return flatbuffers.events.Tuple.createTuple(builder, key, value);
+                })
+                .toArray();
+        return flatbuffers.events.Event.createDetailsVector(builder, offsets);
+    }
+}
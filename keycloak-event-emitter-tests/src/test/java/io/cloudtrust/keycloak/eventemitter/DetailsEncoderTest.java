@@ -0,0 +1,71 @@
+package io.cloudtrust.keycloak.eventemitter;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class DetailsEncoderTest {
+    private final DetailsEncoder encoder = new DetailsEncoder();
+
+    @Test
+    void testNullKeysAndValues() {
+        Map<String, String> details = new HashMap<>();
+        details.put("username", "user");
+        details.put("redirect_uri", null);
+        details.put(null, "ignored");
+
+        flatbuffers.events.Event event = encode(details, false);
+        Assertions.assertEquals(2, event.detailsLength());
+        Map<String, String> decoded = new HashMap<>();
+        for (int i = 0; i < event.detailsLength(); i++) {
+            decoded.put(event.details(i).key(), event.details(i).value());
+        }
+        Assertions.assertEquals("user", decoded.get("username"));
+        Assertions.assertTrue(decoded.containsKey("redirect_uri"));
+        Assertions.assertNull(decoded.get("redirect_uri"));
+    }
+
+    @Test
+    void testSortedKeys() {
+        Map<String, String> details = new HashMap<>();
+        // More entries than the initial scratch capacity
+        for (int i = 0; i < 40; i++) {
+            details.put("key" + (char) ('z' - i % 26) + i, "value" + i);
+        }
+        details.put("😀", "supplementary");
+        details.put("！", "bmp");
+
+        flatbuffers.events.Event event = encode(details, true);
+        Assertions.assertEquals(details.size(), event.detailsLength());
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < event.detailsLength(); i++) {
+            keys.add(event.details(i).key());
+            Assertions.assertEquals(details.get(event.details(i).key()), event.details(i).value());
+        }
+        List<String> expectedKeys = new ArrayList<>(details.keySet());
+        expectedKeys.sort(DetailsEncoder::compareUtf8);
+        Assertions.assertEquals(expectedKeys, keys);
+        // UTF-8 order differs from the UTF-16 one for supplementary characters
+        Assertions.assertEquals("😀", keys.get(keys.size() - 1));
+    }
+
+    @Test
+    void testNoDetails() {
+        Assertions.assertEquals(0, encode(null, true).detailsLength());
+        Assertions.assertEquals(0, encode(Map.of(), false).detailsLength());
+    }
+
+    private flatbuffers.events.Event encode(Map<String, String> details, boolean sorted) {
+        FlatBufferBuilder builder = new FlatBufferBuilder(1024);
+        int detailsVec = encoder.encode(builder, details, sorted);
+        flatbuffers.events.Event.startEvent(builder);
+        flatbuffers.events.Event.addDetails(builder, detailsVec);
+        builder.finish(flatbuffers.events.Event.endEvent(builder));
+        return flatbuffers.events.Event.getRootAsEvent(builder.dataBuffer());
+    }
+}
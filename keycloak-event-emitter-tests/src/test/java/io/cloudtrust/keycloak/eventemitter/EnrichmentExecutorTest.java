@@ -0,0 +1,49 @@
+package io.cloudtrust.keycloak.eventemitter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.mockito.Answers;
+import org.mockito.Mockito;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+class EnrichmentExecutorTest {
+    private final KeycloakSessionFactory sessionFactory = Mockito.mock(KeycloakSessionFactory.class, Answers.RETURNS_DEEP_STUBS);
+
+    @Test
+    void testSaturatedExecutorEmitsWithoutEnrichment() {
+        EnrichmentExecutor executor = new EnrichmentExecutor(sessionFactory, 0, 1000L);
+        CompletableFuture<String> emitted = new CompletableFuture<>();
+
+        executor.execute(session -> "enriched", () -> "raw", emitted::complete);
+
+        Assertions.assertEquals("raw", emitted.getNow(null));
+        Assertions.assertEquals(1, executor.getSaturatedCount());
+        executor.close(Duration.ofSeconds(1));
+    }
+
+    @Test
+    void testSlowEnrichmentEmitsWithoutEnrichment() throws Exception {
+        EnrichmentExecutor executor = new EnrichmentExecutor(sessionFactory, 1, 50L);
+        CountDownLatch userStore = new CountDownLatch(1);
+        CompletableFuture<String> emitted = new CompletableFuture<>();
+
+        executor.execute(session -> {
+            try {
+                userStore.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "enriched";
+        }, () -> "raw", emitted::complete);
+
+        Assertions.assertEquals("raw", emitted.get(5, TimeUnit.SECONDS));
+        Assertions.assertEquals(1, executor.getTimedOutCount());
+        userStore.countDown();
+        executor.close(Duration.ofSeconds(1));
+    }
+}
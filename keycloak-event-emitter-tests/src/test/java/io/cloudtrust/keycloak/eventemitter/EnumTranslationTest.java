@@ -0,0 +1,36 @@
+package io.cloudtrust.keycloak.eventemitter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.EventType;
+
+import java.util.List;
+
+class EnumTranslationTest {
+    private enum Color {RED, PURPLE, GREEN, BLUE}
+
+    private static final String[] FLAT_COLORS = {"RED", "", "GREEN", "BLUE", "UNKNOWN"};
+    private static final byte FLAT_UNKNOWN = 4;
+
+    @Test
+    void testValuesAreMatchedByName() {
+        EnumTranslation<Color> translation = new EnumTranslation<>(Color.class, FLAT_COLORS, FLAT_UNKNOWN);
+
+        Assertions.assertEquals(0, translation.toFlat(Color.RED));
+        Assertions.assertEquals(FLAT_UNKNOWN, translation.toFlat(Color.PURPLE));
+        Assertions.assertEquals(2, translation.toFlat(Color.GREEN));
+        Assertions.assertEquals(3, translation.toFlat(Color.BLUE));
+        Assertions.assertEquals(List.of("PURPLE"), translation.getUnmapped());
+    }
+
+    @Test
+    void testKeycloakEventTypes() {
+        EnumTranslation<EventType> translation = new EnumTranslation<>(EventType.class,
+                flatbuffers.events.EventType.names, flatbuffers.events.EventType.UNKNOWN);
+
+        for (EventType type : EventType.values()) {
+            String expected = translation.getUnmapped().contains(type.name()) ? "UNKNOWN" : type.name();
+            Assertions.assertEquals(expected, flatbuffers.events.EventType.name(translation.toFlat(type)));
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package io.cloudtrust.keycloak.eventemitter;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+class FlatBufferBuilderPoolTest {
+    @Test
+    void testBuildersReused() {
+        FlatBufferBuilderPool pool = new FlatBufferBuilderPool(64, 1024, 1);
+        FlatBufferBuilder builder = pool.acquire();
+        FlatBufferBuilder otherBuilder = pool.acquire();
+        Assertions.assertEquals(2, pool.getCreatedCount());
+
+        builder.finish(builder.createString("value"));
+        Assertions.assertTrue(builder.dataBuffer().hasArray());
+        pool.release(builder);
+        // Pool full
+        pool.release(otherBuilder);
+        Assertions.assertEquals(1, pool.getIdleCount());
+
+        FlatBufferBuilder reusedBuilder = pool.acquire();
+        Assertions.assertSame(builder, reusedBuilder);
+        Assertions.assertEquals(0, reusedBuilder.offset());
+        Assertions.assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test
+    void testDirectBuilders() {
+        FlatBufferBuilderPool pool = new FlatBufferBuilderPool(64, 1024, 1, true);
+        FlatBufferBuilder builder = pool.acquire();
+        // Grown beyond the initial size
+        builder.finish(builder.createString("x".repeat(200)));
+        ByteBuffer buffer = builder.dataBuffer();
+        Assertions.assertTrue(buffer.isDirect());
+        Assertions.assertEquals(ByteOrder.LITTLE_ENDIAN, buffer.order());
+        Assertions.assertEquals(200, buffer.getInt(buffer.getInt(buffer.position()) + buffer.position()));
+
+        pool.release(builder);
+        Assertions.assertTrue(pool.acquire().dataBuffer().isDirect());
+    }
+
+    @Test
+    void testLargeBuildersNotPooled() {
+        FlatBufferBuilderPool pool = new FlatBufferBuilderPool(64, 1024, 1);
+        FlatBufferBuilder builder = pool.acquire();
+        builder.finish(builder.createString("x".repeat(2048)));
+        pool.release(builder);
+        Assertions.assertEquals(0, pool.getIdleCount());
+        Assertions.assertNotSame(builder, pool.acquire());
+    }
+}
@@ -1,6 +1,7 @@
 package io.cloudtrust.keycloak.eventemitter;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.google.flatbuffers.FlatBufferBuilder;
 import io.cloudtrust.keycloak.eventemitter.customevent.ExtendedAdminEvent;
 import io.cloudtrust.keycloak.eventemitter.customevent.ExtendedAuthDetails;
 import io.cloudtrust.keycloak.eventemitter.customevent.IdentifiedAdminEvent;
@@ -55,6 +56,12 @@ class SerializationUtilsTest {
         Assertions.assertEquals("{\"id\":null,\"time\":120000,\"realmId\":null,\"realmName\":null,\"resourceType\":null,\"operationType\":null,\"resourcePath\":null,\"representation\":null,\"error\":null,\"uid\":123456789,\"extAuthDetails\":null,\"details\":{}}", jsonEvent);
     }
 
+    @Test
+    void testWarmup() {
+        Assertions.assertEquals(0, SerializationUtils.warmup(0));
+        Assertions.assertTrue(SerializationUtils.warmup(10) > 0);
+    }
+
     @Test
     void testEventToFlatbuffers() {
         Event event = createEvent();
@@ -64,6 +71,25 @@ class SerializationUtilsTest {
         Assertions.assertEquals(UID, deserializedEvent.uid());
     }
 
+    @Test
+    void testSchemaVersion() {
+        Assertions.assertEquals(String.format("KE%02d", SerializationUtils.SCHEMA_VERSION), SerializationUtils.FILE_IDENTIFIER);
+        ByteBuffer eventBuffer = SerializationUtils.toFlat(new IdentifiedEvent(UID, createEvent()));
+        Assertions.assertEquals(SerializationUtils.SCHEMA_VERSION, SerializationUtils.getSchemaVersion(eventBuffer));
+        ByteBuffer adminEventBuffer = SerializationUtils.toFlat(createExtendedAdminEvent());
+        Assertions.assertTrue(flatbuffers.events.AdminEvent.AdminEventBufferHasIdentifier(adminEventBuffer));
+        Assertions.assertEquals(SerializationUtils.SCHEMA_VERSION, SerializationUtils.getSchemaVersion(adminEventBuffer));
+
+        // Events serialized before the file identifier
+        FlatBufferBuilder builder = new FlatBufferBuilder(64);
+        flatbuffers.events.Event.startEvent(builder);
+        flatbuffers.events.Event.addUid(builder, UID);
+        builder.finish(flatbuffers.events.Event.endEvent(builder));
+        ByteBuffer legacyBuffer = builder.dataBuffer();
+        Assertions.assertEquals(1, SerializationUtils.getSchemaVersion(legacyBuffer));
+        Assertions.assertEquals(UID, flatbuffers.events.Event.getRootAsEvent(legacyBuffer).uid());
+    }
+
     @Test
     void testMinimalEventToFlatbuffers() {
         Event event = createMinimalEvent();
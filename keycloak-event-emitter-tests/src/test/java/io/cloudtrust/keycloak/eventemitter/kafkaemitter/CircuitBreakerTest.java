@@ -0,0 +1,109 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class CircuitBreakerTest {
+    @Test
+    void testStaysClosedBelowThreshold() {
+        StaticTimeCircuitBreaker breaker = new StaticTimeCircuitBreaker(4, 50, 100L, 1000L);
+        breaker.onFailure(breaker.allowRequest());
+        breaker.onSuccess(breaker.allowRequest(), 10L);
+        breaker.onSuccess(breaker.allowRequest(), 10L);
+        breaker.onSuccess(breaker.allowRequest(), 10L);
+        Assertions.assertTrue(breaker.isClosed());
+        Assertions.assertNotEquals(CircuitBreaker.NO_PERMIT, breaker.allowRequest());
+    }
+
+    @Test
+    void testOpensOnFailureRate() {
+        StaticTimeCircuitBreaker breaker = new StaticTimeCircuitBreaker(4, 50, 100L, 1000L);
+        breaker.onSuccess(breaker.allowRequest(), 10L);
+        breaker.onFailure(breaker.allowRequest());
+        breaker.onSuccess(breaker.allowRequest(), 10L);
+        breaker.onFailure(breaker.allowRequest());
+        Assertions.assertEquals("OPEN", breaker.getState());
+        Assertions.assertEquals(CircuitBreaker.NO_PERMIT, breaker.allowRequest());
+    }
+
+    @Test
+    void testOpensOnSlowCalls() {
+        StaticTimeCircuitBreaker breaker = new StaticTimeCircuitBreaker(2, 100, 100L, 1000L);
+        breaker.onSuccess(breaker.allowRequest(), 150L);
+        breaker.onSuccess(breaker.allowRequest(), 100L);
+        Assertions.assertEquals("OPEN", breaker.getState());
+    }
+
+    @Test
+    void testHalfOpenProbeCloses() {
+        StaticTimeCircuitBreaker breaker = new StaticTimeCircuitBreaker(1, 100, 100L, 1000L);
+        breaker.onFailure(breaker.allowRequest());
+        Assertions.assertEquals(CircuitBreaker.NO_PERMIT, breaker.allowRequest());
+
+        breaker.time += 1000L;
+        long probe = breaker.allowRequest();
+        Assertions.assertNotEquals(CircuitBreaker.NO_PERMIT, probe);
+        Assertions.assertEquals("HALF_OPEN", breaker.getState());
+        // Only one probe at a time
+        Assertions.assertEquals(CircuitBreaker.NO_PERMIT, breaker.allowRequest());
+
+        breaker.onSuccess(probe, 10L);
+        Assertions.assertTrue(breaker.isClosed());
+        Assertions.assertNotEquals(CircuitBreaker.NO_PERMIT, breaker.allowRequest());
+    }
+
+    @Test
+    void testHalfOpenProbeFailureReopens() {
+        StaticTimeCircuitBreaker breaker = new StaticTimeCircuitBreaker(1, 100, 100L, 1000L);
+        breaker.onFailure(breaker.allowRequest());
+        breaker.time += 1000L;
+        long probe = breaker.allowRequest();
+        Assertions.assertNotEquals(CircuitBreaker.NO_PERMIT, probe);
+
+        breaker.onFailure(probe);
+        Assertions.assertEquals("OPEN", breaker.getState());
+        Assertions.assertEquals(CircuitBreaker.NO_PERMIT, breaker.allowRequest());
+    }
+
+    @Test
+    void testStaleOutcomesIgnoredWhileHalfOpen() {
+        StaticTimeCircuitBreaker breaker = new StaticTimeCircuitBreaker(1, 100, 100L, 1000L);
+        long beforeTrip = breaker.allowRequest();
+        breaker.onFailure(breaker.allowRequest());
+        breaker.time += 1000L;
+        long probe = breaker.allowRequest();
+
+        // Late outcomes of a record sent before the breaker opened are not the result of the probe
+        breaker.onSuccess(beforeTrip, 10L);
+        Assertions.assertEquals("HALF_OPEN", breaker.getState());
+        Assertions.assertEquals(CircuitBreaker.NO_PERMIT, breaker.allowRequest());
+        breaker.onFailure(beforeTrip);
+        Assertions.assertEquals("HALF_OPEN", breaker.getState());
+
+        breaker.onSuccess(probe, 10L);
+        Assertions.assertTrue(breaker.isClosed());
+        // Nor do they count once closed again
+        breaker.onFailure(beforeTrip);
+        breaker.onFailure(probe);
+        Assertions.assertTrue(breaker.isClosed());
+    }
+
+    @Test
+    void testInvalidConfiguration() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new CircuitBreaker(0, 50, 100L, 1000L));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new CircuitBreaker(10, 101, 100L, 1000L));
+    }
+
+    static class StaticTimeCircuitBreaker extends CircuitBreaker {
+        long time = 1L;
+
+        StaticTimeCircuitBreaker(int windowSize, int failureRateThreshold, long slowCallThresholdMillis, long openDurationMillis) {
+            super(windowSize, failureRateThreshold, slowCallThresholdMillis, openDurationMillis);
+        }
+
+        @Override
+        protected long timeGen() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+class DeadLetterHandlerTest {
+    private static final KafkaSupervisorConfig SUPERVISOR_CONFIG = new KafkaSupervisorConfig(60000L, 1000L, 2, 1000L, 4000L, 60000L);
+    private static final String DEAD_LETTER_TOPIC = "dead-letters";
+
+    private MockProducer<String, String> mockProducer;
+    private KafkaEventSender sender;
+
+    @TempDir
+    Path deadLetterDirectory;
+
+    @BeforeEach
+    public void init() {
+        mockProducer = new MockProducer<>(false, new StringSerializer(), new StringSerializer());
+        sender = new KafkaEventSender(() -> EventProducer.of(mockProducer), null, 50, new CircuitBreaker(100, 100, 1000L, 1000L),
+                new RateLimitedLogger(Logger.getLogger(DeadLetterHandlerTest.class), 1000L), SUPERVISOR_CONFIG, null);
+        sender.start();
+    }
+
+    @AfterEach
+    public void close() {
+        sender.close(Duration.ZERO);
+    }
+
+    @Test
+    void testDeadLetterRecordRoundTrip() {
+        ProducerRecord<String, String> record = new ProducerRecord<>("events", null, "key", "value",
+                List.of(new RecordHeader("origin", "test".getBytes(StandardCharsets.UTF_8))));
+        DeadLetter deadLetter = DeadLetter.of(record, new TimeoutException("Expiring 1 record"), 1000L);
+
+        ProducerRecord<String, String> deadLetterRecord = deadLetter.toDeadLetterRecord(DEAD_LETTER_TOPIC);
+        Assertions.assertEquals(DEAD_LETTER_TOPIC, deadLetterRecord.topic());
+        Assertions.assertEquals("events", header(deadLetterRecord, DeadLetter.ORIGINAL_TOPIC_HEADER));
+        Assertions.assertEquals(TimeoutException.class.getName(), header(deadLetterRecord, DeadLetter.ERROR_CLASS_HEADER));
+
+        DeadLetter rebuilt = DeadLetter.fromDeadLetterRecord(deadLetterRecord.key(), deadLetterRecord.value(), deadLetterRecord.headers());
+        Assertions.assertEquals(1000L, rebuilt.failureTime());
+        Assertions.assertEquals("Expiring 1 record", rebuilt.errorMessage());
+        Assertions.assertEquals("events", rebuilt.record().topic());
+        Assertions.assertEquals("value", rebuilt.record().value());
+        Assertions.assertEquals("test", header(rebuilt.record(), "origin"));
+        Assertions.assertNull(rebuilt.record().headers().lastHeader(DeadLetter.ORIGINAL_TOPIC_HEADER));
+
+        Assertions.assertThrows(IllegalArgumentException.class, () -> DeadLetter.fromDeadLetterRecord("key", "value", record.headers()));
+    }
+
+    @Test
+    void testFailedSendRoutedToTopic() throws IOException {
+        DeadLetterHandler handler = new DeadLetterHandler(DEAD_LETTER_TOPIC, new DeadLetterStore(deadLetterDirectory, 1024L), 10);
+        sender.setFailureHandler(handler::onFailure);
+
+        sender.send(new ProducerRecord<>("events", "key", "value"));
+        Assertions.assertTrue(mockProducer.errorNext(new TimeoutException("Expiring 1 record")));
+        handler.route(sender);
+        Assertions.assertEquals(2, mockProducer.history().size());
+        ProducerRecord<String, String> deadLetterRecord = mockProducer.history().get(1);
+        Assertions.assertEquals(DEAD_LETTER_TOPIC, deadLetterRecord.topic());
+        Assertions.assertEquals("value", deadLetterRecord.value());
+        Assertions.assertEquals("events", header(deadLetterRecord, DeadLetter.ORIGINAL_TOPIC_HEADER));
+        Assertions.assertEquals(1, handler.getSentCount());
+
+        // The dead-letter topic being unavailable too, the dead letter is written to disk
+        Assertions.assertTrue(mockProducer.errorNext(new TimeoutException("Expiring 1 record")));
+        handler.route(sender);
+        Assertions.assertEquals(2, mockProducer.history().size());
+        Assertions.assertEquals(1, handler.getStoredCount());
+        List<Path> segments = handler.getStore().listSegments();
+        Assertions.assertEquals(1, segments.size());
+        List<DeadLetter> deadLetters = DeadLetterStore.read(segments.get(0));
+        Assertions.assertEquals(1, deadLetters.size());
+        Assertions.assertEquals("events", deadLetters.get(0).record().topic());
+        Assertions.assertEquals("key", deadLetters.get(0).record().key());
+        Assertions.assertEquals("value", deadLetters.get(0).record().value());
+        Assertions.assertEquals(TimeoutException.class.getName(), deadLetters.get(0).errorClass());
+        Assertions.assertEquals(0, handler.getLostCount());
+    }
+
+    @Test
+    void testFailuresWithoutDestinationAreCounted() {
+        DeadLetterHandler handler = new DeadLetterHandler(null, null, 1);
+        handler.onFailure(new ProducerRecord<>("events", "key", "value1"), new TimeoutException("Expiring 1 record"));
+        handler.onFailure(new ProducerRecord<>("events", "key", "value2"), new TimeoutException("Expiring 1 record"));
+        Assertions.assertEquals(1, handler.getLostCount());
+
+        handler.route(sender);
+        Assertions.assertEquals(2, handler.getLostCount());
+        Assertions.assertEquals(0, handler.getSentCount());
+    }
+
+    private static String header(ProducerRecord<String, String> record, String key) {
+        return new String(record.headers().lastHeader(key).value(), StandardCharsets.UTF_8);
+    }
+}
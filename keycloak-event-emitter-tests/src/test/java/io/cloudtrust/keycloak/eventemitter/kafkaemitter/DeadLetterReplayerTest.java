@@ -0,0 +1,90 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+class DeadLetterReplayerTest {
+    private static final String DEAD_LETTER_TOPIC = "dead-letters";
+
+    @TempDir
+    Path deadLetterDirectory;
+
+    @Test
+    void testReplaySegments() throws IOException {
+        DeadLetterStore store = new DeadLetterStore(deadLetterDirectory, 1L);
+        store.append(List.of(createDeadLetter("events", "value1")));
+        store.append(List.of(createDeadLetter("admin-events", "value2"), createDeadLetter("events", "value3")));
+        Assertions.assertEquals(2, store.listSegments().size());
+
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        Assertions.assertEquals(3, new DeadLetterReplayer(producer, 0).replay(store));
+        Assertions.assertEquals(List.of("events", "admin-events", "events"), producer.history().stream().map(ProducerRecord::topic).toList());
+        Assertions.assertEquals(List.of("value1", "value2", "value3"), producer.history().stream().map(ProducerRecord::value).toList());
+        Assertions.assertTrue(store.listSegments().isEmpty());
+    }
+
+    @Test
+    void testReplayIsPaced() throws IOException {
+        DeadLetterStore store = new DeadLetterStore(deadLetterDirectory, 1024L);
+        store.append(List.of(createDeadLetter("events", "value1"), createDeadLetter("events", "value2"),
+                createDeadLetter("events", "value3")));
+        List<Long> sleeps = new ArrayList<>();
+        DeadLetterReplayer replayer = new DeadLetterReplayer(new MockProducer<>(true, new StringSerializer(), new StringSerializer()), 10) {
+            @Override
+            protected void sleep(long nanos) {
+                sleeps.add(nanos);
+            }
+        };
+        Assertions.assertEquals(3, replayer.replay(store));
+        // The first record is sent immediately
+        Assertions.assertEquals(2, sleeps.size());
+        sleeps.forEach(nanos -> Assertions.assertTrue(nanos <= 100_000_000L));
+    }
+
+    @Test
+    void testReplayFromTopic() {
+        MockConsumer<String, String> consumer = new MockConsumer<>(OffsetResetStrategy.EARLIEST);
+        TopicPartition partition = new TopicPartition(DEAD_LETTER_TOPIC, 0);
+        consumer.schedulePollTask(() -> {
+            consumer.rebalance(List.of(partition));
+            consumer.updateBeginningOffsets(Map.of(partition, 0L));
+            addRecord(consumer, 0L, createDeadLetter("events", "value1").toDeadLetterRecord(DEAD_LETTER_TOPIC));
+            // Not a dead letter, skipped
+            addRecord(consumer, 1L, new ProducerRecord<>(DEAD_LETTER_TOPIC, "key", "value2"));
+            addRecord(consumer, 2L, createDeadLetter("admin-events", "value3").toDeadLetterRecord(DEAD_LETTER_TOPIC));
+        });
+
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        Assertions.assertEquals(2, new DeadLetterReplayer(producer, 0).replay(consumer, DEAD_LETTER_TOPIC));
+        Assertions.assertEquals(List.of("events", "admin-events"), producer.history().stream().map(ProducerRecord::topic).toList());
+        Assertions.assertNull(producer.history().get(0).headers().lastHeader(DeadLetter.ORIGINAL_TOPIC_HEADER));
+        Assertions.assertEquals(3L, consumer.committed(Set.of(partition)).get(partition).offset());
+    }
+
+    private static DeadLetter createDeadLetter(String topic, String value) {
+        return DeadLetter.of(new ProducerRecord<>(topic, "key", value), new TimeoutException("Expiring 1 record"), 1000L);
+    }
+
+    private static void addRecord(MockConsumer<String, String> consumer, long offset, ProducerRecord<String, String> record) {
+        consumer.addRecord(new ConsumerRecord<>(DEAD_LETTER_TOPIC, 0, offset, 0L, TimestampType.CREATE_TIME,
+                0, 0, record.key(), record.value(), record.headers(), Optional.empty()));
+    }
+}
@@ -0,0 +1,60 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+
+import java.util.Map;
+import java.util.Set;
+
+class EmissionFilterTest {
+    private final EmissionFilter filter = new EmissionFilter();
+
+    @Test
+    void testAllEmittedByDefault() {
+        Assertions.assertTrue(filter.accept(createEvent(EventType.REFRESH_TOKEN, null)));
+        Assertions.assertTrue(filter.accept(createAdminEvent(OperationType.DELETE)));
+    }
+
+    @Test
+    void testExcludedTypes() {
+        filter.setRules(new EmissionRules(Set.of(EventType.REFRESH_TOKEN), Set.of(OperationType.ACTION), null));
+        Assertions.assertFalse(filter.accept(createEvent(EventType.REFRESH_TOKEN, null)));
+        Assertions.assertTrue(filter.accept(createEvent(EventType.LOGIN, null)));
+        Assertions.assertFalse(filter.accept(createAdminEvent(OperationType.ACTION)));
+        Assertions.assertTrue(filter.accept(createAdminEvent(OperationType.DELETE)));
+        Assertions.assertEquals(2, filter.getExcludedCount());
+
+        filter.setRules(null);
+        Assertions.assertTrue(filter.accept(createEvent(EventType.REFRESH_TOKEN, null)));
+    }
+
+    @Test
+    void testSampling() {
+        filter.setRules(new EmissionRules(null, null, Map.of(EventType.REFRESH_TOKEN, 0.0, EventType.LOGIN, 1.0)));
+        Assertions.assertFalse(filter.accept(createEvent(EventType.REFRESH_TOKEN, null)));
+        Assertions.assertTrue(filter.accept(createEvent(EventType.LOGIN, null)));
+        // Errors are never sampled out
+        Assertions.assertTrue(filter.accept(createEvent(EventType.REFRESH_TOKEN, "invalid_token")));
+        Assertions.assertEquals(1, filter.getSampledOutCount());
+
+        Map<EventType, Double> invalidRates = Map.of(EventType.LOGIN, 1.5);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new EmissionRules(null, null, invalidRates));
+    }
+
+    private static Event createEvent(EventType type, String error) {
+        Event event = new Event();
+        event.setType(type);
+        event.setError(error);
+        return event;
+    }
+
+    private static AdminEvent createAdminEvent(OperationType operationType) {
+        AdminEvent adminEvent = new AdminEvent();
+        adminEvent.setOperationType(operationType);
+        return adminEvent;
+    }
+}
@@ -0,0 +1,76 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+class EventCoalescerTest {
+    private long now = 1000L;
+
+    @Test
+    void testIdenticalEventsMerged() {
+        EventCoalescer coalescer = createCoalescer(10);
+        Assertions.assertTrue(coalescer.add(createEvent(EventType.REFRESH_TOKEN, "session1", 100L)));
+        Assertions.assertTrue(coalescer.add(createEvent(EventType.REFRESH_TOKEN, "session1", 300L)));
+        Assertions.assertTrue(coalescer.add(createEvent(EventType.REFRESH_TOKEN, "session1", 200L)));
+        Assertions.assertTrue(coalescer.add(createEvent(EventType.REFRESH_TOKEN, "session2", 250L)));
+        Assertions.assertEquals(2, coalescer.getOpenWindowsCount());
+        Assertions.assertEquals(2, coalescer.getMergedCount());
+
+        // Windows not expired yet
+        Assertions.assertTrue(coalescer.poll(false).isEmpty());
+        now += 5000L;
+        List<Event> events = coalescer.poll(false);
+        Assertions.assertEquals(2, events.size());
+        Event event = events.stream().filter(e -> "session1".equals(e.getSessionId())).findFirst().orElseThrow();
+        Assertions.assertEquals(100L, event.getTime());
+        Assertions.assertEquals("client", event.getDetails().get("grant_type"));
+        Assertions.assertEquals("3", event.getDetails().get(EventCoalescer.COUNT_DETAIL));
+        Assertions.assertEquals("100", event.getDetails().get(EventCoalescer.FIRST_TIME_DETAIL));
+        Assertions.assertEquals("300", event.getDetails().get(EventCoalescer.LAST_TIME_DETAIL));
+        Assertions.assertEquals(0, coalescer.getOpenWindowsCount());
+    }
+
+    @Test
+    void testEventsNotMerged() {
+        EventCoalescer coalescer = createCoalescer(1);
+        Assertions.assertFalse(coalescer.add(createEvent(EventType.LOGIN, "session1", 100L)));
+        Event errorEvent = createEvent(EventType.REFRESH_TOKEN, "session1", 100L);
+        errorEvent.setError("invalid_token");
+        Assertions.assertFalse(coalescer.add(errorEvent));
+
+        // Maximum number of windows reached
+        Assertions.assertTrue(coalescer.add(createEvent(EventType.REFRESH_TOKEN, "session1", 100L)));
+        Assertions.assertFalse(coalescer.add(createEvent(EventType.REFRESH_TOKEN, "session2", 100L)));
+        Assertions.assertTrue(coalescer.add(createEvent(EventType.REFRESH_TOKEN, "session1", 100L)));
+
+        Assertions.assertEquals(1, coalescer.poll(true).size());
+    }
+
+    private EventCoalescer createCoalescer(int maxWindows) {
+        return new EventCoalescer(Set.of(EventType.REFRESH_TOKEN), 5000L, maxWindows) {
+            @Override
+            protected long timeGen() {
+                return now;
+            }
+        };
+    }
+
+    private static Event createEvent(EventType type, String sessionId, long time) {
+        Event event = new Event();
+        event.setTime(time);
+        event.setType(type);
+        event.setRealmId("realm");
+        event.setClientId("client");
+        event.setUserId("user");
+        event.setSessionId(sessionId);
+        event.setIpAddress("127.0.0.1");
+        event.setDetails(Map.of("grant_type", "client"));
+        return event;
+    }
+}
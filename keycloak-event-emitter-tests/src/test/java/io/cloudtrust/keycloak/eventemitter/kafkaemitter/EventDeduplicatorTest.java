@@ -0,0 +1,109 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+class EventDeduplicatorTest {
+    private long now = 1000L;
+
+    @Test
+    void testDuplicatesDropped() {
+        EventDeduplicator deduplicator = createDeduplicator(false);
+        Assertions.assertFalse(deduplicator.isDuplicate(createEvent("session1", 100L), null));
+        Assertions.assertTrue(deduplicator.isDuplicate(createEvent("session1", 100L), null));
+        Assertions.assertFalse(deduplicator.isDuplicate(createEvent("session2", 100L), null));
+        Assertions.assertFalse(deduplicator.isDuplicate(createEvent("session1", 101L), null));
+        Event error = createEvent("session1", 100L);
+        error.setError("invalid_token");
+        Assertions.assertFalse(deduplicator.isDuplicate(error, null));
+        Assertions.assertEquals(1, deduplicator.getDuplicateCount());
+        Assertions.assertEquals(64 * 1024, deduplicator.getMemoryBytes());
+        Assertions.assertTrue(deduplicator.getFalsePositiveRate() > 0);
+        Assertions.assertTrue(deduplicator.getFalsePositiveRate() < 1e-9);
+    }
+
+    @Test
+    void testDetailsOrderIgnored() {
+        Event event = createEvent("session1", 100L);
+        Map<String, String> details = new LinkedHashMap<>();
+        details.put("grant_type", "client");
+        details.put("scope", "openid");
+        event.setDetails(details);
+        Event reordered = createEvent("session1", 100L);
+        Map<String, String> reorderedDetails = new LinkedHashMap<>();
+        reorderedDetails.put("scope", "openid");
+        reorderedDetails.put("grant_type", "client");
+        reordered.setDetails(reorderedDetails);
+        Assertions.assertEquals(EventDeduplicator.fingerprint(event), EventDeduplicator.fingerprint(reordered));
+
+        reorderedDetails.put("scope", "profile");
+        Assertions.assertNotEquals(EventDeduplicator.fingerprint(event), EventDeduplicator.fingerprint(reordered));
+    }
+
+    @Test
+    void testSlidingWindow() {
+        EventDeduplicator deduplicator = createDeduplicator(false);
+        Assertions.assertFalse(deduplicator.isDuplicate(createEvent("session1", 100L), null));
+
+        // Still known in the previous window, and carried over to the next one
+        now += 5000L;
+        Assertions.assertTrue(deduplicator.isDuplicate(createEvent("session1", 100L), null));
+        now += 5000L;
+        Assertions.assertTrue(deduplicator.isDuplicate(createEvent("session1", 100L), null));
+
+        // Forgotten after two windows without duplicate
+        now += 10000L;
+        Assertions.assertFalse(deduplicator.isDuplicate(createEvent("session1", 100L), null));
+    }
+
+    @Test
+    void testClusterWide() {
+        SingleUseObjectProvider store = Mockito.mock(SingleUseObjectProvider.class);
+        KeycloakSession session = Mockito.mock(KeycloakSession.class);
+        Mockito.when(session.singleUseObjects()).thenReturn(store);
+        Mockito.when(store.putIfAbsent(ArgumentMatchers.anyString(), ArgumentMatchers.anyLong())).thenReturn(true, false);
+
+        EventDeduplicator deduplicator = createDeduplicator(true);
+        Assertions.assertFalse(deduplicator.isDuplicate(createEvent("session1", 100L), session));
+        // Already emitted by another node
+        Assertions.assertTrue(deduplicator.isDuplicate(createEvent("session2", 100L), session));
+        // Known locally, the cluster is not checked
+        Assertions.assertTrue(deduplicator.isDuplicate(createEvent("session1", 100L), session));
+        Mockito.verify(store, Mockito.times(2)).putIfAbsent(ArgumentMatchers.startsWith("kafka-event-emitter-dedupe:"), ArgumentMatchers.eq(5L));
+
+        // Emitted when the cluster can't be reached
+        Mockito.when(store.putIfAbsent(ArgumentMatchers.anyString(), ArgumentMatchers.anyLong())).thenThrow(new IllegalStateException("unavailable"));
+        Assertions.assertFalse(deduplicator.isDuplicate(createEvent("session3", 100L), session));
+        Assertions.assertEquals(2, deduplicator.getDuplicateCount());
+    }
+
+    private EventDeduplicator createDeduplicator(boolean clusterWide) {
+        return new EventDeduplicator(5000L, 64 * 1024, clusterWide) {
+            @Override
+            protected long timeGen() {
+                return now;
+            }
+        };
+    }
+
+    private static Event createEvent(String sessionId, long time) {
+        Event event = new Event();
+        event.setTime(time);
+        event.setType(EventType.REFRESH_TOKEN);
+        event.setRealmId("realm");
+        event.setClientId("client");
+        event.setUserId("user");
+        event.setSessionId(sessionId);
+        event.setIpAddress("127.0.0.1");
+        return event;
+    }
+}
@@ -0,0 +1,94 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import io.cloudtrust.keycloak.eventemitter.SerializationUtils;
+import io.cloudtrust.keycloak.eventemitter.customevent.IdentifiedEvent;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+class EventJournalTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void testQueries() throws IOException {
+        EventJournal journal = EventJournal.open(directory, 64 * 1024, 1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            append(journal, i, "user" + (i % 3));
+        }
+        Assertions.assertEquals(100, journal.getEntryCount());
+
+        List<EventJournal.Entry> entries = journal.query(10L, 19L, null, 100);
+        Assertions.assertEquals(10, entries.size());
+        Assertions.assertEquals(10L, entries.get(0).uid());
+        Assertions.assertEquals(19L, entries.get(9).uid());
+
+        // The most recent entries are kept
+        entries = journal.query(0L, Long.MAX_VALUE, "user1", 5);
+        Assertions.assertEquals(List.of(85L, 88L, 91L, 94L, 97L), entries.stream().map(EventJournal.Entry::uid).toList());
+
+        Map<String, Object> fields = entries.get(0).toMap();
+        Assertions.assertEquals(85L, fields.get("uid"));
+        Assertions.assertEquals("event", fields.get("kind"));
+        Assertions.assertEquals("LOGIN", fields.get("type"));
+        Assertions.assertEquals("user1", fields.get("userId"));
+        Assertions.assertEquals(Map.of("auth_method", "openid-connect"), fields.get("details"));
+        Assertions.assertTrue(journal.query(0L, Long.MAX_VALUE, "unknown", 5).isEmpty());
+    }
+
+    @Test
+    void testRetention() throws IOException {
+        EventJournal journal = EventJournal.open(directory, 4096, 3 * 4096);
+        for (int i = 0; i < 1000; i++) {
+            append(journal, i, "user");
+        }
+        Assertions.assertEquals(3, journal.getSegmentCount());
+        List<EventJournal.Entry> entries = journal.query(0L, Long.MAX_VALUE, null, 1000);
+        Assertions.assertTrue(entries.size() < 1000);
+        Assertions.assertEquals(999L, entries.get(entries.size() - 1).uid());
+        Assertions.assertTrue(entries.get(0).uid() > 0L);
+
+        // Events larger than a segment are dropped
+        journal.append(EventJournal.EVENT, 1000L, "user", ByteBuffer.allocate(8192));
+        Assertions.assertEquals(1, journal.getDroppedCount());
+    }
+
+    @Test
+    void testRecovery() throws IOException {
+        EventJournal journal = EventJournal.open(directory, 64 * 1024, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            append(journal, i, "user");
+        }
+        journal.close();
+
+        EventJournal reopened = EventJournal.open(directory, 64 * 1024, 1024 * 1024);
+        Assertions.assertEquals(10, reopened.getEntryCount());
+        append(reopened, 10, "user");
+        Assertions.assertEquals(1, reopened.getSegmentCount());
+        List<EventJournal.Entry> entries = reopened.query(5L, 10L, "user", 100);
+        Assertions.assertEquals(6, entries.size());
+        Assertions.assertEquals("user", entries.get(5).getUserId());
+    }
+
+    private static void append(EventJournal journal, long uid, String userId) {
+        Event event = new Event();
+        event.setTime(System.currentTimeMillis());
+        event.setType(EventType.LOGIN);
+        event.setRealmId("realm");
+        event.setClientId("client");
+        event.setUserId(userId);
+        event.setDetails(Map.of("auth_method", "openid-connect"));
+        ByteBuffer buffer = SerializationUtils.toFlat(new IdentifiedEvent(uid, event));
+        int position = buffer.position();
+        journal.append(EventJournal.EVENT, uid, userId, buffer);
+        Assertions.assertEquals(position, buffer.position());
+    }
+}
@@ -0,0 +1,54 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+class EventPrioritizerTest {
+    private final EventPrioritizer prioritizer = new EventPrioritizer(EventPrioritizer.DEFAULT_HIGH_PRIORITY_EVENT_TYPES,
+            EventPrioritizer.DEFAULT_LOW_PRIORITY_EVENT_TYPES, EnumSet.of(OperationType.DELETE), true);
+
+    @Test
+    void testEventPriority() {
+        Assertions.assertEquals(EventPriority.HIGH, prioritizer.getPriority(createEvent(EventType.UPDATE_PASSWORD, null)));
+        Assertions.assertEquals(EventPriority.NORMAL, prioritizer.getPriority(createEvent(EventType.LOGIN, null)));
+        Assertions.assertEquals(EventPriority.LOW, prioritizer.getPriority(createEvent(EventType.REFRESH_TOKEN, null)));
+        // Errors take precedence over the type
+        Assertions.assertEquals(EventPriority.HIGH, prioritizer.getPriority(createEvent(EventType.REFRESH_TOKEN_ERROR, "invalid_token")));
+        Assertions.assertEquals(EventPriority.HIGH, prioritizer.getPriority(createEvent(EventType.REFRESH_TOKEN, "invalid_token")));
+    }
+
+    @Test
+    void testAdminEventPriority() {
+        Assertions.assertEquals(EventPriority.HIGH, prioritizer.getPriority(createAdminEvent(OperationType.DELETE, null)));
+        Assertions.assertEquals(EventPriority.NORMAL, prioritizer.getPriority(createAdminEvent(OperationType.UPDATE, null)));
+        Assertions.assertEquals(EventPriority.HIGH, prioritizer.getPriority(createAdminEvent(OperationType.UPDATE, "unknown_error")));
+    }
+
+    @Test
+    void testErrorsNotPrioritized() {
+        EventPrioritizer typeOnlyPrioritizer = new EventPrioritizer(Set.of(), EventPrioritizer.DEFAULT_LOW_PRIORITY_EVENT_TYPES, Set.of(), false);
+        Assertions.assertEquals(EventPriority.LOW, typeOnlyPrioritizer.getPriority(createEvent(EventType.REFRESH_TOKEN, "invalid_token")));
+        Assertions.assertEquals(EventPriority.NORMAL, typeOnlyPrioritizer.getPriority(createAdminEvent(OperationType.DELETE, "unknown_error")));
+    }
+
+    private static Event createEvent(EventType type, String error) {
+        Event event = new Event();
+        event.setType(type);
+        event.setError(error);
+        return event;
+    }
+
+    private static AdminEvent createAdminEvent(OperationType operationType, String error) {
+        AdminEvent adminEvent = new AdminEvent();
+        adminEvent.setOperationType(operationType);
+        adminEvent.setError(error);
+        return adminEvent;
+    }
+}
@@ -0,0 +1,35 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+class HeaderCodecTest {
+    @Test
+    void testRoundTrip() {
+        RecordHeaders headers = new RecordHeaders(List.of(
+                new RecordHeader("kind", "event".getBytes(StandardCharsets.UTF_8)),
+                new RecordHeader("type", new byte[]{(byte) 0xFF}),
+                new RecordHeader("realm:id,\t", "réalm".getBytes(StandardCharsets.UTF_8)),
+                new RecordHeader("empty", (byte[]) null)));
+
+        String text = HeaderCodec.format(headers);
+        Assertions.assertFalse(text.contains("\t"));
+        List<Header> parsed = HeaderCodec.parse(text);
+        Assertions.assertEquals(List.of(headers.toArray()), parsed);
+    }
+
+    @Test
+    void testEmptyAndInvalid() {
+        Assertions.assertEquals("", HeaderCodec.format(new RecordHeaders()));
+        Assertions.assertTrue(HeaderCodec.parse("").isEmpty());
+        List<Header> parsed = HeaderCodec.parse("a2luZA==:ZXZlbnQ=,not base64!");
+        Assertions.assertEquals(1, parsed.size());
+        Assertions.assertEquals("kind", parsed.get(0).key());
+    }
+}
@@ -0,0 +1,111 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.mockito.Answers;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.Map;
+
+class KafkaEventEmitterProviderFactoryTest {
+    private static final String WORKER_ID_KEY_PREFIX = "kafka-event-emitter-worker-";
+    private static final int WORKER_ID_COUNT = 128;
+
+    private final Map<String, String> config = new HashMap<>();
+    private final Map<String, Map<String, String>> entries = new HashMap<>();
+    private KeycloakSessionFactory sessionFactory;
+    private KafkaEventEmitterProviderFactory factory;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void init() {
+        config.put("eventTopic", "events");
+        config.put("adminEventTopic", "admin-events");
+        config.put("clientId", "test");
+        config.put("bootstrapServers", "localhost:9092");
+        config.put("securityProtocol", "PLAINTEXT");
+        config.put("saslJaasConfig", "");
+        config.put("saslOauthbearerTokenEndpointUrl", "");
+        config.put("saslMechanism", "OAUTHBEARER");
+        config.put("bufferCapacity", "10");
+        config.put("warmup", "false");
+
+        // Cluster-wide store backed by a map, entries never expire
+        SingleUseObjectProvider store = Mockito.mock(SingleUseObjectProvider.class);
+        Mockito.when(store.putIfAbsent(ArgumentMatchers.anyString(), ArgumentMatchers.anyLong()))
+                .thenAnswer(invocation -> entries.putIfAbsent(invocation.getArgument(0), Map.of()) == null);
+        Mockito.doAnswer(invocation -> entries.put(invocation.getArgument(0), invocation.getArgument(2)))
+                .when(store).put(ArgumentMatchers.anyString(), ArgumentMatchers.anyLong(), ArgumentMatchers.any(Map.class));
+        Mockito.when(store.get(ArgumentMatchers.anyString())).thenAnswer(invocation -> entries.get(invocation.<String>getArgument(0)));
+        Mockito.when(store.remove(ArgumentMatchers.anyString())).thenAnswer(invocation -> entries.remove(invocation.<String>getArgument(0)));
+        sessionFactory = Mockito.mock(KeycloakSessionFactory.class, Answers.RETURNS_DEEP_STUBS);
+        Mockito.when(sessionFactory.create().singleUseObjects()).thenReturn(store);
+    }
+
+    @AfterEach
+    public void close() {
+        if (factory != null) {
+            factory.close();
+        }
+    }
+
+    @Test
+    void testWorkerIdLeasedAgainAfterFallback() {
+        config.put("workerIdLease", "true");
+        config.put("keycloakId", "3");
+        config.put("datacenterId", "1");
+        factory = new KafkaEventEmitterProviderFactory();
+        factory.init(createScope());
+        factory.postInit(sessionFactory);
+        Assertions.assertEquals("leased", getWorkerIdInfo());
+
+        // Lease expired and all the worker IDs leased by other nodes: fallback to the configured worker ID
+        entries.clear();
+        for (int i = 0; i < WORKER_ID_COUNT; i++) {
+            entries.put(WORKER_ID_KEY_PREFIX + i, Map.of("owner", "other-node"));
+        }
+        factory.renewWorkerId();
+        Assertions.assertEquals("static configuration", getWorkerIdInfo());
+        Assertions.assertEquals("3", factory.getOperationalInfo().get("Snowflake Id Generator - Keycloak ID"));
+        Assertions.assertEquals("1", factory.getOperationalInfo().get("Snowflake Id Generator - Datacenter ID"));
+
+        // Still no free worker ID
+        factory.renewWorkerId();
+        Assertions.assertEquals("static configuration", getWorkerIdInfo());
+
+        // Worker IDs released by the other nodes
+        entries.clear();
+        factory.renewWorkerId();
+        Assertions.assertEquals("leased", getWorkerIdInfo());
+        Assertions.assertEquals(1, entries.size());
+    }
+
+    private String getWorkerIdInfo() {
+        return factory.getOperationalInfo().get("Snowflake Id Generator - Worker ID");
+    }
+
+    private Config.Scope createScope() {
+        Config.Scope scope = Mockito.mock(Config.Scope.class);
+        Mockito.when(scope.get(ArgumentMatchers.anyString())).thenAnswer(invocation -> config.get(invocation.<String>getArgument(0)));
+        Mockito.when(scope.getInt(ArgumentMatchers.anyString())).thenAnswer(invocation -> {
+            String value = config.get(invocation.<String>getArgument(0));
+            return value != null ? Integer.valueOf(value) : null;
+        });
+        Mockito.when(scope.getLong(ArgumentMatchers.anyString())).thenAnswer(invocation -> {
+            String value = config.get(invocation.<String>getArgument(0));
+            return value != null ? Long.valueOf(value) : null;
+        });
+        Mockito.when(scope.getBoolean(ArgumentMatchers.anyString(), ArgumentMatchers.anyBoolean())).thenAnswer(invocation -> {
+            String value = config.get(invocation.<String>getArgument(0));
+            return value != null ? Boolean.valueOf(value) : invocation.<Boolean>getArgument(1);
+        });
+        return scope;
+    }
+}
@@ -1,9 +1,17 @@
 package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
 
+import io.cloudtrust.keycloak.eventemitter.FlatBufferBuilderPool;
+import io.cloudtrust.keycloak.eventemitter.SerializationUtils;
 import io.cloudtrust.keycloak.eventemitter.snowflake.IdGenerator;
+import io.cloudtrust.keycloak.eventemitter.tracing.LatencyTracer;
+import io.cloudtrust.keycloak.eventemitter.tracing.Stage;
 import org.apache.kafka.clients.producer.MockProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.ByteBufferSerializer;
 import org.apache.kafka.common.serialization.StringSerializer;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -12,6 +20,7 @@ import org.keycloak.events.EventType;
 import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.events.admin.AuthDetails;
 import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
@@ -25,10 +34,12 @@ import org.mockito.Mockito;
 import org.mockito.MockitoAnnotations;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.HashMap;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Map;
 
 class KafkaEventEmitterProviderTest {
     private static final String topicEvent = "test-event";
@@ -38,6 +49,9 @@ class KafkaEventEmitterProviderTest {
     @Mock(answer = Answers.RETURNS_DEEP_STUBS)
     private KeycloakSession keycloakSession;
     private MockProducer<String, String> mockProducer;
+    private CircuitBreaker circuitBreaker;
+    private RateLimitedLogger errorLogger;
+    private KafkaEventSender sender;
 
     @BeforeEach
     public void initMock() {
@@ -55,16 +69,22 @@ class KafkaEventEmitterProviderTest {
         Mockito.when(keycloakSession.realms().getRealm(Mockito.any())).thenReturn(realm);
 
         mockProducer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        circuitBreaker = new CircuitBreaker(2, 50, 1000L, 60000L);
+        errorLogger = new RateLimitedLogger(Logger.getLogger(KafkaEventEmitterProviderTest.class), 1000L);
+    }
+
+    @AfterEach
+    public void closeSender() {
+        if (sender != null) {
+            sender.close(Duration.ZERO);
+        }
     }
 
     @Test
     void testEventFlatbufferFormatOutput() {
         IdGenerator idGenerator = new IdGenerator(1, 1);
-        LinkedBlockingQueue<ProducerRecord<String, String>> pendingEvents = new LinkedBlockingQueue<>(50);
-
-        KafkaEventEmitterState state = new KafkaEventEmitterState();
-        state.working();
-        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, mockProducer, topicEvent, topicAdminEvent, idGenerator, pendingEvents, state, new ReentrantLock());
+        KafkaEventSender sender = createSender(mockProducer);
+        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, createPipeline(sender, idGenerator));
 
         Event event = createEvent();
         kafkaEventEmitterProvider.onEvent(event);
@@ -75,18 +95,74 @@ class KafkaEventEmitterProviderTest {
         byte[] b = Base64.getDecoder().decode(producedEvent.value());
         flatbuffers.events.Event receivedEvent = flatbuffers.events.Event.getRootAsEvent(ByteBuffer.wrap(b));
         Assertions.assertEquals(event.getTime(), receivedEvent.time());
-        Assertions.assertEquals(event.getType().ordinal(), receivedEvent.type());
+        Assertions.assertEquals(flatbuffers.events.EventType.CLIENT_LOGIN, receivedEvent.type());
         Assertions.assertEquals(event.getClientId(), receivedEvent.clientId());
     }
 
     @Test
-    void testAdminEventFlatbufferFormatOutput() {
+    void testLatencyTracing() {
         IdGenerator idGenerator = new IdGenerator(1, 1);
-        LinkedBlockingQueue<ProducerRecord<String, String>> pendingEvents = new LinkedBlockingQueue<>(50);
+        KafkaEventSender sender = createSender(mockProducer);
+        LatencyTracer tracer = new LatencyTracer();
+        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, createPipeline(sender, idGenerator).withTracer(tracer));
+
+        kafkaEventEmitterProvider.onEvent(createEvent());
+        kafkaEventEmitterProvider.onEvent(createAdminEvent(), false);
 
-        KafkaEventEmitterState state = new KafkaEventEmitterState();
-        state.working();
-        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, mockProducer, topicEvent, topicAdminEvent, idGenerator, pendingEvents, state, new ReentrantLock());
+        for (Stage stage : Stage.values()) {
+            // No journal
+            Assertions.assertEquals(stage == Stage.JOURNAL ? 0 : 2, tracer.getHistogram(stage).getCount(), stage.name());
+        }
+    }
+
+    @Test
+    void testPooledSerializationBuffers() {
+        IdGenerator idGenerator = new IdGenerator(1, 1);
+        KafkaEventSender sender = createSender(mockProducer);
+        FlatBufferBuilderPool builderPool = new FlatBufferBuilderPool(64, 4096, 1);
+        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, createPipeline(sender, idGenerator).withBuilderPool(builderPool));
+
+        Event event = createEvent();
+        kafkaEventEmitterProvider.onEvent(event);
+        kafkaEventEmitterProvider.onEvent(createAdminEvent(), false);
+        kafkaEventEmitterProvider.onEvent(event);
+
+        // The builder is reused, each record keeping its own value
+        Assertions.assertEquals(1, builderPool.getCreatedCount());
+        List<ProducerRecord<String, String>> recordList = mockProducer.history();
+        Assertions.assertEquals(3, recordList.size());
+        for (int i : new int[]{0, 2}) {
+            byte[] b = Base64.getDecoder().decode(recordList.get(i).value());
+            flatbuffers.events.Event receivedEvent = flatbuffers.events.Event.getRootAsEvent(ByteBuffer.wrap(b));
+            Assertions.assertEquals(event.getClientId(), receivedEvent.clientId());
+            Assertions.assertEquals(flatbuffers.events.EventType.CLIENT_LOGIN, receivedEvent.type());
+        }
+        Assertions.assertNotEquals(recordList.get(0).value(), recordList.get(2).value());
+    }
+
+    @Test
+    void testSortedDetails() {
+        IdGenerator idGenerator = new IdGenerator(1, 1);
+        KafkaEventSender sender = createSender(mockProducer);
+        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, createPipeline(sender, idGenerator).withSortedDetails(true));
+
+        Event event = createEvent();
+        event.setDetails(new HashMap<>(Map.of("redirect_uri", "https://app", "auth_method", "openid-connect", "code_id", "abc")));
+        kafkaEventEmitterProvider.onEvent(event);
+
+        byte[] b = Base64.getDecoder().decode(mockProducer.history().get(0).value());
+        flatbuffers.events.Event receivedEvent = flatbuffers.events.Event.getRootAsEvent(ByteBuffer.wrap(b));
+        Assertions.assertEquals(3, receivedEvent.detailsLength());
+        Assertions.assertEquals("auth_method", receivedEvent.details(0).key());
+        Assertions.assertEquals("code_id", receivedEvent.details(1).key());
+        Assertions.assertEquals("redirect_uri", receivedEvent.details(2).key());
+    }
+
+    @Test
+    void testAdminEventFlatbufferFormatOutput() {
+        IdGenerator idGenerator = new IdGenerator(1, 1);
+        KafkaEventSender sender = createSender(mockProducer);
+        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, createPipeline(sender, idGenerator));
 
         AdminEvent event = createAdminEvent();
         kafkaEventEmitterProvider.onEvent(event, false);
@@ -102,15 +178,85 @@ class KafkaEventEmitterProviderTest {
         Assertions.assertEquals(event.getAuthDetails().getUserId(), receivedEvent.authDetails().userId());
     }
 
+    @Test
+    void testRecordHeaders() {
+        IdGenerator idGenerator = new IdGenerator(1, 1);
+        KafkaEventSender sender = createSender(mockProducer);
+        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, createPipeline(sender, idGenerator).withHeaders(new EventHeaders()));
+
+        Event event = createEvent();
+        event.setRealmId("realmId");
+        event.setError("invalid_client_credentials");
+        kafkaEventEmitterProvider.onEvent(event);
+        kafkaEventEmitterProvider.onEvent(createAdminEvent(), false);
+
+        Headers eventHeaders = mockProducer.history().get(0).headers();
+        flatbuffers.events.Event receivedEvent = flatbuffers.events.Event.getRootAsEvent(
+                ByteBuffer.wrap(Base64.getDecoder().decode(mockProducer.history().get(0).value())));
+        Assertions.assertEquals("event", new String(eventHeaders.lastHeader(EventHeaders.KIND).value(), StandardCharsets.UTF_8));
+        Assertions.assertArrayEquals(new byte[]{receivedEvent.type()}, eventHeaders.lastHeader(EventHeaders.TYPE).value());
+        Assertions.assertEquals("realmId", new String(eventHeaders.lastHeader(EventHeaders.REALM).value(), StandardCharsets.UTF_8));
+        Assertions.assertArrayEquals(new byte[]{1}, eventHeaders.lastHeader(EventHeaders.ERROR).value());
+        Assertions.assertArrayEquals(new byte[]{SerializationUtils.SCHEMA_VERSION}, eventHeaders.lastHeader(EventHeaders.SCHEMA).value());
+        Assertions.assertEquals(receivedEvent.uid(), ByteBuffer.wrap(eventHeaders.lastHeader(EventHeaders.UID).value()).getLong());
+
+        Headers adminEventHeaders = mockProducer.history().get(1).headers();
+        Assertions.assertEquals("admin", new String(adminEventHeaders.lastHeader(EventHeaders.KIND).value(), StandardCharsets.UTF_8));
+        Assertions.assertArrayEquals(new byte[]{(byte) OperationType.CREATE.ordinal()}, adminEventHeaders.lastHeader(EventHeaders.TYPE).value());
+        Assertions.assertNull(adminEventHeaders.lastHeader(EventHeaders.REALM));
+        Assertions.assertArrayEquals(new byte[]{0}, adminEventHeaders.lastHeader(EventHeaders.ERROR).value());
+    }
+
+    @Test
+    void testRawEvents() {
+        IdGenerator idGenerator = new IdGenerator(1, 1);
+        KafkaEventSender sender = createSender(mockProducer);
+        MockProducer<String, ByteBuffer> rawProducer = new MockProducer<>(true, new StringSerializer(), new ByteBufferSerializer());
+        RawEventSender rawSender = new RawEventSender(() -> rawProducer, sender, "test-raw-event", null, errorLogger);
+        rawSender.connect();
+        FlatBufferBuilderPool pool = new FlatBufferBuilderPool(SerializationUtils.FLATBUFFER_INIT_SIZE, 64 * 1024, 1, true);
+        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession,
+                createPipeline(sender, idGenerator).withBuilderPool(pool).withRawSender(rawSender));
+
+        kafkaEventEmitterProvider.onEvent(createEvent());
+
+        Assertions.assertEquals(1, rawProducer.history().size());
+        ProducerRecord<String, ByteBuffer> rawRecord = rawProducer.history().get(0);
+        Assertions.assertEquals("test-raw-event", rawRecord.topic());
+        // The mock producer keeps the value, which is only valid until the pooled buffer is reused
+        byte[] rawValue = new ByteBufferSerializer().serialize(rawRecord.topic(), rawRecord.value());
+        Assertions.assertArrayEquals(Base64.getDecoder().decode(mockProducer.history().get(0).value()), rawValue);
+        Assertions.assertEquals(1, rawSender.getSentCount());
+
+        // Admin events have no raw topic
+        kafkaEventEmitterProvider.onEvent(createAdminEvent(), false);
+        Assertions.assertEquals(1, rawProducer.history().size());
+    }
+
+    @Test
+    void testBatchUsesConsecutiveIds() {
+        IdGenerator idGenerator = new IdGenerator(1, 1);
+        KafkaEventSender sender = createSender(mockProducer);
+        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, createPipeline(sender, idGenerator));
+
+        kafkaEventEmitterProvider.emitAll(List.of(createEvent(), createEvent(), createEvent()));
+
+        Assertions.assertEquals(3, mockProducer.history().size());
+        long firstId = flatbuffers.events.Event.getRootAsEvent(
+                ByteBuffer.wrap(Base64.getDecoder().decode(mockProducer.history().get(0).value()))).uid();
+        for (int i = 1; i < 3; i++) {
+            flatbuffers.events.Event receivedEvent = flatbuffers.events.Event.getRootAsEvent(
+                    ByteBuffer.wrap(Base64.getDecoder().decode(mockProducer.history().get(i).value())));
+            Assertions.assertEquals(firstId + i, receivedEvent.uid());
+        }
+    }
+
     @Test
     void testNoConnection() {
         IdGenerator idGenerator = new IdGenerator(1, 1);
         try (MockProducer<String, String> stepMockProducer = new MockProducer<>(false, new StringSerializer(), new StringSerializer())) {
-            LinkedBlockingQueue<ProducerRecord<String, String>> pendingEvents = new LinkedBlockingQueue<>(50);
-
-            KafkaEventEmitterState state = new KafkaEventEmitterState();
-            state.working();
-            KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, mockProducer, topicEvent, topicAdminEvent, idGenerator, pendingEvents, state, new ReentrantLock());
+            KafkaEventSender sender = createSender(mockProducer);
+            KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, createPipeline(sender, idGenerator));
 
             stepMockProducer.errorNext(new RuntimeException("Test error"));
             Event event = createEvent();
@@ -120,6 +266,72 @@ class KafkaEventEmitterProviderTest {
         }
     }
 
+    @Test
+    void testOpenCircuitBreakerBuffersEvents() {
+        IdGenerator idGenerator = new IdGenerator(1, 1);
+        KafkaEventSender sender = createSender(mockProducer);
+        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, createPipeline(sender, idGenerator));
+
+        circuitBreaker.onFailure(circuitBreaker.allowRequest());
+        circuitBreaker.onFailure(circuitBreaker.allowRequest());
+        kafkaEventEmitterProvider.onEvent(createEvent());
+        kafkaEventEmitterProvider.onEvent(createAdminEvent(), false);
+
+        Assertions.assertEquals(0, mockProducer.history().size());
+        Assertions.assertEquals(2, sender.getPendingEventsCount());
+        Assertions.assertTrue(sender.getState().isPending());
+    }
+
+    @Test
+    void testProducerRejectionBuffersEvent() {
+        IdGenerator idGenerator = new IdGenerator(1, 1);
+        KafkaEventSender sender = createSender(mockProducer);
+        mockProducer.close();
+        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, createPipeline(sender, idGenerator));
+
+        kafkaEventEmitterProvider.onEvent(createEvent());
+
+        Assertions.assertEquals(1, sender.getPendingEventsCount());
+        Assertions.assertTrue(sender.getState().isPending());
+    }
+
+    @Test
+    void testDeferredUsernameEnrichment() {
+        IdGenerator idGenerator = new IdGenerator(1, 1);
+        KafkaEventSender sender = createSender(mockProducer);
+        UsernameChangePublisher publisher = new UsernameChangePublisher("test-username");
+        KafkaEventEmitterProvider kafkaEventEmitterProvider = new KafkaEventEmitterProvider(keycloakSession, createPipeline(sender, idGenerator).withUsernameChangePublisher(publisher));
+        Mockito.clearInvocations(keycloakSession);
+
+        AdminEvent event = createAdminEvent();
+        event.setResourceType(ResourceType.USER);
+        event.setResourcePath("users/" + userId);
+        event.setRepresentation("{\"username\":\"jdoe\",\"enabled\":true}");
+        kafkaEventEmitterProvider.onEvent(event, true);
+        Mockito.verify(keycloakSession, Mockito.never()).users();
+
+        byte[] b = Base64.getDecoder().decode(mockProducer.history().get(0).value());
+        flatbuffers.events.AdminEvent receivedEvent = flatbuffers.events.AdminEvent.getRootAsAdminEvent(ByteBuffer.wrap(b));
+        Assertions.assertNull(receivedEvent.authDetails().username());
+
+        Assertions.assertEquals(1, publisher.publish(sender));
+        ProducerRecord<String, String> usernameRecord = mockProducer.history().get(1);
+        Assertions.assertEquals("test-username", usernameRecord.topic());
+        Assertions.assertEquals(userId, usernameRecord.key());
+        Assertions.assertEquals("jdoe", usernameRecord.value());
+    }
+
+    private EmissionPipeline createPipeline(KafkaEventSender sender, IdGenerator idGenerator) {
+        return new EmissionPipeline(sender, topicEvent, topicAdminEvent, () -> idGenerator);
+    }
+
+    private KafkaEventSender createSender(MockProducer<String, String> producer) {
+        KafkaSupervisorConfig supervisorConfig = new KafkaSupervisorConfig(60000L, 1000L, 3, 1000L, 60000L, 60000L);
+        sender = new KafkaEventSender(() -> EventProducer.of(producer), null, 50, circuitBreaker, errorLogger, supervisorConfig, null);
+        sender.start();
+        return sender;
+    }
+
     private Event createEvent() {
         Event event = new Event();
         event.setTime(120001);
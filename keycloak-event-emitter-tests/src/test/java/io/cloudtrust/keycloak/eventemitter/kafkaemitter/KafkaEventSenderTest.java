@@ -0,0 +1,301 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mockito;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+class KafkaEventSenderTest {
+    private static final KafkaSupervisorConfig SUPERVISOR_CONFIG = new KafkaSupervisorConfig(60000L, 1000L, 2, 1000L, 4000L, 60000L);
+
+    private MockProducer<String, String> mockProducer;
+    private RateLimitedLogger errorLogger;
+    private StaticTimeSender sender;
+    private EventSpillStore spillStore;
+
+    @TempDir
+    Path spillDirectory;
+
+    @BeforeEach
+    public void init() {
+        mockProducer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        errorLogger = new RateLimitedLogger(Logger.getLogger(KafkaEventSenderTest.class), 1000L);
+    }
+
+    @AfterEach
+    public void close() {
+        if (sender != null) {
+            sender.close(Duration.ZERO);
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testWarmupFetchesMetadata() {
+        Producer<String, String> producer = Mockito.mock(Producer.class);
+        sender = new StaticTimeSender(() -> producer);
+        Assertions.assertFalse(sender.warmup(List.of("events")));
+
+        sender.start();
+        Assertions.assertTrue(sender.warmup(List.of("events", "admin-events")));
+        Mockito.verify(producer).partitionsFor("events");
+        Mockito.verify(producer).partitionsFor("admin-events");
+        Mockito.verify(producer, Mockito.never()).send(Mockito.any(), Mockito.any());
+
+        Mockito.when(producer.partitionsFor("events")).thenThrow(new KafkaException("Topic events not present in metadata after 1000 ms"));
+        Assertions.assertFalse(sender.warmup(List.of("events")));
+    }
+
+    @Test
+    void testProducerCreationRetriedWithBackoff() {
+        AtomicInteger attempts = new AtomicInteger();
+        sender = new StaticTimeSender(() -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new KafkaException("No resolvable bootstrap urls");
+            }
+            return mockProducer;
+        });
+        sender.start();
+        sender.send(createRecord());
+        Assertions.assertTrue(sender.getState().isPending());
+        Assertions.assertEquals(1, sender.getPendingEventsCount());
+
+        // Backoff not elapsed
+        sender.checkHealth();
+        Assertions.assertEquals(1, attempts.get());
+
+        sender.time += 1000L;
+        sender.checkHealth();
+        Assertions.assertEquals(2, attempts.get());
+
+        // Backoff doubled
+        sender.time += 1000L;
+        sender.checkHealth();
+        Assertions.assertEquals(2, attempts.get());
+        sender.time += 1000L;
+        sender.checkHealth();
+        Assertions.assertEquals(3, attempts.get());
+
+        sender.drain();
+        Assertions.assertTrue(sender.getState().isWorking());
+        Assertions.assertEquals(0, sender.getPendingEventsCount());
+        Assertions.assertEquals(1, mockProducer.history().size());
+    }
+
+    @Test
+    void testSustainedProbeFailureRecreatesProducer() {
+        AtomicInteger attempts = new AtomicInteger();
+        sender = new StaticTimeSender(() -> {
+            attempts.incrementAndGet();
+            return mockProducer;
+        });
+        sender.start();
+        sender.drain();
+        Assertions.assertTrue(sender.getState().isWorking());
+
+        sender.healthy = false;
+        sender.checkHealth();
+        Assertions.assertTrue(sender.getState().isWorking());
+        sender.checkHealth();
+        Assertions.assertTrue(sender.getState().isPending());
+        Assertions.assertTrue(mockProducer.closed());
+
+        sender.send(createRecord());
+        Assertions.assertEquals(1, sender.getPendingEventsCount());
+
+        sender.healthy = true;
+        sender.time += 1000L;
+        sender.checkHealth();
+        Assertions.assertEquals(2, attempts.get());
+    }
+
+    @Test
+    void testDrainWithoutTraffic() {
+        MockProducer<String, String> stepMockProducer = new MockProducer<>(false, new StringSerializer(), new StringSerializer());
+        sender = new StaticTimeSender(() -> stepMockProducer);
+        sender.start();
+        sender.send(createRecord());
+        Assertions.assertTrue(stepMockProducer.completeNext());
+        Assertions.assertEquals(1, stepMockProducer.history().size());
+
+        sender.circuitBreaker.onFailure(sender.circuitBreaker.allowRequest());
+        sender.send(createRecord());
+        sender.send(createRecord());
+        Assertions.assertEquals(2, sender.getPendingEventsCount());
+
+        sender.circuitBreaker.time += 1000L;
+        sender.drain();
+        // Only the half-open probe is sent
+        Assertions.assertEquals(2, stepMockProducer.history().size());
+        Assertions.assertTrue(sender.getState().isPending());
+
+        Assertions.assertTrue(stepMockProducer.completeNext());
+        sender.drain();
+        Assertions.assertEquals(3, stepMockProducer.history().size());
+        Assertions.assertTrue(sender.getState().isWorking());
+    }
+
+    @Test
+    void testStaleAcknowledgementDoesNotCloseBreaker() {
+        MockProducer<String, String> stepMockProducer = new MockProducer<>(false, new StringSerializer(), new StringSerializer());
+        sender = new StaticTimeSender(() -> stepMockProducer);
+        sender.start();
+        sender.send(createRecord());
+
+        sender.circuitBreaker.onFailure(sender.circuitBreaker.allowRequest());
+        sender.send(createRecord());
+        sender.send(createRecord());
+        sender.circuitBreaker.time += 1000L;
+        sender.drain();
+        Assertions.assertEquals(2, stepMockProducer.history().size());
+
+        // The record sent before the trip is acknowledged while the probe is in flight
+        Assertions.assertTrue(stepMockProducer.completeNext());
+        Assertions.assertEquals("HALF_OPEN", sender.circuitBreaker.getState());
+        sender.drain();
+        Assertions.assertEquals(2, stepMockProducer.history().size());
+
+        Assertions.assertTrue(stepMockProducer.completeNext());
+        sender.drain();
+        Assertions.assertEquals(3, stepMockProducer.history().size());
+        Assertions.assertTrue(sender.getState().isWorking());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testRequestThreadNeverSendsBufferedEvents() {
+        Producer<String, String> producer = Mockito.mock(Producer.class);
+        sender = new StaticTimeSender(() -> producer);
+        sender.start();
+        sender.circuitBreaker.onFailure(sender.circuitBreaker.allowRequest());
+        sender.send(createRecord());
+        Assertions.assertTrue(sender.getState().isPending());
+
+        // Breaker half-open: the event of the request is buffered, the probe is left to the drainer
+        sender.circuitBreaker.time += 1000L;
+        sender.send(createRecord());
+        Assertions.assertEquals(2, sender.getPendingEventsCount());
+        Mockito.verify(producer, Mockito.never()).send(Mockito.any(), Mockito.any());
+
+        sender.drain();
+        Assertions.assertEquals(1, sender.getPendingEventsCount());
+        Mockito.verify(producer).send(Mockito.any(), Mockito.any());
+    }
+
+    @Test
+    void testCloseFlushesBufferedEvents() {
+        AtomicInteger attempts = new AtomicInteger();
+        sender = new StaticTimeSender(() -> {
+            if (attempts.incrementAndGet() == 1) {
+                throw new KafkaException("No resolvable bootstrap urls");
+            }
+            return mockProducer;
+        });
+        sender.start();
+        sender.send(createRecord());
+        sender.send(createRecord());
+        sender.time += 1000L;
+        sender.checkHealth();
+        Assertions.assertEquals(2, sender.getPendingEventsCount());
+
+        sender.close(Duration.ofSeconds(1));
+        sender = null;
+        Assertions.assertEquals(2, mockProducer.history().size());
+        Assertions.assertTrue(mockProducer.closed());
+    }
+
+    @Test
+    void testCloseSpillsUnsentEvents() {
+        spillStore = new EventSpillStore(spillDirectory);
+        sender = new StaticTimeSender(() -> mockProducer);
+        sender.start();
+        sender.circuitBreaker.onFailure(sender.circuitBreaker.allowRequest());
+        sender.send(createRecord(), EventPriority.LOW);
+        sender.send(new ProducerRecord<>("test-admin-event", null, "value2"), EventPriority.HIGH);
+        Assertions.assertEquals(2, sender.getPendingEventsCount());
+
+        sender.close(Duration.ZERO);
+        Assertions.assertEquals(0, mockProducer.history().size());
+
+        // Spilled events are buffered again on next start
+        sender = new StaticTimeSender(() -> mockProducer);
+        sender.circuitBreaker.onFailure(sender.circuitBreaker.allowRequest());
+        sender.start();
+        Assertions.assertEquals(2, sender.getPendingEventsCount());
+        Assertions.assertEquals(1, sender.getPendingEventsCount(EventPriority.HIGH));
+        Assertions.assertEquals(1, sender.getPendingEventsCount(EventPriority.LOW));
+        Assertions.assertTrue(spillStore.readAll().isEmpty());
+    }
+
+    @Test
+    void testPauseBuffersEvents() {
+        sender = new StaticTimeSender(() -> mockProducer);
+        sender.start();
+        sender.send(createRecord());
+        Assertions.assertEquals(1, mockProducer.history().size());
+        Assertions.assertEquals(1, sender.getAcknowledgedEventsCount());
+
+        sender.pause();
+        sender.send(createRecord());
+        sender.send(createRecord());
+        sender.drain();
+        Assertions.assertEquals(1, mockProducer.history().size());
+        Assertions.assertEquals(2, sender.getPendingEventsCount());
+
+        // Forced drain sends the buffered events even when paused
+        Assertions.assertEquals(2, sender.forceDrain());
+        Assertions.assertEquals(3, mockProducer.history().size());
+
+        sender.send(createRecord());
+        sender.resume();
+        sender.drain();
+        Assertions.assertEquals(4, mockProducer.history().size());
+        Assertions.assertEquals(0, sender.getPendingEventsCount());
+        Assertions.assertEquals(4, sender.getAcknowledgedEventsCount());
+    }
+
+    private ProducerRecord<String, String> createRecord() {
+        return new ProducerRecord<>("test-event", "key", "value");
+    }
+
+    class StaticTimeSender extends KafkaEventSender {
+        final CircuitBreakerTest.StaticTimeCircuitBreaker circuitBreaker;
+        long time = 1L;
+        boolean healthy = true;
+
+        StaticTimeSender(Supplier<Producer<String, String>> producerFactory) {
+            this(producerFactory, new CircuitBreakerTest.StaticTimeCircuitBreaker(1, 100, 1000L, 1000L));
+        }
+
+        private StaticTimeSender(Supplier<Producer<String, String>> producerFactory, CircuitBreakerTest.StaticTimeCircuitBreaker circuitBreaker) {
+            super(() -> EventProducer.of(producerFactory.get()), null, 50, circuitBreaker, errorLogger, SUPERVISOR_CONFIG, spillStore);
+            this.circuitBreaker = circuitBreaker;
+        }
+
+        @Override
+        protected void probe() {
+            if (!healthy) {
+                throw new KafkaException("Metadata fetch timed out");
+            }
+        }
+
+        @Override
+        protected long timeGen() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+
+class PayloadPoolTest {
+    @Test
+    void testReleasedChunksAreReused() {
+        PayloadPool pool = new PayloadPool(1024, 1024);
+        PayloadPool.Payload payload = pool.allocate(new byte[]{1, 2, 3});
+        Assertions.assertNotNull(payload);
+        Assertions.assertEquals(3, payload.length());
+        ByteBuffer buffer = payload.buffer();
+        Assertions.assertTrue(buffer.isDirect());
+        Assertions.assertEquals(2, buffer.get(1));
+        Assertions.assertEquals(1024, pool.getAllocatedBytes());
+        Assertions.assertEquals(256, pool.getUsedBytes());
+
+        // The slab holds 4 chunks of 256 bytes
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertNotNull(pool.allocate(new byte[200]));
+        }
+        Assertions.assertNull(pool.allocate(new byte[200]));
+        Assertions.assertEquals(1, pool.getRejectedCount());
+
+        payload.release();
+        Assertions.assertEquals(768, pool.getUsedBytes());
+        Assertions.assertNotNull(pool.allocate(new byte[256]));
+        Assertions.assertEquals(1024, pool.getAllocatedBytes());
+    }
+
+    @Test
+    void testReferenceCounting() {
+        PayloadPool pool = new PayloadPool(1024, 4096);
+        PayloadPool.Payload payload = pool.allocate(new byte[300]);
+        Assertions.assertEquals(512, pool.getUsedBytes());
+
+        payload.retain();
+        payload.release();
+        Assertions.assertEquals(512, pool.getUsedBytes());
+        payload.release();
+        Assertions.assertEquals(0, pool.getUsedBytes());
+        Assertions.assertThrows(IllegalStateException.class, payload::release);
+        Assertions.assertThrows(IllegalStateException.class, payload::retain);
+    }
+
+    @Test
+    void testTooLargePayload() {
+        PayloadPool pool = new PayloadPool(1024, 4096);
+        Assertions.assertNull(pool.allocate(new byte[1025]));
+        Assertions.assertEquals(0, pool.getAllocatedBytes());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new PayloadPool(1000, 4096));
+    }
+}
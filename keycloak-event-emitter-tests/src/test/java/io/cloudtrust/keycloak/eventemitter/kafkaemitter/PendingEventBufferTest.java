@@ -0,0 +1,99 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+class PendingEventBufferTest {
+    @Test
+    void testOffHeapValues() {
+        PayloadPool pool = new PayloadPool(1024, 4096);
+        PendingEventBuffer buffer = new PendingEventBuffer(10, pool);
+
+        buffer.add(new ProducerRecord<>("events", "key", "valué"), EventPriority.NORMAL);
+        buffer.add(new ProducerRecord<>("usernames", "key", null), EventPriority.NORMAL);
+        Assertions.assertEquals(2, buffer.size());
+        Assertions.assertEquals(256, pool.getUsedBytes());
+
+        ProducerRecord<String, String> record = buffer.poll().record();
+        Assertions.assertEquals("events", record.topic());
+        Assertions.assertEquals("key", record.key());
+        Assertions.assertEquals("valué", record.value());
+        Assertions.assertEquals(0, pool.getUsedBytes());
+        Assertions.assertNull(buffer.poll().record().value());
+        Assertions.assertNull(buffer.poll());
+    }
+
+    @Test
+    void testOldestEventsDropped() {
+        PayloadPool pool = new PayloadPool(1024, 4096);
+        PendingEventBuffer buffer = new PendingEventBuffer(2, pool);
+
+        Assertions.assertEquals(0, buffer.add(new ProducerRecord<>("events", "1", "value1"), EventPriority.NORMAL));
+        Assertions.assertEquals(0, buffer.add(new ProducerRecord<>("events", "2", "value2"), EventPriority.NORMAL));
+        Assertions.assertEquals(1, buffer.add(new ProducerRecord<>("events", "3", "value3"), EventPriority.NORMAL));
+        Assertions.assertEquals(512, pool.getUsedBytes());
+
+        List<PendingEventBuffer.PendingEvent> events = new ArrayList<>();
+        buffer.drainTo(events);
+        Assertions.assertEquals(List.of("value2", "value3"), events.stream().map(event -> event.record().value()).toList());
+        Assertions.assertTrue(buffer.isEmpty());
+        Assertions.assertEquals(0, pool.getUsedBytes());
+    }
+
+    @Test
+    void testExhaustedPoolKeepsEventsOnHeap() {
+        PayloadPool pool = new PayloadPool(1024, 1024);
+        PendingEventBuffer buffer = new PendingEventBuffer(10, pool);
+
+        buffer.add(new ProducerRecord<>("events", "1", "x".repeat(600)), EventPriority.NORMAL);
+        buffer.add(new ProducerRecord<>("events", "2", "x".repeat(600)), EventPriority.NORMAL);
+        Assertions.assertEquals(1, pool.getRejectedCount());
+        Assertions.assertEquals(600, buffer.poll().record().value().length());
+        Assertions.assertEquals(600, buffer.poll().record().value().length());
+    }
+
+    @Test
+    void testLowerPriorityEventsDroppedFirst() {
+        PendingEventBuffer buffer = new PendingEventBuffer(3, null);
+
+        Assertions.assertEquals(0, buffer.add(new ProducerRecord<>("events", "1", "low1"), EventPriority.LOW));
+        Assertions.assertEquals(0, buffer.add(new ProducerRecord<>("events", "2", "normal"), EventPriority.NORMAL));
+        Assertions.assertEquals(0, buffer.add(new ProducerRecord<>("events", "3", "low2"), EventPriority.LOW));
+        // Oldest low priority event evicted
+        Assertions.assertEquals(1, buffer.add(new ProducerRecord<>("events", "4", "high1"), EventPriority.HIGH));
+        Assertions.assertEquals(1, buffer.add(new ProducerRecord<>("events", "5", "high2"), EventPriority.HIGH));
+        // No lower priority event left: the normal one is evicted
+        Assertions.assertEquals(1, buffer.add(new ProducerRecord<>("events", "6", "high3"), EventPriority.HIGH));
+        // Low priority events can't evict high priority ones
+        Assertions.assertEquals(1, buffer.add(new ProducerRecord<>("events", "7", "low3"), EventPriority.LOW));
+
+        Assertions.assertEquals(3, buffer.size(EventPriority.HIGH));
+        Assertions.assertEquals(3, buffer.getDroppedCount(EventPriority.LOW));
+        Assertions.assertEquals(1, buffer.getDroppedCount(EventPriority.NORMAL));
+        Assertions.assertEquals(0, buffer.getDroppedCount(EventPriority.HIGH));
+    }
+
+    @Test
+    void testHigherPriorityEventsPolledFirst() {
+        PendingEventBuffer buffer = new PendingEventBuffer(10, null);
+        buffer.add(new ProducerRecord<>("events", "1", "low"), EventPriority.LOW);
+        buffer.add(new ProducerRecord<>("events", "2", "normal1"), EventPriority.NORMAL);
+        buffer.add(new ProducerRecord<>("events", "3", "high"), EventPriority.HIGH);
+        buffer.add(new ProducerRecord<>("events", "4", "normal2"), EventPriority.NORMAL);
+
+        PendingEventBuffer.PendingEvent event = buffer.poll();
+        Assertions.assertEquals("high", event.record().value());
+        Assertions.assertEquals(EventPriority.HIGH, event.priority());
+
+        List<PendingEventBuffer.PendingEvent> events = new ArrayList<>();
+        buffer.drainTo(events);
+        Assertions.assertEquals(List.of("normal1", "normal2", "low"), events.stream().map(event -> event.record().value()).toList());
+        Assertions.assertEquals(List.of(EventPriority.NORMAL, EventPriority.NORMAL, EventPriority.LOW),
+                events.stream().map(PendingEventBuffer.PendingEvent::priority).toList());
+        Assertions.assertEquals(0, buffer.size());
+    }
+}
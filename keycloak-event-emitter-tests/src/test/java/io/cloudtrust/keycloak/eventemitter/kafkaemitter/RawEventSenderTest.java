@@ -0,0 +1,90 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.ByteBufferSerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+
+class RawEventSenderTest {
+    private static final KafkaSupervisorConfig SUPERVISOR_CONFIG = new KafkaSupervisorConfig(60000L, 1000L, 3, 1000L, 60000L, 60000L);
+
+    private MockProducer<String, String> eventProducer;
+    private MockProducer<String, ByteBuffer> rawProducer;
+    private RateLimitedLogger errorLogger;
+    private KafkaEventSender eventSender;
+    private RawEventSender rawSender;
+
+    @BeforeEach
+    public void init() {
+        eventProducer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+        rawProducer = new MockProducer<>(true, new StringSerializer(), new ByteBufferSerializer());
+        errorLogger = new RateLimitedLogger(Logger.getLogger(RawEventSenderTest.class), 1000L);
+        eventSender = new KafkaEventSender(() -> EventProducer.of(eventProducer), null, 50, new CircuitBreaker(2, 50, 1000L, 60000L),
+                errorLogger, SUPERVISOR_CONFIG, null);
+        rawSender = new RawEventSender(() -> rawProducer, eventSender, "raw-events", null, errorLogger);
+    }
+
+    @AfterEach
+    public void close() {
+        rawSender.close(Duration.ZERO);
+        eventSender.close(Duration.ZERO);
+    }
+
+    @Test
+    void testSendWhileWorking() {
+        eventSender.start();
+        rawSender.connect();
+
+        rawSender.send(new ProducerRecord<>("raw-events", "key", ByteBuffer.wrap(new byte[]{1, 2, 3})));
+
+        Assertions.assertEquals(1, rawProducer.history().size());
+        Assertions.assertEquals("raw-events", rawProducer.history().get(0).topic());
+        Assertions.assertEquals(1, rawSender.getSentCount());
+        Assertions.assertEquals(0, rawSender.getLostCount());
+    }
+
+    @Test
+    void testLostWhileNotWorking() {
+        // Event sender not started
+        rawSender.connect();
+        rawSender.send(new ProducerRecord<>("raw-events", "key", ByteBuffer.wrap(new byte[]{1})));
+
+        eventSender.start();
+        eventSender.pause();
+        rawSender.send(new ProducerRecord<>("raw-events", "key", ByteBuffer.wrap(new byte[]{2})));
+
+        Assertions.assertEquals(0, rawProducer.history().size());
+        Assertions.assertEquals(2, rawSender.getLostCount());
+    }
+
+    @Test
+    void testProducerCreationFailure() {
+        eventSender.start();
+        rawSender = new RawEventSender(() -> {
+            throw new KafkaException("invalid configuration");
+        }, eventSender, "raw-events", null, errorLogger);
+        rawSender.connect();
+        rawSender.send(new ProducerRecord<>("raw-events", "key", ByteBuffer.wrap(new byte[]{1})));
+        Assertions.assertEquals(1, rawSender.getLostCount());
+    }
+
+    @Test
+    void testNoProducerAfterClose() {
+        rawSender.close(Duration.ZERO);
+        rawSender.connect();
+        eventSender.start();
+        rawSender.send(new ProducerRecord<>("raw-events", "key", ByteBuffer.wrap(new byte[]{1})));
+
+        Assertions.assertEquals(0, rawProducer.history().size());
+        Assertions.assertFalse(rawProducer.closed());
+    }
+}
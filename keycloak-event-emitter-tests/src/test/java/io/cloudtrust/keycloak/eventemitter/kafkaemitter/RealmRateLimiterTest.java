@@ -0,0 +1,98 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+
+import java.util.List;
+import java.util.Map;
+
+class RealmRateLimiterTest {
+    private long now = 1000L;
+
+    @Test
+    void testTokenBucket() {
+        RealmRateLimiter limiter = createLimiter(new RealmRateLimiter.Limit(10, 3), Map.of(), 10);
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertTrue(limiter.tryAcquire(createEvent("realm1", EventType.LOGIN)));
+        }
+        Assertions.assertFalse(limiter.tryAcquire(createEvent("realm1", EventType.LOGIN)));
+        // Other realms have buckets of their own
+        Assertions.assertTrue(limiter.tryAcquire(createEvent("realm2", EventType.LOGIN)));
+
+        // One token every 100 ms, up to the burst
+        now += 100L;
+        Assertions.assertTrue(limiter.tryAcquire(createEvent("realm1", EventType.LOGIN)));
+        Assertions.assertFalse(limiter.tryAcquire(createEvent("realm1", EventType.LOGIN)));
+        now += 10000L;
+        for (int i = 0; i < 3; i++) {
+            Assertions.assertTrue(limiter.tryAcquire(createEvent("realm1", EventType.LOGIN)));
+        }
+        Assertions.assertFalse(limiter.tryAcquire(createEvent("realm1", EventType.LOGIN)));
+        Assertions.assertEquals(Map.of("realm1", 3L), limiter.getLimitedCounts());
+    }
+
+    @Test
+    void testRealmLimits() {
+        RealmRateLimiter limiter = createLimiter(null, Map.of("noisy", new RealmRateLimiter.Limit(1, 1)), 10);
+        for (int i = 0; i < 100; i++) {
+            Assertions.assertTrue(limiter.tryAcquire(createEvent("realm1", EventType.LOGIN)));
+        }
+        Assertions.assertTrue(limiter.tryAcquire(createEvent("noisy", EventType.LOGIN)));
+        Assertions.assertFalse(limiter.tryAcquire(createEvent("noisy", EventType.LOGIN)));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new RealmRateLimiter.Limit(0, 1));
+    }
+
+    @Test
+    void testSummaries() {
+        RealmRateLimiter limiter = createLimiter(new RealmRateLimiter.Limit(1, 1), Map.of(), 2);
+        Assertions.assertTrue(limiter.tryAcquire(createEvent("realm1", EventType.CLIENT_LOGIN_ERROR)));
+        for (int i = 0; i < 5; i++) {
+            Event event = createEvent("realm1", EventType.CLIENT_LOGIN_ERROR);
+            event.setTime(100L + i);
+            Assertions.assertFalse(limiter.tryAcquire(event));
+        }
+        Assertions.assertFalse(limiter.tryAcquire(createEvent("realm1", EventType.LOGIN)));
+        // Maximum number of summaries reached
+        Assertions.assertFalse(limiter.tryAcquire(createEvent("realm1", EventType.LOGOUT)));
+        Assertions.assertEquals(1, limiter.getDroppedCount());
+
+        List<Event> summaries = limiter.poll();
+        Assertions.assertEquals(2, summaries.size());
+        Event summary = summaries.stream().filter(e -> e.getType() == EventType.CLIENT_LOGIN_ERROR).findFirst().orElseThrow();
+        Assertions.assertEquals("realm1", summary.getRealmId());
+        Assertions.assertEquals("client", summary.getClientId());
+        Assertions.assertEquals("invalid_client", summary.getError());
+        Assertions.assertNull(summary.getUserId());
+        Assertions.assertEquals(100L, summary.getTime());
+        Assertions.assertEquals("true", summary.getDetails().get(RealmRateLimiter.RATE_LIMITED_DETAIL));
+        Assertions.assertEquals("5", summary.getDetails().get(EventCoalescer.COUNT_DETAIL));
+        Assertions.assertEquals("104", summary.getDetails().get(EventCoalescer.LAST_TIME_DETAIL));
+        Assertions.assertEquals(0, limiter.getSummariesCount());
+        Assertions.assertTrue(limiter.poll().isEmpty());
+    }
+
+    private RealmRateLimiter createLimiter(RealmRateLimiter.Limit defaultLimit, Map<String, RealmRateLimiter.Limit> realmLimits,
+                                           int maxSummaries) {
+        return new RealmRateLimiter(defaultLimit, realmLimits, maxSummaries) {
+            @Override
+            protected long timeGen() {
+                return now;
+            }
+        };
+    }
+
+    private static Event createEvent(String realmId, EventType type) {
+        Event event = new Event();
+        event.setTime(100L);
+        event.setType(type);
+        event.setRealmId(realmId);
+        event.setClientId("client");
+        event.setUserId("user");
+        if (type == EventType.CLIENT_LOGIN_ERROR) {
+            event.setError("invalid_client");
+        }
+        return event;
+    }
+}
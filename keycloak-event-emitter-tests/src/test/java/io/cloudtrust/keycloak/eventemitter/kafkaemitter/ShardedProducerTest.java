@@ -0,0 +1,88 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+class ShardedProducerTest {
+    private final List<MockProducer<String, String>> producers = new ArrayList<>();
+
+    @Test
+    void testShardingByKey() {
+        ShardedProducer producer = createProducer(4, ShardedProducer.Sharding.KEY);
+        for (int i = 0; i < 1000; i++) {
+            producer.send(new ProducerRecord<>("topic", "user" + (i % 100), "value" + i), null);
+        }
+        // Each key always goes to the same producer
+        for (MockProducer<String, String> mockProducer : producers) {
+            for (ProducerRecord<String, String> record : mockProducer.history()) {
+                producers.stream().filter(p -> p != mockProducer)
+                        .forEach(p -> Assertions.assertTrue(p.history().stream().noneMatch(r -> r.key().equals(record.key()))));
+            }
+        }
+        long[] sendCounts = producer.getSendCounts();
+        Assertions.assertEquals(1000, sendCounts[0] + sendCounts[1] + sendCounts[2] + sendCounts[3]);
+        for (int i = 0; i < 4; i++) {
+            Assertions.assertEquals(producers.get(i).history().size(), sendCounts[i]);
+            Assertions.assertTrue(sendCounts[i] > 0);
+        }
+    }
+
+    @Test
+    void testShardingByThread() throws InterruptedException {
+        ShardedProducer producer = createProducer(2, ShardedProducer.Sharding.THREAD);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        for (int i = 0; i < 2; i++) {
+            executor.submit(() -> {
+                for (int j = 0; j < 10; j++) {
+                    producer.send(new ProducerRecord<>("topic", "user" + j, "value"), null);
+                }
+            });
+        }
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+        // Two consecutive threads get distinct producers
+        Assertions.assertEquals(10, producers.get(0).history().size());
+        Assertions.assertEquals(10, producers.get(1).history().size());
+    }
+
+    @Test
+    void testCloseAll() {
+        ShardedProducer producer = createProducer(3, ShardedProducer.Sharding.KEY);
+        producer.flush();
+        producer.close(Duration.ofSeconds(1));
+        producers.forEach(p -> Assertions.assertTrue(p.closed()));
+    }
+
+    @Test
+    void testCreationFailure() {
+        Assertions.assertThrows(KafkaException.class, () -> new ShardedProducer(3, ShardedProducer.Sharding.KEY, index -> {
+            if (index == 2) {
+                throw new KafkaException("unreachable");
+            }
+            MockProducer<String, String> mockProducer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+            producers.add(mockProducer);
+            return mockProducer;
+        }));
+        Assertions.assertEquals(2, producers.size());
+        producers.forEach(p -> Assertions.assertTrue(p.closed()));
+    }
+
+    private ShardedProducer createProducer(int producerCount, ShardedProducer.Sharding sharding) {
+        return new ShardedProducer(producerCount, sharding, index -> {
+            MockProducer<String, String> mockProducer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+            producers.add(mockProducer);
+            return mockProducer;
+        });
+    }
+}
@@ -0,0 +1,45 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class ThroughputMeterTest {
+    @Test
+    void testRateOverCompleteSeconds() {
+        StaticTimeMeter meter = new StaticTimeMeter(2);
+        for (int i = 0; i < 10; i++) {
+            meter.record();
+        }
+        // The current second is not counted
+        Assertions.assertEquals(0.0, meter.getRate());
+
+        meter.time += 1000L;
+        for (int i = 0; i < 6; i++) {
+            meter.record();
+        }
+        Assertions.assertEquals(5.0, meter.getRate());
+
+        meter.time += 1000L;
+        Assertions.assertEquals(8.0, meter.getRate());
+
+        // Slots are reused once out of the window
+        meter.time += 1000L;
+        meter.record();
+        Assertions.assertEquals(3.0, meter.getRate());
+        meter.time += 2000L;
+        Assertions.assertEquals(0.5, meter.getRate());
+    }
+
+    static class StaticTimeMeter extends ThroughputMeter {
+        long time = 1_700_000_000_000L;
+
+        StaticTimeMeter(int windowSeconds) {
+            super(windowSeconds);
+        }
+
+        @Override
+        protected long timeGen() {
+            return time;
+        }
+    }
+}
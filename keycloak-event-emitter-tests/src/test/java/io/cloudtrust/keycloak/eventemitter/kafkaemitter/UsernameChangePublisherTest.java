@@ -0,0 +1,162 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.Details;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+class UsernameChangePublisherTest {
+    private static final String USER_ID = "394b0730-628f-11ec-9211-0242ac120005";
+    private static final String REALM_ID = "realm-id";
+
+    private final KafkaEventSender sender = Mockito.mock(KafkaEventSender.class);
+    private final UsernameChangePublisher publisher = new UsernameChangePublisher("test-username");
+
+    @Test
+    void testLastChangeIsPublished() {
+        publisher.onEvent(createAdminEvent(OperationType.CREATE, "{\"username\":\"first\"}"));
+        publisher.onEvent(createAdminEvent(OperationType.UPDATE, "{\"username\":\"second\"}"));
+        Assertions.assertEquals(1, publisher.getPendingChangesCount());
+
+        Assertions.assertEquals(1, publisher.publish(sender));
+        Assertions.assertEquals("second", captureRecords(1).get(0).value());
+        Assertions.assertEquals(0, publisher.publish(sender));
+    }
+
+    @Test
+    void testDeletedUserIsPublishedAsTombstone() {
+        publisher.onEvent(createAdminEvent(OperationType.DELETE, null));
+
+        Assertions.assertEquals(1, publisher.publish(sender));
+        Assertions.assertNull(captureRecords(1).get(0).value());
+    }
+
+    @Test
+    void testRegisterEvent() {
+        publisher.onEvent(createEvent(EventType.REGISTER, Details.USERNAME, "registered"), null);
+
+        Assertions.assertEquals(1, publisher.publish(sender));
+        Assertions.assertEquals(USER_ID, captureRecords(1).get(0).key());
+    }
+
+    @Test
+    void testRenameEvent() {
+        publisher.onEvent(createEvent(EventType.UPDATE_PROFILE, UsernameChangePublisher.UPDATED_USERNAME, "renamed"), null);
+
+        Assertions.assertEquals(1, publisher.publish(sender));
+        Assertions.assertEquals("renamed", captureRecords(1).get(0).value());
+    }
+
+    @Test
+    void testEmailUpdateWithEmailAsUsername() {
+        Event event = createEvent(EventType.UPDATE_EMAIL, Details.UPDATED_EMAIL, "New.Address@example.com");
+
+        publisher.onEvent(event, createSession(false));
+        Assertions.assertEquals(0, publisher.getPendingChangesCount());
+
+        publisher.onEvent(event, createSession(true));
+        Assertions.assertEquals(1, publisher.publish(sender));
+        Assertions.assertEquals("new.address@example.com", captureRecords(1).get(0).value());
+    }
+
+    @Test
+    void testBootstrap() {
+        List<UserModel> users = IntStream.range(0, 1500).mapToObj(i -> {
+            UserModel user = Mockito.mock(UserModel.class);
+            Mockito.when(user.getId()).thenReturn("id" + i);
+            Mockito.when(user.getUsername()).thenReturn("user" + i);
+            return user;
+        }).toList();
+        KeycloakSessionFactory sessionFactory = Mockito.mock(KeycloakSessionFactory.class, Answers.RETURNS_DEEP_STUBS);
+        KeycloakSession session = sessionFactory.create();
+        RealmModel realm = Mockito.mock(RealmModel.class);
+        Mockito.when(session.realms().getRealm(REALM_ID)).thenReturn(realm);
+        Mockito.when(session.realms().getRealm("unknown")).thenReturn(null);
+        Mockito.when(session.users().searchForUserStream(ArgumentMatchers.eq(realm), ArgumentMatchers.anyMap(),
+                ArgumentMatchers.anyInt(), ArgumentMatchers.anyInt())).thenAnswer(invocation -> {
+            int first = invocation.getArgument(2);
+            int max = invocation.getArgument(3);
+            return users.subList(Math.min(first, users.size()), Math.min(first + max, users.size())).stream();
+        });
+        MockProducer<String, String> producer = new MockProducer<>(true, new StringSerializer(), new StringSerializer());
+
+        Assertions.assertEquals(1500, publisher.bootstrap(sessionFactory, REALM_ID, producer));
+        Assertions.assertEquals(1500, producer.history().size());
+        ProducerRecord<String, String> last = producer.history().get(1499);
+        Assertions.assertEquals("test-username", last.topic());
+        Assertions.assertEquals("id1499", last.key());
+        Assertions.assertEquals("user1499", last.value());
+
+        // Unknown realm
+        Assertions.assertEquals(0, publisher.bootstrap(sessionFactory, "unknown", producer));
+    }
+
+    @Test
+    void testIgnoredEvents() {
+        // No representation
+        publisher.onEvent(createAdminEvent(OperationType.UPDATE, null));
+        // Not a user
+        AdminEvent clientEvent = createAdminEvent(OperationType.UPDATE, "{\"username\":\"client\"}");
+        clientEvent.setResourceType(ResourceType.CLIENT);
+        publisher.onEvent(clientEvent);
+        // Failed operation
+        AdminEvent failedEvent = createAdminEvent(OperationType.UPDATE, "{\"username\":\"failed\"}");
+        failedEvent.setError("error");
+        publisher.onEvent(failedEvent);
+
+        Assertions.assertEquals(0, publisher.getPendingChangesCount());
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<ProducerRecord<String, String>> captureRecords(int count) {
+        ArgumentCaptor<ProducerRecord<String, String>> captor = ArgumentCaptor.forClass(ProducerRecord.class);
+        Mockito.verify(sender, Mockito.times(count)).send(captor.capture());
+        return captor.getAllValues();
+    }
+
+    private Event createEvent(EventType type, String detail, String value) {
+        Event event = new Event();
+        event.setType(type);
+        event.setRealmId(REALM_ID);
+        event.setUserId(USER_ID);
+        Map<String, String> details = new HashMap<>();
+        details.put(detail, value);
+        event.setDetails(details);
+        return event;
+    }
+
+    private KeycloakSession createSession(boolean emailAsUsername) {
+        KeycloakSession session = Mockito.mock(KeycloakSession.class, Answers.RETURNS_DEEP_STUBS);
+        Mockito.when(session.realms().getRealm(REALM_ID).isRegistrationEmailAsUsername()).thenReturn(emailAsUsername);
+        return session;
+    }
+
+    private AdminEvent createAdminEvent(OperationType operationType, String representation) {
+        AdminEvent event = new AdminEvent();
+        event.setResourceType(ResourceType.USER);
+        event.setOperationType(operationType);
+        event.setResourcePath("users/" + USER_ID);
+        event.setRepresentation(representation);
+        return event;
+    }
+}
@@ -0,0 +1,300 @@
+package io.cloudtrust.keycloak.eventemitter.loadtest;
+
+import io.cloudtrust.keycloak.eventemitter.kafkaemitter.EventPriority;
+import io.cloudtrust.keycloak.eventemitter.kafkaemitter.EventSpillStore;
+import io.cloudtrust.keycloak.eventemitter.kafkaemitter.KafkaEventEmitterProviderFactory;
+import io.cloudtrust.keycloak.eventemitter.kafkaemitter.PendingEventBuffer;
+import io.cloudtrust.keycloak.eventemitter.tracing.LatencyHistogram;
+import org.apache.kafka.clients.producer.Producer;
+import org.jboss.logging.Logger;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.keycloak.Config;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.AuthDetails;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmProvider;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the emitter, as created by its factory, from many threads against a {@link FakeProducer}, and reports the
+ * throughput, the latency of onEvent, the drops and the memory used. Excluded from the default build, run it with:
+ * <pre>
+ * mvn test -Pload-test -Dloadtest.threads=32 -Dloadtest.latencyMs=20 -Dloadtest.outageStartMs=5000
+ * </pre>
+ * Parameters are the loadtest.* system properties read below; emitter parameters can be overridden with
+ * loadtest.config.&lt;parameter&gt;, e.g. -Dloadtest.config.bufferCapacity=100000.
+ * The producer supervision is not exercised: the health checks are disabled, the fake producer never failing as a
+ * whole.
+ * After the shutdown, the test checks that every event has been acknowledged, failed, dropped from the full buffer or
+ * spilled to disk. This accounting is skipped when the emitter merges, drops or adds records (coalescing,
+ * deduplication, rate limiting, dead letters, username publication) or may lose emissions still being enriched on
+ * shutdown (asynchronous enrichment); filters must not exclude the generated events.
+ */
+@Tag("load")
+class EmitterLoadTest {
+    private static final Logger logger = Logger.getLogger(EmitterLoadTest.class);
+    private static final String CONFIG_PREFIX = "loadtest.config.";
+
+    private final int threads = Integer.getInteger("loadtest.threads", 16);
+    private final long durationMillis = Long.getLong("loadtest.durationMs", 10000L);
+    private final long latencyMillis = Long.getLong("loadtest.latencyMs", 5L);
+    private final double errorRate = Double.parseDouble(System.getProperty("loadtest.errorRate", "0.001"));
+    private final int maxInFlight = Integer.getInteger("loadtest.maxInFlight", 10000);
+    private final long maxBlockMillis = Long.getLong("loadtest.maxBlockMs", 100L);
+    private final long outageStartMillis = Long.getLong("loadtest.outageStartMs", -1L);
+    private final long outageDurationMillis = Long.getLong("loadtest.outageDurationMs", 3000L);
+    private final int adminEventRatio = Integer.getInteger("loadtest.adminEventRatio", 20);
+    private final int userCount = Integer.getInteger("loadtest.users", 1000);
+
+    private final List<FakeProducer> producers = new ArrayList<>();
+    private final LatencyHistogram onEventLatencies = new LatencyHistogram();
+    private final AtomicLong emittedCount = new AtomicLong();
+    private final List<String> userIds = new ArrayList<>();
+
+    @TempDir
+    Path spillDirectory;
+
+    @Test
+    void runLoad() throws InterruptedException {
+        for (int i = 0; i < userCount; i++) {
+            userIds.add(UUID.randomUUID().toString());
+        }
+        KafkaEventEmitterProviderFactory factory = new KafkaEventEmitterProviderFactory() {
+            @Override
+            protected Producer<String, String> createProducer(Properties producerProperties) {
+                FakeProducer producer = new FakeProducer(latencyMillis, errorRate, maxInFlight, maxBlockMillis);
+                synchronized (producers) {
+                    producers.add(producer);
+                }
+                return producer;
+            }
+        };
+        factory.init(createConfig());
+        factory.postInit(Mockito.mock(KeycloakSessionFactory.class));
+        EventListenerProvider provider = factory.create(createSession());
+
+        long start = System.currentTimeMillis();
+        long end = start + durationMillis;
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            workers.add(Thread.ofPlatform().name("load-" + i).start(() -> emitUntil(provider, end)));
+        }
+        if (outageStartMillis >= 0) {
+            simulateOutage(start);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.currentTimeMillis() - start;
+
+        Map<String, String> info = factory.getOperationalInfo();
+        factory.close();
+        report(elapsed, info);
+        checkAccounting(factory.getOperationalInfo());
+    }
+
+    /**
+     * Every event ends acknowledged, failed, dropped or spilled. The records failed while closing are spilled too, so
+     * they are only counted once.
+     */
+    private void checkAccounting(Map<String, String> info) {
+        if (!"none".equals(info.get("Username topic")) || Boolean.parseBoolean(info.get("Coalescing"))
+                || Boolean.parseBoolean(info.get("Deduplication")) || Boolean.parseBoolean(info.get("Rate limiting"))
+                || Boolean.parseBoolean(info.get("Dead letters")) || Boolean.parseBoolean(info.get("Asynchronous enrichment"))) {
+            logger.info("Accounting not checked, the emitter merges, drops or adds records");
+            return;
+        }
+        long acknowledged = 0;
+        long failed = 0;
+        Set<String> failedValues = new HashSet<>();
+        synchronized (producers) {
+            for (FakeProducer producer : producers) {
+                acknowledged += producer.getAcknowledgedCount();
+                failed += producer.getFailedCount();
+                failedValues.addAll(producer.getFailedValues());
+            }
+        }
+        long dropped = 0;
+        for (EventPriority priority : EventPriority.values()) {
+            dropped += Long.parseLong(info.get("Dropped events - " + priority));
+        }
+        List<PendingEventBuffer.PendingEvent> spilled = new EventSpillStore(Path.of(info.get("Spill directory"))).readAll();
+        long failedThenSpilled = spilled.stream().filter(event -> failedValues.contains(event.record().value())).count();
+
+        Assertions.assertEquals(0, Integer.parseInt(info.get("Pending events")));
+        Assertions.assertEquals(emittedCount.get(), acknowledged + failed + dropped + spilled.size() - failedThenSpilled,
+                String.format("acknowledged=%d, failed=%d, dropped=%d, spilled=%d, failed then spilled=%d",
+                        acknowledged, failed, dropped, spilled.size(), failedThenSpilled));
+    }
+
+    private void emitUntil(EventListenerProvider provider, long end) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (System.currentTimeMillis() < end) {
+            long start = System.nanoTime();
+            if (random.nextInt(100) < adminEventRatio) {
+                provider.onEvent(createAdminEvent(random), false);
+            } else {
+                provider.onEvent(createEvent(random));
+            }
+            onEventLatencies.record(System.nanoTime() - start);
+            emittedCount.incrementAndGet();
+        }
+    }
+
+    private void simulateOutage(long start) throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(Math.max(0L, start + outageStartMillis - System.currentTimeMillis()));
+        setUnavailable(true);
+        logger.infof("Kafka outage started");
+        TimeUnit.MILLISECONDS.sleep(outageDurationMillis);
+        setUnavailable(false);
+        logger.infof("Kafka outage ended");
+    }
+
+    private void setUnavailable(boolean unavailable) {
+        synchronized (producers) {
+            producers.forEach(producer -> producer.setUnavailable(unavailable));
+        }
+    }
+
+    private void report(long elapsed, Map<String, String> info) {
+        long acknowledged = 0;
+        long failed = 0;
+        long rejected = 0;
+        synchronized (producers) {
+            for (FakeProducer producer : producers) {
+                acknowledged += producer.getAcknowledgedCount();
+                failed += producer.getFailedCount();
+                rejected += producer.getRejectedCount();
+            }
+        }
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        long directMemory = ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class).stream()
+                .filter(pool -> "direct".equals(pool.getName())).mapToLong(BufferPoolMXBean::getMemoryUsed).sum();
+
+        StringBuilder report = new StringBuilder("Load test report\n");
+        report.append(String.format("  threads=%d, duration=%d ms, latency=%d ms, errorRate=%s, maxInFlight=%d%n",
+                threads, elapsed, latencyMillis, errorRate, maxInFlight));
+        report.append(String.format("  events=%d, throughput=%d events/s%n", emittedCount.get(), emittedCount.get() * 1000L / Math.max(1L, elapsed)));
+        report.append(String.format("  onEvent latency (us): p50=%d, p99=%d, p999=%d, max=%d%n",
+                toMicros(onEventLatencies.getValueAtPercentile(50.0)), toMicros(onEventLatencies.getValueAtPercentile(99.0)),
+                toMicros(onEventLatencies.getValueAtPercentile(99.9)), toMicros(onEventLatencies.getMax())));
+        report.append(String.format("  producer: acknowledged=%d, failed=%d, rejected=%d, producers created=%d%n",
+                acknowledged, failed, rejected, producers.size()));
+        report.append(String.format("  memory: heap used=%d MB, direct=%d MB%n", heap.getUsed() >> 20, directMemory >> 20));
+        info.forEach((key, value) -> {
+            if (key.startsWith("Pending") || key.startsWith("Dropped") || key.startsWith("Off-heap")
+                    || key.startsWith("Circuit") || key.startsWith("Coalescing") || key.equals("State")) {
+                report.append("  ").append(key).append(": ").append(value).append('\n');
+            }
+        });
+        logger.info(report);
+    }
+
+    private Config.Scope createConfig() {
+        Map<String, String> config = new HashMap<>();
+        config.put("eventTopic", "load-events");
+        config.put("adminEventTopic", "load-admin-events");
+        config.put("clientId", "load-test");
+        config.put("bootstrapServers", "localhost:9092");
+        config.put("securityProtocol", "PLAINTEXT");
+        config.put("saslJaasConfig", "");
+        config.put("saslOauthbearerTokenEndpointUrl", "");
+        config.put("saslMechanism", "OAUTHBEARER");
+        config.put("keycloakId", "1");
+        config.put("datacenterId", "1");
+        config.put("bufferCapacity", "10000");
+        config.put("maxBlockMs", Long.toString(maxBlockMillis));
+        config.put("healthCheckIntervalMs", Long.toString(TimeUnit.DAYS.toMillis(1)));
+        config.put("warmup", "false");
+        config.put("spillDirectory", spillDirectory.toString());
+        System.getProperties().stringPropertyNames().stream()
+                .filter(name -> name.startsWith(CONFIG_PREFIX))
+                .forEach(name -> config.put(name.substring(CONFIG_PREFIX.length()), System.getProperty(name)));
+
+        Config.Scope scope = Mockito.mock(Config.Scope.class);
+        Mockito.when(scope.get(ArgumentMatchers.anyString())).thenAnswer(invocation -> config.get(invocation.<String>getArgument(0)));
+        Mockito.when(scope.getInt(ArgumentMatchers.anyString())).thenAnswer(invocation -> {
+            String value = config.get(invocation.<String>getArgument(0));
+            return value != null ? Integer.valueOf(value) : null;
+        });
+        Mockito.when(scope.getLong(ArgumentMatchers.anyString())).thenAnswer(invocation -> {
+            String value = config.get(invocation.<String>getArgument(0));
+            return value != null ? Long.valueOf(value) : null;
+        });
+        Mockito.when(scope.getBoolean(ArgumentMatchers.anyString(), ArgumentMatchers.anyBoolean())).thenAnswer(invocation -> {
+            String value = config.get(invocation.<String>getArgument(0));
+            return value != null ? Boolean.valueOf(value) : invocation.<Boolean>getArgument(1);
+        });
+        return scope;
+    }
+
+    /**
+     * Stub only, so that the invocations from the load threads are not recorded. Users are not found in the store.
+     */
+    private KeycloakSession createSession() {
+        KeycloakSession session = Mockito.mock(KeycloakSession.class, Mockito.withSettings().stubOnly());
+        RealmProvider realms = Mockito.mock(RealmProvider.class, Mockito.withSettings().stubOnly());
+        Mockito.when(session.realms()).thenReturn(realms);
+        return session;
+    }
+
+    private Event createEvent(ThreadLocalRandom random) {
+        Event event = new Event();
+        event.setTime(System.currentTimeMillis());
+        int draw = random.nextInt(100);
+        event.setType(draw < 60 ? EventType.REFRESH_TOKEN : draw < 90 ? EventType.LOGIN : EventType.LOGIN_ERROR);
+        event.setRealmId("load-realm");
+        event.setClientId("load-client");
+        event.setUserId(userIds.get(random.nextInt(userIds.size())));
+        event.setSessionId(event.getUserId());
+        event.setIpAddress("127.0.0.1");
+        if (event.getType() == EventType.LOGIN_ERROR) {
+            event.setError("invalid_user_credentials");
+        }
+        return event;
+    }
+
+    private AdminEvent createAdminEvent(ThreadLocalRandom random) {
+        AdminEvent adminEvent = new AdminEvent();
+        adminEvent.setTime(System.currentTimeMillis());
+        adminEvent.setRealmId("load-realm");
+        adminEvent.setOperationType(OperationType.UPDATE);
+        adminEvent.setResourceType(ResourceType.USER);
+        adminEvent.setResourcePath("users/" + userIds.get(random.nextInt(userIds.size())));
+        AuthDetails authDetails = new AuthDetails();
+        authDetails.setRealmId("master");
+        authDetails.setUserId(userIds.get(0));
+        adminEvent.setAuthDetails(authDetails);
+        return adminEvent;
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,179 @@
+package io.cloudtrust.keycloak.eventemitter.loadtest;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.MockProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.InterruptException;
+import org.apache.kafka.common.errors.NetworkException;
+import org.apache.kafka.common.errors.TimeoutException;
+import org.apache.kafka.common.serialization.StringSerializer;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for a Kafka producer and its brokers, with injectable latency, errors and back-pressure:
+ * <ul>
+ *     <li>records are acknowledged after a random latency, between 0 and twice the configured one,</li>
+ *     <li>a ratio of the records is failed asynchronously, like expired batches,</li>
+ *     <li>when the in-flight records reach the limit, like a full accumulator, or when the brokers are unavailable,
+ *     send blocks for max.block.ms then throws a TimeoutException.</li>
+ * </ul>
+ * Unlike MockProducer, the records are not kept, so that long runs don't fill the heap.
+ */
+public class FakeProducer extends MockProducer<String, String> {
+    private final long latencyMillis;
+    private final double errorRate;
+    private final long maxBlockMillis;
+    private final Semaphore inFlight;
+    private final ScheduledExecutorService brokers = Executors.newScheduledThreadPool(2, r -> {
+        Thread thread = new Thread(r, "fake-kafka-broker");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final Set<Completion> pendingCompletions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong acknowledgedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    // Values are unique per event, failed records being few
+    private final Set<String> failedValues = ConcurrentHashMap.newKeySet();
+
+    private volatile boolean unavailable;
+
+    /**
+     * @param latencyMillis  mean acknowledgement latency
+     * @param errorRate      ratio of the records failed asynchronously, from 0 to 1
+     * @param maxInFlight    maximum number of records waiting for their acknowledgement
+     * @param maxBlockMillis maximum time send blocks, like max.block.ms
+     */
+    public FakeProducer(long latencyMillis, double errorRate, int maxInFlight, long maxBlockMillis) {
+        super(false, new StringSerializer(), new StringSerializer());
+        this.latencyMillis = latencyMillis;
+        this.errorRate = errorRate;
+        this.maxBlockMillis = maxBlockMillis;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * Simulates an outage of the brokers: sends block then fail until the brokers are available again.
+     */
+    public void setUnavailable(boolean unavailable) {
+        this.unavailable = unavailable;
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, String> record, Callback callback) {
+        try {
+            if (unavailable) {
+                Thread.sleep(maxBlockMillis);
+                rejectedCount.incrementAndGet();
+                throw new TimeoutException("Topic " + record.topic() + " not present in metadata after " + maxBlockMillis + " ms.");
+            }
+            if (!inFlight.tryAcquire(maxBlockMillis, TimeUnit.MILLISECONDS)) {
+                rejectedCount.incrementAndGet();
+                throw new TimeoutException("Failed to allocate memory within the configured max blocking time " + maxBlockMillis + " ms.");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptException(e);
+        }
+        Completion completion = new Completion(record, callback);
+        pendingCompletions.add(completion);
+        long latency = latencyMillis > 0 ? ThreadLocalRandom.current().nextLong(2 * latencyMillis + 1) : 0L;
+        brokers.schedule(() -> completion.complete(ThreadLocalRandom.current().nextDouble() < errorRate
+                ? new NetworkException("Injected broker error") : null), latency, TimeUnit.MILLISECONDS);
+        return completion.future;
+    }
+
+    /**
+     * Waits for the in-flight records until the timeout, then fails the remaining ones.
+     */
+    @Override
+    public void close(Duration timeout) {
+        brokers.shutdown();
+        try {
+            brokers.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        brokers.shutdownNow();
+        try {
+            // No acknowledgement after close
+            brokers.awaitTermination(1L, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pendingCompletions.forEach(completion -> completion.complete(new KafkaException("Producer is closed forcefully.")));
+        super.close(timeout);
+    }
+
+    public long getAcknowledgedCount() {
+        return acknowledgedCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return the values of the records failed asynchronously, including the ones failed on close
+     */
+    public Set<String> getFailedValues() {
+        return failedValues;
+    }
+
+    /**
+     * @return the number of records which could not be sent, the producer blocking too long
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private class Completion {
+        private final ProducerRecord<String, String> record;
+        private final Callback callback;
+        private final CompletableFuture<RecordMetadata> future = new CompletableFuture<>();
+        private final AtomicBoolean done = new AtomicBoolean();
+
+        Completion(ProducerRecord<String, String> record, Callback callback) {
+            this.record = record;
+            this.callback = callback;
+        }
+
+        void complete(Exception exception) {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            pendingCompletions.remove(this);
+            inFlight.release();
+            RecordMetadata metadata = new RecordMetadata(new TopicPartition(record.topic(), 0), -1L, 0, System.currentTimeMillis(),
+                    record.key() != null ? record.key().length() : 0, record.value() != null ? record.value().length() : 0);
+            if (exception == null) {
+                acknowledgedCount.incrementAndGet();
+                future.complete(metadata);
+            } else {
+                failedCount.incrementAndGet();
+                if (record.value() != null) {
+                    failedValues.add(record.value());
+                }
+                future.completeExceptionally(exception);
+            }
+            if (callback != null) {
+                callback.onCompletion(metadata, exception);
+            }
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package io.cloudtrust.keycloak.eventemitter.snowflake;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class IdGeneratorConfigTest {
+    @Test
+    void testDefaultLayout() {
+        IdGeneratorConfig config = IdGeneratorConfig.DEFAULT;
+        Assertions.assertEquals(IdGeneratorConfig.TIMESTAMP_LEFT_SHIFT, config.getTimestampLeftShift());
+        Assertions.assertEquals(IdGeneratorConfig.SEQUENCE_MASK, config.getSequenceMask());
+        Assertions.assertEquals(41, config.getTimestampBits());
+        Assertions.assertEquals("1420070400000/41/2/5/15", config.toString());
+    }
+
+    @Test
+    void testDecodeCustomLayout() {
+        IdGeneratorConfig config = new IdGeneratorConfig(1700000000000L, 0, 3, 20);
+        long before = System.currentTimeMillis();
+        long id = new IdGenerator(config, 5, 0).nextValidId();
+
+        IdGeneratorConfig.DecodedId decodedId = config.decode(id);
+        Assertions.assertTrue(decodedId.timestamp() >= before);
+        Assertions.assertTrue(decodedId.timestamp() <= System.currentTimeMillis());
+        Assertions.assertEquals(0, decodedId.datacenterId());
+        Assertions.assertEquals(5, decodedId.keycloakId());
+        Assertions.assertEquals(0L, decodedId.sequence());
+    }
+
+    @Test
+    void testInvalidLayouts() {
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new IdGeneratorConfig(0L, 2, 5, 0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new IdGeneratorConfig(0L, -1, 5, 15));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new IdGeneratorConfig(0L, 4, 6, 15));
+        // Node ID out of the layout
+        IdGeneratorConfig config = new IdGeneratorConfig(0L, 0, 2, 20);
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new IdGenerator(config, 4, 0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> new IdGenerator(config, 0, 1));
+    }
+
+    @Test
+    void testFromString() {
+        IdGeneratorConfig config = new IdGeneratorConfig(1700000000000L, 1, 3, 18);
+        IdGeneratorConfig parsed = IdGeneratorConfig.fromString(config.toString());
+        Assertions.assertEquals(config.toString(), parsed.toString());
+        Assertions.assertThrows(IllegalArgumentException.class, () -> IdGeneratorConfig.fromString("1700000000000/40/1/3/18"));
+    }
+
+    @Test
+    void testFirstId() {
+        IdGeneratorConfig config = new IdGeneratorConfig(1700000000000L, 0, 3, 20);
+        long id = new IdGenerator(config, 7, 0).nextValidId();
+        long timestamp = config.decode(id).timestamp();
+        Assertions.assertTrue(config.firstId(timestamp) <= id);
+        Assertions.assertTrue(config.firstId(timestamp + 1) > id);
+        Assertions.assertEquals(0L, config.firstId(0L));
+    }
+
+    @Test
+    void testIdDecoder() {
+        long id = (1000L << IdGeneratorConfig.TIMESTAMP_LEFT_SHIFT) | (2L << IdGeneratorConfig.DATACENTER_ID_SHIFT)
+                | (7L << IdGeneratorConfig.KEYCLOAK_ID_SHIFT) | 3L;
+        Assertions.assertEquals(id + ": time=2015-01-01T00:00:01Z datacenterId=2 keycloakId=7 sequence=3",
+                IdDecoder.format(id, IdGeneratorConfig.DEFAULT));
+    }
+}
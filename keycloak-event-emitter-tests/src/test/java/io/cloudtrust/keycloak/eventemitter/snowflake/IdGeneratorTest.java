@@ -108,6 +108,35 @@ class IdGeneratorTest {
         assertThat(id3 & sequenceMask, is(2L));
     }
 
+    @Test
+    void testReserveIds() throws Exception {
+        final long sequenceMask = -1L ^ (-1L << 15);
+        final StaticTimeGenerator generator = new StaticTimeGenerator(0, 0);
+
+        final IdRange range1 = generator.reserve(3);
+        assertThat(range1.count(), is(3));
+        assertThat(range1.get(0) & sequenceMask, is(0L));
+        assertThat(range1.get(2) & sequenceMask, is(2L));
+        assertThat(generator.nextId() & sequenceMask, is(3L));
+
+        // Fills the sequence of the millisecond
+        final IdRange range2 = generator.reserve((int) sequenceMask - 3);
+        assertThat(range2.get(0) & sequenceMask, is(4L));
+        assertThat(range2.get(range2.count() - 1) & sequenceMask, is(sequenceMask));
+        assertThat(range2.get(0) >> 22, is(1L));
+
+        // Rolls over to the next millisecond
+        final IdRange range3 = generator.reserve(2);
+        assertThat(range3.get(0) >> 22, is(2L));
+        assertThat(range3.get(0) & sequenceMask, is(0L));
+        assertThat(range3.get(0) > range2.get(range2.count() - 1), is(true));
+        assertThat(generator.nextId() & sequenceMask, is(2L));
+
+        Assertions.assertThrows(IndexOutOfBoundsException.class, () -> range3.get(2));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> generator.reserve(0));
+        Assertions.assertThrows(IllegalArgumentException.class, () -> generator.reserve((int) sequenceMask + 2));
+    }
+
     class StaticTimeGenerator extends IdGenerator {
         long time = 1L;
 
@@ -119,5 +148,11 @@ class IdGeneratorTest {
         protected long timeGen() {
             return time + IdGeneratorConfig.START_EPOCH;
         }
+
+        @Override
+        protected long tilNextMillis(final long prevTimestamp) {
+            time = prevTimestamp - IdGeneratorConfig.START_EPOCH + 1;
+            return timeGen();
+        }
     }
 }
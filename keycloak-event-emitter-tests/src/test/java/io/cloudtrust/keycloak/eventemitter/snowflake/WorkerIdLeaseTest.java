@@ -0,0 +1,124 @@
+package io.cloudtrust.keycloak.eventemitter.snowflake;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.mockito.ArgumentMatchers;
+import org.mockito.Mockito;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+class WorkerIdLeaseTest {
+    private final Map<String, Map<String, String>> entries = new HashMap<>();
+    private SingleUseObjectProvider store;
+
+    @BeforeEach
+    @SuppressWarnings("unchecked")
+    public void init() {
+        // Cluster-wide store backed by a map, entries never expire
+        store = Mockito.mock(SingleUseObjectProvider.class);
+        Mockito.when(store.putIfAbsent(ArgumentMatchers.anyString(), ArgumentMatchers.anyLong()))
+                .thenAnswer(invocation -> entries.putIfAbsent(invocation.getArgument(0), Map.of()) == null);
+        Mockito.doAnswer(invocation -> entries.put(invocation.getArgument(0), invocation.getArgument(2)))
+                .when(store).put(ArgumentMatchers.anyString(), ArgumentMatchers.anyLong(), ArgumentMatchers.any(Map.class));
+        Mockito.when(store.get(ArgumentMatchers.anyString())).thenAnswer(invocation -> entries.get(invocation.<String>getArgument(0)));
+        Mockito.when(store.remove(ArgumentMatchers.anyString())).thenAnswer(invocation -> entries.remove(invocation.<String>getArgument(0)));
+    }
+
+    @Test
+    void testNodesLeaseDistinctWorkerIds() {
+        Set<String> workerIds = new HashSet<>();
+        for (int i = 0; i < 8; i++) {
+            WorkerIdLease lease = new WorkerIdLease(4, 2, 60L);
+            Assertions.assertTrue(lease.acquire(store));
+            Assertions.assertTrue(lease.getKeycloakId() < 4);
+            Assertions.assertTrue(lease.getDatacenterId() < 2);
+            workerIds.add(lease.getDatacenterId() + "/" + lease.getKeycloakId());
+        }
+        Assertions.assertEquals(8, workerIds.size());
+
+        // All worker IDs are leased
+        Assertions.assertFalse(new WorkerIdLease(4, 2, 60L).acquire(store));
+    }
+
+    @Test
+    void testReleasedWorkerIdIsLeasedAgain() {
+        WorkerIdLease lease = new WorkerIdLease(1, 1, 60L);
+        Assertions.assertTrue(lease.acquire(store));
+        WorkerIdLease otherLease = new WorkerIdLease(1, 1, 60L);
+        Assertions.assertFalse(otherLease.acquire(store));
+
+        lease.release(store);
+        Assertions.assertFalse(lease.isLeased());
+        Assertions.assertTrue(otherLease.acquire(store));
+    }
+
+    @Test
+    void testRenewal() {
+        WorkerIdLease lease = new WorkerIdLease(1, 1, 60L);
+        Assertions.assertTrue(lease.acquire(store));
+        Assertions.assertTrue(lease.renew(store));
+
+        // Lease expired, worker ID still free
+        entries.clear();
+        Assertions.assertTrue(lease.renew(store));
+
+        // Lease expired, worker ID leased by another node
+        entries.clear();
+        Assertions.assertTrue(new WorkerIdLease(1, 1, 60L).acquire(store));
+        Assertions.assertFalse(lease.renew(store));
+        Assertions.assertFalse(lease.isLeased());
+    }
+
+    @Test
+    void testLateRenewalDoesNotOverwriteOtherClaim() {
+        StaticTimeLease lease = new StaticTimeLease();
+        Assertions.assertTrue(lease.acquire(store));
+        String key = WorkerIdLease.KEY_PREFIX + 0;
+
+        // Renewed in time
+        lease.time += 30000L;
+        Assertions.assertTrue(lease.renew(store));
+
+        // Renewal delayed: the entry expires and another node claims it right after it has been read
+        lease.time += 50000L;
+        Mockito.when(store.get(key)).thenAnswer(invocation -> {
+            Map<String, String> notes = entries.get(key);
+            entries.put(key, Map.of(WorkerIdLease.OWNER_NOTE, "other-node"));
+            return notes;
+        });
+        Assertions.assertFalse(lease.renew(store));
+        Assertions.assertFalse(lease.isLeased());
+        Assertions.assertEquals("other-node", entries.get(key).get(WorkerIdLease.OWNER_NOTE));
+    }
+
+    @Test
+    void testClaimWithoutOwnerIsNotRenewed() {
+        WorkerIdLease lease = new WorkerIdLease(1, 1, 60L);
+        Assertions.assertTrue(lease.acquire(store));
+
+        // Lease expired, worker ID claimed by another node which didn't write its owner note yet
+        entries.clear();
+        Assertions.assertTrue(store.putIfAbsent(WorkerIdLease.KEY_PREFIX + 0, 60L));
+        Assertions.assertFalse(lease.renew(store));
+        Assertions.assertFalse(lease.isLeased());
+        Assertions.assertEquals(Map.of(), entries.get(WorkerIdLease.KEY_PREFIX + 0));
+    }
+
+    static class StaticTimeLease extends WorkerIdLease {
+        long time = 1L;
+
+        StaticTimeLease() {
+            super(1, 1, 60L);
+        }
+
+        @Override
+        protected long timeGen() {
+            return time;
+        }
+    }
+}
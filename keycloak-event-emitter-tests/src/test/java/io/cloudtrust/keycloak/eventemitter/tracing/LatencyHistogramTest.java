@@ -0,0 +1,40 @@
+package io.cloudtrust.keycloak.eventemitter.tracing;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+class LatencyHistogramTest {
+    @Test
+    void testBucketBoundaries() {
+        for (long value : new long[]{0L, 1L, 31L, 32L, 33L, 63L, 64L, 1000L, 123456789L, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.indexOf(value);
+            Assertions.assertTrue(LatencyHistogram.lowestValueAt(index) <= value, Long.toString(value));
+            Assertions.assertTrue(LatencyHistogram.highestValueAt(index) >= value, Long.toString(value));
+        }
+        Assertions.assertEquals(31, LatencyHistogram.highestValueAt(LatencyHistogram.indexOf(31L)));
+    }
+
+    @Test
+    void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assertions.assertEquals(0L, histogram.getValueAtPercentile(99.0));
+
+        for (long value = 1; value <= 10000; value++) {
+            histogram.record(value * 1000L);
+        }
+
+        Assertions.assertEquals(10000, histogram.getCount());
+        Assertions.assertEquals(10000000L, histogram.getMax());
+        assertClose(5000000L, histogram.getValueAtPercentile(50.0));
+        assertClose(9900000L, histogram.getValueAtPercentile(99.0));
+        Assertions.assertEquals(10000000L, histogram.getValueAtPercentile(100.0));
+
+        histogram.reset();
+        Assertions.assertEquals(0, histogram.getCount());
+        Assertions.assertEquals(0L, histogram.getMax());
+    }
+
+    private void assertClose(long expected, long actual) {
+        Assertions.assertTrue(Math.abs(actual - expected) <= expected / 32, expected + " expected, got " + actual);
+    }
+}
@@ -24,6 +24,7 @@ public final class AdminEvent extends Table {
   public static void ValidateVersion() { Constants.FLATBUFFERS_25_2_10(); }
   public static AdminEvent getRootAsAdminEvent(ByteBuffer _bb) { return getRootAsAdminEvent(_bb, new AdminEvent()); }
   public static AdminEvent getRootAsAdminEvent(ByteBuffer _bb, AdminEvent obj) { _bb.order(ByteOrder.LITTLE_ENDIAN); return (obj.__assign(_bb.getInt(_bb.position()) + _bb.position(), _bb)); }
+  public static boolean AdminEventBufferHasIdentifier(ByteBuffer _bb) { return __has_identifier(_bb, "KE02"); }
   public void __init(int _i, ByteBuffer _bb) { __reset(_i, _bb); }
   public AdminEvent __assign(int _i, ByteBuffer _bb) { __init(_i, _bb); return this; }
 
@@ -93,8 +94,8 @@ public final class AdminEvent extends Table {
     int o = builder.endTable();
     return o;
   }
-  public static void finishAdminEventBuffer(FlatBufferBuilder builder, int offset) { builder.finish(offset); }
-  public static void finishSizePrefixedAdminEventBuffer(FlatBufferBuilder builder, int offset) { builder.finishSizePrefixed(offset); }
+  public static void finishAdminEventBuffer(FlatBufferBuilder builder, int offset) { builder.finish(offset, "KE02"); }
+  public static void finishSizePrefixedAdminEventBuffer(FlatBufferBuilder builder, int offset) { builder.finishSizePrefixed(offset, "KE02"); }
 
   public static final class Vector extends BaseVector {
     public Vector __assign(int _vector, int _element_size, ByteBuffer _bb) { __reset(_vector, _element_size, _bb); return this; }
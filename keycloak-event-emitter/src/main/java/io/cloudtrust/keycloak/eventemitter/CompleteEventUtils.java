@@ -17,8 +17,11 @@ import java.util.regex.Pattern;
 
 /**
  * Utility class to complete attributes of Events and AdminEvents.
+ * When no session is given, the user store is not queried and only the attributes that don't require a lookup are set.
  */
 public class CompleteEventUtils {
+    private static final Pattern TARGET_USER_PATTERN = Pattern.compile(".*users/([0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12})$");
+
     public static void completeEventAttributes(KeycloakSession keycloakSession, Event event) {
         // add username if missing
         if (event.getDetails() == null) {
@@ -38,23 +41,34 @@ public class CompleteEventUtils {
             findUser(keycloakSession, extendedAuthDetails.getUserId(), extendedAuthDetails.getRealmId(), u -> extendedAuthDetails.setUsername(u.getUsername()));
         }
         // add username if resource is a user
-        String resourcePath = extendedAdminEvent.getResourcePath();
+        String userId = getTargetUserId(extendedAdminEvent.getResourcePath());
+        if (userId != null) {
+            extendedAdminEvent.getDetails().put("target_user_id", userId);
+            findUser(keycloakSession, userId, adminEvent.getRealmId(), u -> extendedAdminEvent.getDetails().put("target_username", u.getUsername()));
+        }
+
+        return extendedAdminEvent;
+    }
+
+    /**
+     * @param resourcePath resource path of an admin event
+     * @return the ID of the user targeted by the admin event, or null if the resource is not a user
+     */
+    public static String getTargetUserId(String resourcePath) {
         if (resourcePath != null && resourcePath.contains("users")) {
             // parse userID
-            String pattern = ".*users/([0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12})$";
-            Pattern r = Pattern.compile(pattern);
-            Matcher m = r.matcher(resourcePath);
+            Matcher m = TARGET_USER_PATTERN.matcher(resourcePath);
             if (m.matches()) {
-                String userId = m.group(1);
-                extendedAdminEvent.getDetails().put("target_user_id", userId);
-                findUser(keycloakSession, userId, adminEvent.getRealmId(), u -> extendedAdminEvent.getDetails().put("target_username", u.getUsername()));
+                return m.group(1);
             }
         }
-
-        return extendedAdminEvent;
+        return null;
     }
 
     private static void findUser(KeycloakSession keycloakSession, String userId, String realmId, Consumer<UserModel> whenUserFound) {
+        if (keycloakSession == null) {
+            return;
+        }
         RealmModel realm = keycloakSession.realms().getRealm(realmId);
         if (realm != null) {
             UserModel user = keycloakSession.users().getUserById(realm, userId);
@@ -0,0 +1,88 @@
+package io.cloudtrust.keycloak.eventemitter;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Encodes the details of an event as a vector of Tuple tables in a single pass over the map. The offsets of the tuples
+ * are collected in a scratch array reused from one event to the other, so that encoding doesn't allocate beyond the
+ * strings themselves. Entries with a null key are skipped; a null value is encoded as an absent value.
+ * When sorted, the tuples are ordered by key in UTF-8 byte order, which lets consumers binary search the details.
+ * Instances are not thread-safe.
+ */
+final class DetailsEncoder {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private int[] offsets = new int[INITIAL_CAPACITY];
+    private String[] keys = new String[INITIAL_CAPACITY];
+
+    /**
+     * @return the offset of the vector, or 0 if there are no details
+     */
+    int encode(FlatBufferBuilder builder, Map<String, String> details, boolean sorted) {
+        if (details == null) {
+            return 0;
+        }
+        ensureCapacity(details.size());
+        int count = 0;
+        if (sorted) {
+            for (String key : details.keySet()) {
+                if (key != null) {
+                    keys[count++] = key;
+                }
+            }
+            Arrays.sort(keys, 0, count, DetailsEncoder::compareUtf8);
+            for (int i = 0; i < count; i++) {
+                offsets[i] = createTuple(builder, keys[i], details.get(keys[i]));
+                // Don't retain the keys between events
+                keys[i] = null;
+            }
+        } else {
+            for (Map.Entry<String, String> entry : details.entrySet()) {
+                if (entry.getKey() != null) {
+                    offsets[count++] = createTuple(builder, entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        // Same layout as the generated createDetailsVector, which requires an array of the exact size
+        builder.startVector(4, count, 4);
+        for (int i = count - 1; i >= 0; i--) {
+            builder.addOffset(offsets[i]);
+        }
+        return builder.endVector();
+    }
+
+    /**
+     * Compares by code point, which is the order of the UTF-8 encoded strings.
+     */
+    static int compareUtf8(String s1, String s2) {
+        int i = 0;
+        int j = 0;
+        while (i < s1.length() && j < s2.length()) {
+            int c1 = s1.codePointAt(i);
+            int c2 = s2.codePointAt(j);
+            if (c1 != c2) {
+                return Integer.compare(c1, c2);
+            }
+            i += Character.charCount(c1);
+            j += Character.charCount(c2);
+        }
+        return Integer.compare(s1.length() - i, s2.length() - j);
+    }
+
+    private static int createTuple(FlatBufferBuilder builder, String key, String value) {
+        int keyOffset = builder.createString(key);
+        int valueOffset = value != null ? builder.createString(value) : 0;
+        return flatbuffers.events.Tuple.createTuple(builder, keyOffset, valueOffset);
+    }
+
+    private void ensureCapacity(int size) {
+        if (size > offsets.length) {
+            int capacity = Integer.highestOneBit(size - 1) << 1;
+            offsets = new int[capacity];
+            keys = new String[capacity];
+        }
+    }
+}
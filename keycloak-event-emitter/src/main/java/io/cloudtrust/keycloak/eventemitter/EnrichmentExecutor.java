@@ -0,0 +1,114 @@
+package io.cloudtrust.keycloak.eventemitter;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Runs the enrichment and the emission of events on virtual threads, so that slow user stores don't delay the
+ * request threads. Enrichment runs in its own Keycloak session and transaction, as the request session may already
+ * be closed. The number of concurrent enrichments is bounded: when no permit is available, or when the enrichment
+ * does not complete within the timeout, the event is emitted without enrichment.
+ */
+public class EnrichmentExecutor {
+    private static final Logger logger = Logger.getLogger(EnrichmentExecutor.class);
+
+    private final KeycloakSessionFactory sessionFactory;
+    private final Semaphore permits;
+    private final long timeoutMillis;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final AtomicLong saturatedCount = new AtomicLong();
+    private final AtomicLong timedOutCount = new AtomicLong();
+
+    public EnrichmentExecutor(KeycloakSessionFactory sessionFactory, int maxConcurrency, long timeoutMillis) {
+        this.sessionFactory = sessionFactory;
+        this.permits = new Semaphore(maxConcurrency);
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Enriches then emits an event asynchronously.
+     *
+     * @param enrichment returns the enriched event, using the given session to look up the user store
+     * @param fallback   returns the event without enrichment
+     * @param emission   emits the event
+     * @param <T>        type of the emitted event
+     */
+    public <T> void execute(Function<KeycloakSession, T> enrichment, Supplier<T> fallback, Consumer<T> emission) {
+        if (!permits.tryAcquire()) {
+            saturatedCount.incrementAndGet();
+            emission.accept(fallback.get());
+            return;
+        }
+        CompletableFuture<T> enriched = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    enriched.complete(KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, enrichment::apply));
+                } catch (RuntimeException e) {
+                    enriched.completeExceptionally(e);
+                } finally {
+                    // Released once the lookup is really over, even if the event was already emitted
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            emission.accept(fallback.get());
+            return;
+        }
+        enriched.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                .exceptionally(e -> {
+                    if (e instanceof TimeoutException) {
+                        timedOutCount.incrementAndGet();
+                    } else {
+                        logger.infof("Event enrichment failed, emitting it without enrichment: %s", e.getMessage());
+                    }
+                    return fallback.get();
+                })
+                .thenAcceptAsync(emission, executor)
+                .exceptionally(e -> {
+                    logger.errorv(e, "Asynchronous event emission failed");
+                    return null;
+                });
+    }
+
+    /**
+     * Waits for the pending enrichments and emissions to complete.
+     *
+     * @param timeout maximum waiting time
+     */
+    public void close(Duration timeout) {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                logger.infof("Asynchronous event emissions still running after %d ms", timeout.toMillis());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getSaturatedCount() {
+        return saturatedCount.get();
+    }
+
+    public long getTimedOutCount() {
+        return timedOutCount.get();
+    }
+}
@@ -0,0 +1,58 @@
+package io.cloudtrust.keycloak.eventemitter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates a Keycloak enum to the matching Flatbuffers enum value.
+ * Values are matched by name once, so that constants added to the Keycloak enum don't shift the translation of the
+ * following ones. Keycloak values without a Flatbuffers counterpart are translated to the given unknown value.
+ *
+ * @param <E> Keycloak enum
+ */
+public final class EnumTranslation<E extends Enum<E>> {
+    private final byte[] table;
+    private final List<String> unmapped;
+
+    /**
+     * @param keycloakType Keycloak enum class
+     * @param flatNames    names of the Flatbuffers enum, indexed by value
+     * @param unknown      Flatbuffers value of the unmapped Keycloak values
+     */
+    public EnumTranslation(Class<E> keycloakType, String[] flatNames, byte unknown) {
+        Map<String, Byte> flatValues = new HashMap<>();
+        for (int i = 0; i < flatNames.length; i++) {
+            // Sparse Flatbuffers enums have empty names in the gaps
+            if (i != unknown && !flatNames[i].isEmpty()) {
+                flatValues.put(flatNames[i], (byte) i);
+            }
+        }
+        E[] keycloakValues = keycloakType.getEnumConstants();
+        List<String> unmappedNames = new ArrayList<>();
+        table = new byte[keycloakValues.length];
+        for (E value : keycloakValues) {
+            Byte flatValue = flatValues.get(value.name());
+            if (flatValue == null) {
+                unmappedNames.add(value.name());
+                table[value.ordinal()] = unknown;
+            } else {
+                table[value.ordinal()] = flatValue;
+            }
+        }
+        unmapped = Collections.unmodifiableList(unmappedNames);
+    }
+
+    public byte toFlat(E value) {
+        return table[value.ordinal()];
+    }
+
+    /**
+     * @return the names of the Keycloak values translated to unknown
+     */
+    public List<String> getUnmapped() {
+        return unmapped;
+    }
+}
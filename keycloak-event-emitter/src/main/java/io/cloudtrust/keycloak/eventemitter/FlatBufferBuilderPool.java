@@ -0,0 +1,108 @@
+package io.cloudtrust.keycloak.eventemitter;
+
+import com.google.flatbuffers.FlatBufferBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of FlatBuffers builders, so that events are serialized without allocating a builder and growing its buffer
+ * each time. The buffers are heap buffers by default: the Base64 encoder reads their backing array, where a direct
+ * buffer would first be copied to a temporary array. Direct buffers are meant for the events sent as raw bytes, which
+ * the producer serializer copies straight from the buffer. A builder is used by one thread at a time, from acquire to
+ * release; the serialized event is only valid until then. Builders which grew beyond the retained size, e.g. for an
+ * admin event with a large representation, are not pooled again, so that the pool doesn't keep large buffers.
+ */
+public class FlatBufferBuilderPool {
+    private final int initialSize;
+    private final int maxRetainedSize;
+    private final int maxIdle;
+    private final boolean direct;
+    private final Queue<FlatBufferBuilder> idleBuilders = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicLong createdCount = new AtomicLong();
+
+    /**
+     * @param initialSize     initial size of the buffer of a builder
+     * @param maxRetainedSize maximum size of the events serialized by a builder returned to the pool
+     * @param maxIdle         maximum number of builders kept in the pool
+     */
+    public FlatBufferBuilderPool(int initialSize, int maxRetainedSize, int maxIdle) {
+        this(initialSize, maxRetainedSize, maxIdle, false);
+    }
+
+    /**
+     * @param initialSize     initial size of the buffer of a builder
+     * @param maxRetainedSize maximum size of the events serialized by a builder returned to the pool
+     * @param maxIdle         maximum number of builders kept in the pool
+     * @param direct          true to serialize the events in direct buffers
+     */
+    public FlatBufferBuilderPool(int initialSize, int maxRetainedSize, int maxIdle, boolean direct) {
+        this.initialSize = initialSize;
+        this.maxRetainedSize = maxRetainedSize;
+        this.maxIdle = maxIdle;
+        this.direct = direct;
+    }
+
+    /**
+     * @return an empty builder
+     */
+    public FlatBufferBuilder acquire() {
+        FlatBufferBuilder builder = idleBuilders.poll();
+        if (builder == null) {
+            createdCount.incrementAndGet();
+            return direct ? new FlatBufferBuilder(initialSize, DirectByteBufferFactory.INSTANCE) : new FlatBufferBuilder(initialSize);
+        }
+        idleCount.decrementAndGet();
+        return builder;
+    }
+
+    /**
+     * Returns the builder to the pool. The buffers it returned must not be used anymore.
+     */
+    public void release(FlatBufferBuilder builder) {
+        // offset() is the size of the event; as buffers grow by doubling, pooled buffers stay under twice the retained size
+        if (builder.offset() > maxRetainedSize) {
+            return;
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        builder.clear();
+        idleBuilders.add(builder);
+    }
+
+    /**
+     * @return the number of builders created since the pool creation
+     */
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * Allocates the buffers of the builders, including the larger ones they grow into, outside the heap. The buffer a
+     * builder outgrew is left to the garbage collector.
+     */
+    static class DirectByteBufferFactory extends FlatBufferBuilder.ByteBufferFactory {
+        static final DirectByteBufferFactory INSTANCE = new DirectByteBufferFactory();
+
+        @Override
+        public ByteBuffer newByteBuffer(int capacity) {
+            // FlatBuffers are little endian
+            return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+        }
+    }
+}
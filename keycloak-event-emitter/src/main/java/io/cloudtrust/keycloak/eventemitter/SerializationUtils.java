@@ -4,9 +4,18 @@ import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.flatbuffers.FlatBufferBuilder;
 import io.cloudtrust.keycloak.eventemitter.customevent.ExtendedAdminEvent;
+import io.cloudtrust.keycloak.eventemitter.customevent.IdentifiedAdminEvent;
 import io.cloudtrust.keycloak.eventemitter.customevent.IdentifiedEvent;
+import org.keycloak.events.Details;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.AuthDetails;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
 
 import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -14,17 +23,117 @@ import java.util.Map;
  * In order to allow idempotence, a unique ID is added to the entity.
  */
 public class SerializationUtils {
-    private static final int FLATBUFFER_INIT_SIZE = 1024;
+    public static final int FLATBUFFER_INIT_SIZE = 1024;
+    /**
+     * Version of the serialized events, incremented on changes consumers must be aware of. Version 1 is the version
+     * of the events serialized without file identifier.
+     */
+    public static final byte SCHEMA_VERSION = 2;
+    /**
+     * File identifier of the serialized events, "KE" followed by the schema version on two digits, as declared in
+     * event.fbs.
+     */
+    public static final String FILE_IDENTIFIER = "KE02";
+
+    private static final String FILE_IDENTIFIER_PREFIX = "KE";
+    private static final int FILE_IDENTIFIER_POSITION = 4;
+
+    private static final EnumTranslation<EventType> EVENT_TYPES = new EnumTranslation<>(EventType.class,
+            flatbuffers.events.EventType.names, flatbuffers.events.EventType.UNKNOWN);
+    private static final EnumTranslation<ResourceType> RESOURCE_TYPES = new EnumTranslation<>(ResourceType.class,
+            flatbuffers.events.ResourceType.names, flatbuffers.events.ResourceType.UNKNOWN);
+    private static final ThreadLocal<DetailsEncoder> DETAILS_ENCODERS = ThreadLocal.withInitial(DetailsEncoder::new);
 
     private SerializationUtils() {
     }
 
+    /**
+     * Reads the schema version from the file identifier, without parsing the event.
+     *
+     * @param buffer serialized event or admin event, from its position
+     * @return the schema version, 1 for the events serialized without file identifier
+     */
+    public static int getSchemaVersion(ByteBuffer buffer) {
+        int position = buffer.position() + FILE_IDENTIFIER_POSITION;
+        if (buffer.limit() < position + FILE_IDENTIFIER.length()
+                || buffer.get(position) != FILE_IDENTIFIER_PREFIX.charAt(0) || buffer.get(position + 1) != FILE_IDENTIFIER_PREFIX.charAt(1)) {
+            return 1;
+        }
+        int tens = buffer.get(position + 2) - '0';
+        int units = buffer.get(position + 3) - '0';
+        if (tens < 0 || tens > 9 || units < 0 || units > 9) {
+            return 1;
+        }
+        return tens * 10 + units;
+    }
+
+    /**
+     * @return the Flatbuffers value of the event type, as serialized in the events
+     */
+    public static byte toFlatEventType(EventType type) {
+        return EVENT_TYPES.toFlat(type);
+    }
+
+    /**
+     * @return the Keycloak event types serialized as UNKNOWN
+     */
+    public static List<String> getUnmappedEventTypes() {
+        return EVENT_TYPES.getUnmapped();
+    }
+
+    /**
+     * @return the Keycloak resource types serialized as UNKNOWN
+     */
+    public static List<String> getUnmappedResourceTypes() {
+        return RESOURCE_TYPES.getUnmapped();
+    }
+
+    /**
+     * Serializes synthetic events, so that the serialization code is loaded and compiled before the first events.
+     *
+     * @param iterations number of events and admin events serialized
+     * @return total size of the serialized events, to keep the serialization from being optimized away
+     */
+    public static long warmup(int iterations) {
+        Event event = new Event();
+        event.setType(EventType.LOGIN);
+        event.setRealmId("warmup-realm");
+        event.setClientId("warmup-client");
+        event.setUserId("warmup-user");
+        event.setSessionId("warmup-session");
+        event.setIpAddress("127.0.0.1");
+        event.setDetails(Map.of(Details.USERNAME, "warmup", Details.AUTH_METHOD, "openid-connect"));
+        AdminEvent adminEvent = new AdminEvent();
+        adminEvent.setRealmId("warmup-realm");
+        adminEvent.setAuthDetails(new AuthDetails());
+        adminEvent.setResourceType(ResourceType.USER);
+        adminEvent.setOperationType(OperationType.UPDATE);
+        adminEvent.setResourcePath("users/warmup-user");
+
+        long size = 0;
+        for (int i = 0; i < iterations; i++) {
+            event.setTime(i);
+            adminEvent.setTime(i);
+            size += toFlat(new IdentifiedEvent(i, event)).remaining();
+            size += toFlat(new ExtendedAdminEvent(new IdentifiedAdminEvent(i, adminEvent))).remaining();
+        }
+        return size;
+    }
+
     public static String toJson(Object obj) throws JsonProcessingException {
         return new ObjectMapper().writeValueAsString(obj);
     }
 
     public static ByteBuffer toFlat(IdentifiedEvent event) {
-        FlatBufferBuilder builder = new FlatBufferBuilder(FLATBUFFER_INIT_SIZE);
+        return toFlat(event, new FlatBufferBuilder(FLATBUFFER_INIT_SIZE), false);
+    }
+
+    /**
+     * @param builder       empty builder
+     * @param sortedDetails true to serialize the details sorted by key, so that consumers can binary search them
+     * @return the serialized event, backed by the buffer of the builder
+     */
+    public static ByteBuffer toFlat(IdentifiedEvent event, FlatBufferBuilder builder, boolean sortedDetails) {
 
         // uid
         long uid = event.getUid();
@@ -33,16 +142,7 @@ public class SerializationUtils {
         long time = event.getTime();
 
         // Type
-        byte type;
-        // size of the list minus 1 because we add UNKNOWN event type in flatbuffers list
-        int eventTypeSize = flatbuffers.events.EventType.names.length - 1;
-
-        if (event.getType().ordinal() < eventTypeSize) {
-            type = (byte) event.getType().ordinal();
-        } else {
-            // EventType returned by the Event is unknown by flatbuffers
-            type = flatbuffers.events.EventType.UNKNOWN;
-        }
+        byte type = EVENT_TYPES.toFlat(event.getType());
 
         int realmId = createString(builder, event.getRealmId());
         int clientId = createString(builder, event.getClientId());
@@ -50,7 +150,7 @@ public class SerializationUtils {
         int sessionId = createString(builder, event.getSessionId());
         int ipAddress = createString(builder, event.getIpAddress());
         int error = createString(builder, event.getError());
-        int detailsVec = createMap(builder, event.getDetails());
+        int detailsVec = DETAILS_ENCODERS.get().encode(builder, event.getDetails(), sortedDetails);
 
         flatbuffers.events.Event.startEvent(builder);
 
@@ -67,13 +167,21 @@ public class SerializationUtils {
 
         int flatEvent = flatbuffers.events.Event.endEvent(builder);
 
-        builder.finish(flatEvent);
+        builder.finish(flatEvent, FILE_IDENTIFIER);
 
         return builder.dataBuffer();
     }
 
     public static ByteBuffer toFlat(ExtendedAdminEvent adminEvent) {
-        FlatBufferBuilder builder = new FlatBufferBuilder(FLATBUFFER_INIT_SIZE);
+        return toFlat(adminEvent, new FlatBufferBuilder(FLATBUFFER_INIT_SIZE), false);
+    }
+
+    /**
+     * @param builder       empty builder
+     * @param sortedDetails true to serialize the details sorted by key, so that consumers can binary search them
+     * @return the serialized admin event, backed by the buffer of the builder
+     */
+    public static ByteBuffer toFlat(ExtendedAdminEvent adminEvent, FlatBufferBuilder builder, boolean sortedDetails) {
 
         // uid
         long uid = adminEvent.getUid();
@@ -104,16 +212,8 @@ public class SerializationUtils {
 
         // ResourceType
         byte resourceTypeOffset = 0;
-        // size of the list minus 1 because we add UNKNOWN resource type in flatbuffers list
-        int resourceTypeSize = flatbuffers.events.ResourceType.names.length - 1;
-
         if (adminEvent.getResourceType() != null) {
-            if (adminEvent.getResourceType().ordinal() < resourceTypeSize) {
-                resourceTypeOffset = (byte) adminEvent.getResourceType().ordinal();
-            } else {
-                // ResourceType returned by the AdminEvent is unknown by flatbuffers
-                resourceTypeOffset = flatbuffers.events.ResourceType.UNKNOWN;
-            }
+            resourceTypeOffset = RESOURCE_TYPES.toFlat(adminEvent.getResourceType());
         }
 
         // OperationType
@@ -135,7 +235,7 @@ public class SerializationUtils {
         }
 
         // Details
-        int detailsVec = createMap(builder, adminEvent.getDetails());
+        int detailsVec = DETAILS_ENCODERS.get().encode(builder, adminEvent.getDetails(), sortedDetails);
 
         // Error
         int errorOffset = 0;
@@ -158,7 +258,7 @@ public class SerializationUtils {
 
         int flatAdminEvent = flatbuffers.events.AdminEvent.endAdminEvent(builder);
 
-        builder.finish(flatAdminEvent);
+        builder.finish(flatAdminEvent, FILE_IDENTIFIER);
 
         return builder.dataBuffer();
     }
@@ -166,18 +266,4 @@ public class SerializationUtils {
     private static int createString(FlatBufferBuilder builder, String value) {
         return value != null ? builder.createString(value) : 0;
     }
-
-    private static int createMap(FlatBufferBuilder builder, Map<String, String> map) {
-        if (map == null) {
-            return 0;
-        }
-        int[] details = map.entrySet().stream()
-                .mapToInt(entry -> {
-                    int key = builder.createString(entry.getKey());
-                    int value = builder.createString(entry.getValue());
-                    return flatbuffers.events.Tuple.createTuple(builder, key, value);
-                })
-                .toArray();
-        return flatbuffers.events.Event.createDetailsVector(builder, details);
-    }
 }
@@ -0,0 +1,176 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.jboss.logging.Logger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Circuit breaker protecting Keycloak threads from a degraded Kafka transport.
+ * The outcomes of the last sends are kept in a sliding window. When the share of failed or slow sends reaches the
+ * configured threshold, the breaker opens and events are buffered instead of being handed to the producer.
+ * Once the open duration has elapsed, a single probe send is let through (half-open) to decide whether to close again.
+ * <p>
+ * Each permit carries the generation of the breaker, which changes on every state change and on every probe. Outcomes
+ * reported with the permit of another generation, e.g. late acknowledgements of records sent before the breaker opened,
+ * are ignored: they must neither be taken as the result of the probe nor count in the window of the closed state.
+ */
+public class CircuitBreaker {
+    /**
+     * Returned by {@link #allowRequest()} when the record must be buffered.
+     */
+    public static final long NO_PERMIT = -1L;
+
+    private static final Logger logger = Logger.getLogger(CircuitBreaker.class);
+
+    private final boolean[] window;
+    private final int failureRateThreshold;
+    private final long slowCallThresholdMillis;
+    private final long openDurationMillis;
+
+    private int position;
+    private int recordedCalls;
+    private int failedCalls;
+    private State currentState = State.CLOSED;
+    private long openedAt;
+    private boolean probeInFlight;
+    private long generation;
+
+    /**
+     * @param windowSize              number of send outcomes the failure rate is computed on
+     * @param failureRateThreshold    percentage of failed or slow sends opening the breaker
+     * @param slowCallThresholdMillis acknowledgement latency above which a successful send is considered slow
+     * @param openDurationMillis      time spent in open state before a probe send is allowed
+     */
+    public CircuitBreaker(int windowSize, int failureRateThreshold, long slowCallThresholdMillis, long openDurationMillis) {
+        checkArgument(windowSize > 0, "Circuit breaker window size must be greater than 0");
+        checkArgument(failureRateThreshold > 0 && failureRateThreshold <= 100,
+                "Circuit breaker failure rate threshold must be between 1 and 100");
+        checkArgument(slowCallThresholdMillis > 0, "Circuit breaker slow call threshold must be greater than 0");
+        checkArgument(openDurationMillis >= 0, "Circuit breaker open duration can't be less than 0");
+
+        this.window = new boolean[windowSize];
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallThresholdMillis = slowCallThresholdMillis;
+        this.openDurationMillis = openDurationMillis;
+    }
+
+    /**
+     * Tells whether a record may be handed to the producer. In half-open state, only one probe is allowed at a time.
+     *
+     * @return the permit to report the outcome of the send with, or {@link #NO_PERMIT} if the record must be buffered
+     */
+    public synchronized long allowRequest() {
+        switch (currentState) {
+            case CLOSED:
+                return generation;
+            case OPEN:
+                if (timeGen() - openedAt < openDurationMillis) {
+                    return NO_PERMIT;
+                }
+                logger.info("Circuit breaker is half-open, probing Kafka");
+                currentState = State.HALF_OPEN;
+                return probe();
+            default:
+                if (probeInFlight) {
+                    return NO_PERMIT;
+                }
+                return probe();
+        }
+    }
+
+    /**
+     * Records an acknowledged send.
+     *
+     * @param permit        permit returned by {@link #allowRequest()} before the send
+     * @param latencyMillis time elapsed between the send and its acknowledgement
+     */
+    public synchronized void onSuccess(long permit, long latencyMillis) {
+        if (permit != generation) {
+            return;
+        }
+        boolean slow = latencyMillis >= slowCallThresholdMillis;
+        if (currentState == State.HALF_OPEN) {
+            probeInFlight = false;
+            if (slow) {
+                open();
+            } else {
+                close();
+            }
+        } else {
+            record(slow);
+        }
+    }
+
+    /**
+     * Records a failed send, either rejected synchronously by the producer or failed in its callback.
+     *
+     * @param permit permit returned by {@link #allowRequest()} before the send
+     */
+    public synchronized void onFailure(long permit) {
+        if (permit != generation) {
+            return;
+        }
+        if (currentState == State.HALF_OPEN) {
+            probeInFlight = false;
+            open();
+        } else {
+            record(true);
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return currentState == State.CLOSED;
+    }
+
+    public synchronized String getState() {
+        return currentState.name();
+    }
+
+    private void record(boolean failed) {
+        if (recordedCalls == window.length) {
+            if (window[position]) {
+                failedCalls--;
+            }
+        } else {
+            recordedCalls++;
+        }
+        window[position] = failed;
+        if (failed) {
+            failedCalls++;
+        }
+        position = (position + 1) % window.length;
+
+        if (recordedCalls == window.length && failedCalls * 100 >= failureRateThreshold * recordedCalls) {
+            open();
+        }
+    }
+
+    private void open() {
+        logger.infof("Circuit breaker opened, events are buffered for at least %d ms", openDurationMillis);
+        currentState = State.OPEN;
+        openedAt = timeGen();
+        generation++;
+    }
+
+    private void close() {
+        logger.info("Circuit breaker closed, Kafka is reachable again");
+        currentState = State.CLOSED;
+        generation++;
+        position = 0;
+        recordedCalls = 0;
+        failedCalls = 0;
+    }
+
+    private long probe() {
+        probeInFlight = true;
+        return ++generation;
+    }
+
+    protected long timeGen() {
+        return System.currentTimeMillis();
+    }
+
+    private enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+}
@@ -0,0 +1,76 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Record which could not be sent, with the metadata of the failure. On the dead-letter topic, the record keeps its key
+ * and value, and the failure metadata is carried by headers.
+ *
+ * @param record       record as it was sent, with its original topic
+ * @param failureTime  time of the failure, in milliseconds since 1970
+ * @param errorClass   class of the exception
+ * @param errorMessage message of the exception, may be null
+ */
+public record DeadLetter(ProducerRecord<String, String> record, long failureTime, String errorClass, String errorMessage) {
+    public static final String ORIGINAL_TOPIC_HEADER = "dlt.original.topic";
+    public static final String FAILURE_TIME_HEADER = "dlt.failure.time";
+    public static final String ERROR_CLASS_HEADER = "dlt.error.class";
+    public static final String ERROR_MESSAGE_HEADER = "dlt.error.message";
+
+    public static DeadLetter of(ProducerRecord<String, String> record, Exception exception, long failureTime) {
+        return new DeadLetter(record, failureTime, exception.getClass().getName(), exception.getMessage());
+    }
+
+    /**
+     * Rebuilds the dead letter from a record of the dead-letter topic.
+     *
+     * @throws IllegalArgumentException if the record has no original topic header
+     */
+    public static DeadLetter fromDeadLetterRecord(String key, String value, Headers headers) {
+        String originalTopic = getHeader(headers, ORIGINAL_TOPIC_HEADER);
+        if (originalTopic == null) {
+            throw new IllegalArgumentException("Not a dead letter: " + ORIGINAL_TOPIC_HEADER + " header is missing");
+        }
+        String failureTime = getHeader(headers, FAILURE_TIME_HEADER);
+        List<Header> originalHeaders = new ArrayList<>();
+        for (Header header : headers) {
+            if (!header.key().startsWith("dlt.")) {
+                originalHeaders.add(header);
+            }
+        }
+        return new DeadLetter(new ProducerRecord<>(originalTopic, null, key, value, originalHeaders),
+                failureTime != null ? Long.parseLong(failureTime) : 0L,
+                getHeader(headers, ERROR_CLASS_HEADER), getHeader(headers, ERROR_MESSAGE_HEADER));
+    }
+
+    /**
+     * @return the record to send to the dead-letter topic
+     */
+    public ProducerRecord<String, String> toDeadLetterRecord(String deadLetterTopic) {
+        List<Header> headers = new ArrayList<>();
+        record.headers().forEach(headers::add);
+        headers.add(header(ORIGINAL_TOPIC_HEADER, record.topic()));
+        headers.add(header(FAILURE_TIME_HEADER, Long.toString(failureTime)));
+        headers.add(header(ERROR_CLASS_HEADER, errorClass));
+        if (errorMessage != null) {
+            headers.add(header(ERROR_MESSAGE_HEADER, errorMessage));
+        }
+        return new ProducerRecord<>(deadLetterTopic, null, record.key(), record.value(), headers);
+    }
+
+    private static Header header(String key, String value) {
+        return new RecordHeader(key, value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String getHeader(Headers headers, String key) {
+        Header header = headers.lastHeader(key);
+        return header != null && header.value() != null ? new String(header.value(), StandardCharsets.UTF_8) : null;
+    }
+}
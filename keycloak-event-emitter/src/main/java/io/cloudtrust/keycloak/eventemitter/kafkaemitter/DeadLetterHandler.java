@@ -0,0 +1,148 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Routes the records whose sending failed, after the retries of the producer, to a dead-letter destination: the
+ * dead-letter topic while the emitter is working, the local store otherwise or when the dead-letter record itself
+ * can't be sent. Failures are queued by the producer callbacks and routed by a periodic task, so that the producer
+ * I/O thread never blocks on Kafka or on the disk. Dead letters which can't be routed are lost and counted.
+ */
+public class DeadLetterHandler {
+    private static final Logger logger = Logger.getLogger(DeadLetterHandler.class);
+
+    private final String deadLetterTopic;
+    private final DeadLetterStore store;
+    private final BlockingQueue<DeadLetter> failures;
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong storedCount = new AtomicLong();
+    private final AtomicLong lostCount = new AtomicLong();
+
+    /**
+     * @param deadLetterTopic topic of the dead letters, null to only use the store
+     * @param store           local store of the dead letters, null to only use the topic
+     * @param queueCapacity   maximum number of failures waiting to be routed
+     */
+    public DeadLetterHandler(String deadLetterTopic, DeadLetterStore store, int queueCapacity) {
+        this.deadLetterTopic = deadLetterTopic;
+        this.store = store;
+        this.failures = new ArrayBlockingQueue<>(queueCapacity);
+    }
+
+    /**
+     * Called by the producer callbacks, must not block.
+     */
+    public void onFailure(ProducerRecord<String, String> record, Exception exception) {
+        DeadLetter deadLetter;
+        if (record.topic().equals(deadLetterTopic)) {
+            try {
+                deadLetter = DeadLetter.fromDeadLetterRecord(record.key(), record.value(), record.headers());
+            } catch (IllegalArgumentException e) {
+                lostCount.incrementAndGet();
+                return;
+            }
+        } else {
+            deadLetter = DeadLetter.of(record, exception, timeGen());
+        }
+        if (!failures.offer(deadLetter)) {
+            lostCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Periodic task: routes the queued failures.
+     */
+    public void route(KafkaEventSender sender) {
+        List<DeadLetter> deadLetters = new ArrayList<>();
+        failures.drainTo(deadLetters);
+        if (deadLetters.isEmpty()) {
+            return;
+        }
+        List<DeadLetter> storedDeadLetters = new ArrayList<>();
+        for (DeadLetter deadLetter : deadLetters) {
+            // A dead letter coming back from the topic failed once already
+            boolean failedOnTopic = deadLetter.record().topic().equals(deadLetterTopic);
+            if (deadLetterTopic != null && !failedOnTopic && sender.getState().isWorking()) {
+                sender.send(deadLetter.toDeadLetterRecord(deadLetterTopic), EventPriority.HIGH);
+                sentCount.incrementAndGet();
+            } else {
+                storedDeadLetters.add(deadLetter);
+            }
+        }
+        store(storedDeadLetters);
+    }
+
+    /**
+     * Writes the queued failures to the store, the sender being closed, and closes the store.
+     */
+    public void close() {
+        List<DeadLetter> deadLetters = new ArrayList<>();
+        failures.drainTo(deadLetters);
+        store(deadLetters);
+        if (store != null) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.errorv(e, "Can't close the dead letters segment of %s", store.getDirectory());
+            }
+        }
+    }
+
+    public String getDeadLetterTopic() {
+        return deadLetterTopic;
+    }
+
+    public DeadLetterStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return the number of dead letters sent to the topic
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of dead letters written to the local store
+     */
+    public long getStoredCount() {
+        return storedCount.get();
+    }
+
+    /**
+     * @return the number of dead letters lost, the queue or the store being unavailable
+     */
+    public long getLostCount() {
+        return lostCount.get();
+    }
+
+    protected long timeGen() {
+        return System.currentTimeMillis();
+    }
+
+    private void store(List<DeadLetter> deadLetters) {
+        if (deadLetters.isEmpty()) {
+            return;
+        }
+        if (store == null) {
+            lostCount.addAndGet(deadLetters.size());
+            return;
+        }
+        try {
+            store.append(deadLetters);
+            storedCount.addAndGet(deadLetters.size());
+        } catch (IOException e) {
+            lostCount.addAndGet(deadLetters.size());
+            logger.errorv(e, "Can't write %d dead letters to %s", deadLetters.size(), store.getDirectory());
+        }
+    }
+}
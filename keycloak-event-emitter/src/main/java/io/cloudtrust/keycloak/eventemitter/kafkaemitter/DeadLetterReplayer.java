@@ -0,0 +1,193 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerConfig;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends dead letters back to their original topic, at a limited rate so that the consumers are not flooded after an
+ * outage. Dead letters are read either from the local segments, a segment being deleted once all its records are
+ * acknowledged, or from the dead-letter topic, the offsets being committed once the records are acknowledged.
+ * Replay is at least once: a record may be sent again if the replay is interrupted.
+ * Usage: {@code java -cp keycloak-event-emitter.jar io.cloudtrust.keycloak.eventemitter.kafkaemitter.DeadLetterReplayer
+ * client.properties [--rate records per second] (--directory segments directory | --topic dead-letter topic)}
+ * The properties file contains the Kafka client configuration, e.g. bootstrap.servers.
+ */
+public class DeadLetterReplayer {
+    private static final Logger logger = Logger.getLogger(DeadLetterReplayer.class);
+    private static final String DEFAULT_GROUP_ID = "keycloak-event-emitter-replay";
+    private static final Duration POLL_TIMEOUT = Duration.ofSeconds(5);
+
+    private final Producer<String, String> producer;
+    private final long intervalNanos;
+    private long nextSendNanos;
+
+    /**
+     * @param producer             producer sending to the original topics
+     * @param maxRecordsPerSecond maximum replay rate, 0 for no limit
+     */
+    public DeadLetterReplayer(Producer<String, String> producer, int maxRecordsPerSecond) {
+        this.producer = producer;
+        this.intervalNanos = maxRecordsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / maxRecordsPerSecond : 0;
+    }
+
+    /**
+     * Replays the segments of the store, oldest first. Stops at the first segment which can't be fully replayed,
+     * which is kept.
+     *
+     * @return the number of replayed records
+     * @throws IOException if the segments can't be listed or read
+     */
+    public long replay(DeadLetterStore store) throws IOException {
+        long replayedCount = 0;
+        for (Path segment : store.listSegments()) {
+            List<DeadLetter> deadLetters = DeadLetterStore.read(segment);
+            List<Future<RecordMetadata>> results = new ArrayList<>(deadLetters.size());
+            for (DeadLetter deadLetter : deadLetters) {
+                results.add(send(deadLetter));
+            }
+            if (!awaitAll(results)) {
+                logger.infof("Replay of %s interrupted, the segment is kept", segment);
+                return replayedCount;
+            }
+            Files.delete(segment);
+            replayedCount += deadLetters.size();
+        }
+        return replayedCount;
+    }
+
+    /**
+     * Replays the records of the dead-letter topic until it has no more records. Records which are not dead letters
+     * are skipped.
+     *
+     * @param consumer consumer without subscription, whose offsets are not committed automatically
+     * @return the number of replayed records
+     */
+    public long replay(Consumer<String, String> consumer, String deadLetterTopic) {
+        long replayedCount = 0;
+        consumer.subscribe(List.of(deadLetterTopic));
+        ConsumerRecords<String, String> records;
+        while (!(records = consumer.poll(POLL_TIMEOUT)).isEmpty()) {
+            List<Future<RecordMetadata>> results = new ArrayList<>(records.count());
+            for (ConsumerRecord<String, String> record : records) {
+                try {
+                    results.add(send(DeadLetter.fromDeadLetterRecord(record.key(), record.value(), record.headers())));
+                } catch (IllegalArgumentException e) {
+                    logger.infof("Skipping record %d of %s-%d: %s", record.offset(), record.topic(), record.partition(), e.getMessage());
+                }
+            }
+            if (!awaitAll(results)) {
+                logger.infof("Replay of %s interrupted, offsets are not committed", deadLetterTopic);
+                return replayedCount;
+            }
+            consumer.commitSync();
+            replayedCount += results.size();
+        }
+        return replayedCount;
+    }
+
+    protected void sleep(long nanos) throws InterruptedException {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+    }
+
+    private Future<RecordMetadata> send(DeadLetter deadLetter) {
+        pace();
+        return producer.send(deadLetter.record());
+    }
+
+    private void pace() {
+        if (intervalNanos == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        if (nextSendNanos > now) {
+            try {
+                sleep(nextSendNanos - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            now = nextSendNanos;
+        }
+        nextSendNanos = now + intervalNanos;
+    }
+
+    private boolean awaitAll(List<Future<RecordMetadata>> results) {
+        producer.flush();
+        try {
+            for (Future<RecordMetadata> result : results) {
+                result.get();
+            }
+            return true;
+        } catch (ExecutionException e) {
+            logger.infof("Failed to replay a dead letter: %s", e.getCause().getMessage());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: DeadLetterReplayer client.properties [--rate n] (--directory dir | --topic topic)");
+            System.exit(1);
+        }
+        Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(Paths.get(args[0]))) {
+            properties.load(input);
+        }
+        int rate = 0;
+        int i = 1;
+        if (args[i].equals("--rate") && args.length >= 5) {
+            rate = Integer.parseInt(args[i + 1]);
+            i += 2;
+        }
+        Properties producerProperties = new Properties();
+        producerProperties.putAll(properties);
+        producerProperties.put(ProducerConfig.KEY_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        producerProperties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, StringSerializer.class.getName());
+        try (Producer<String, String> producer = new KafkaProducer<>(producerProperties)) {
+            DeadLetterReplayer replayer = new DeadLetterReplayer(producer, rate);
+            long replayedCount;
+            if (args[i].equals("--directory")) {
+                replayedCount = replayer.replay(new DeadLetterStore(Paths.get(args[i + 1]), Long.MAX_VALUE));
+            } else if (args[i].equals("--topic")) {
+                Properties consumerProperties = new Properties();
+                consumerProperties.putAll(properties);
+                consumerProperties.putIfAbsent(ConsumerConfig.GROUP_ID_CONFIG, DEFAULT_GROUP_ID);
+                consumerProperties.put(ConsumerConfig.ENABLE_AUTO_COMMIT_CONFIG, "false");
+                consumerProperties.putIfAbsent(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+                consumerProperties.put(ConsumerConfig.KEY_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+                consumerProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, StringDeserializer.class.getName());
+                try (Consumer<String, String> consumer = new KafkaConsumer<>(consumerProperties)) {
+                    replayedCount = replayer.replay(consumer, args[i + 1]);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown source " + args[i]);
+            }
+            System.out.println(replayedCount + " dead letters replayed");
+        }
+    }
+}
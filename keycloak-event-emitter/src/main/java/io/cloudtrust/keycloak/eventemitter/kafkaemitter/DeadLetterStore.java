@@ -0,0 +1,132 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Header;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Local dead-letter destination, used when the dead-letter topic is not configured or Kafka itself is down.
+ * Dead letters are appended to segment files, one per line: topic, key, value, failure time, error class, error
+ * message and headers separated by tabulations. Null keys and values are written as empty strings; tabulations and
+ * line breaks of the error message are replaced by spaces. A segment is closed once it reaches the maximum size, or when the
+ * segments are listed for replay.
+ */
+public class DeadLetterStore {
+    private static final String FILE_PREFIX = "deadletters-";
+    private static final String FILE_SUFFIX = ".segment";
+    private static final String SEPARATOR = "\t";
+
+    private final Path directory;
+    private final long maxSegmentBytes;
+
+    private BufferedWriter writer;
+    private long currentSegmentBytes;
+
+    /**
+     * @param directory       directory of the segments
+     * @param maxSegmentBytes size from which a segment is closed
+     */
+    public DeadLetterStore(Path directory, long maxSegmentBytes) {
+        this.directory = directory;
+        this.maxSegmentBytes = maxSegmentBytes;
+    }
+
+    /**
+     * Appends the dead letters to the current segment.
+     *
+     * @throws IOException if the segment can't be written
+     */
+    public synchronized void append(List<DeadLetter> deadLetters) throws IOException {
+        if (deadLetters.isEmpty()) {
+            return;
+        }
+        if (writer == null) {
+            Files.createDirectories(directory);
+            Path segment = directory.resolve(FILE_PREFIX + System.currentTimeMillis() + "-" + System.nanoTime() + FILE_SUFFIX);
+            writer = Files.newBufferedWriter(segment, StandardCharsets.UTF_8, StandardOpenOption.CREATE_NEW);
+            currentSegmentBytes = 0;
+        }
+        for (DeadLetter deadLetter : deadLetters) {
+            String line = format(deadLetter);
+            writer.write(line);
+            writer.newLine();
+            // Approximation, values being Base64 encoded
+            currentSegmentBytes += line.length() + 1L;
+        }
+        writer.flush();
+        if (currentSegmentBytes >= maxSegmentBytes) {
+            closeSegment();
+        }
+    }
+
+    /**
+     * Closes the current segment, so that it can be replayed.
+     *
+     * @return the segments, oldest first
+     * @throws IOException if the directory can't be listed
+     */
+    public synchronized List<Path> listSegments() throws IOException {
+        closeSegment();
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            stream.forEach(segments::add);
+        }
+        segments.sort(null);
+        return segments;
+    }
+
+    /**
+     * @return the dead letters of a segment, malformed lines excepted
+     */
+    public static List<DeadLetter> read(Path segment) throws IOException {
+        List<DeadLetter> deadLetters = new ArrayList<>();
+        for (String line : Files.readAllLines(segment, StandardCharsets.UTF_8)) {
+            String[] fields = line.split(SEPARATOR, 7);
+            if (fields.length >= 6) {
+                List<Header> headers = fields.length == 7 ? HeaderCodec.parse(fields[6]) : null;
+                deadLetters.add(new DeadLetter(new ProducerRecord<>(fields[0], null, emptyToNull(fields[1]), emptyToNull(fields[2]), headers),
+                        Long.parseLong(fields[3]), fields[4], emptyToNull(fields[5])));
+            }
+        }
+        return deadLetters;
+    }
+
+    public synchronized void close() throws IOException {
+        closeSegment();
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private void closeSegment() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+
+    private static String format(DeadLetter deadLetter) {
+        ProducerRecord<String, String> record = deadLetter.record();
+        String errorMessage = deadLetter.errorMessage() != null ? deadLetter.errorMessage().replaceAll("[\t\r\n]", " ") : "";
+        return String.join(SEPARATOR, record.topic(), record.key() != null ? record.key() : "",
+                record.value() != null ? record.value() : "", Long.toString(deadLetter.failureTime()),
+                deadLetter.errorClass(), errorMessage, HeaderCodec.format(record.headers()));
+    }
+
+    private static String emptyToNull(String value) {
+        return value.isEmpty() ? null : value;
+    }
+}
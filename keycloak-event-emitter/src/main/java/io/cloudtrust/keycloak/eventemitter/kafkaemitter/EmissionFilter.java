@@ -0,0 +1,61 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.admin.AdminEvent;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the current emission rules to the events, before their enrichment and serialization. Rules are replaced
+ * atomically, so that an event is always checked against a consistent set of rules.
+ */
+public class EmissionFilter {
+    private volatile EmissionRules rules = EmissionRules.ALL;
+    private final AtomicLong excludedCount = new AtomicLong();
+    private final AtomicLong sampledOutCount = new AtomicLong();
+
+    public boolean accept(Event event) {
+        EmissionRules currentRules = rules;
+        if (currentRules.excludedEventTypes().contains(event.getType())) {
+            excludedCount.incrementAndGet();
+            return false;
+        }
+        Double samplingRate = currentRules.samplingRates().get(event.getType());
+        if (samplingRate != null && event.getError() == null && ThreadLocalRandom.current().nextDouble() >= samplingRate) {
+            sampledOutCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public boolean accept(AdminEvent adminEvent) {
+        if (rules.excludedOperationTypes().contains(adminEvent.getOperationType())) {
+            excludedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public EmissionRules getRules() {
+        return rules;
+    }
+
+    public void setRules(EmissionRules rules) {
+        this.rules = rules != null ? rules : EmissionRules.ALL;
+    }
+
+    /**
+     * @return the number of events not emitted because of their type
+     */
+    public long getExcludedCount() {
+        return excludedCount.get();
+    }
+
+    /**
+     * @return the number of events not emitted because of sampling
+     */
+    public long getSampledOutCount() {
+        return sampledOutCount.get();
+    }
+}
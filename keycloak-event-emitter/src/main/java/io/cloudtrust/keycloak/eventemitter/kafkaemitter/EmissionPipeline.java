@@ -0,0 +1,178 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import io.cloudtrust.keycloak.eventemitter.EnrichmentExecutor;
+import io.cloudtrust.keycloak.eventemitter.FlatBufferBuilderPool;
+import io.cloudtrust.keycloak.eventemitter.snowflake.IdGenerator;
+import io.cloudtrust.keycloak.eventemitter.tracing.LatencyTracer;
+
+import java.util.function.Supplier;
+
+/**
+ * Components the events go through from their reception to their sending. Built once by the factory and shared by the
+ * providers of all the sessions, which only add the session. Optional components are null when disabled.
+ */
+public class EmissionPipeline {
+    private final KafkaEventSender sender;
+    private final String eventTopic;
+    private final String adminEventTopic;
+    private final Supplier<IdGenerator> idGenerator;
+    private EnrichmentExecutor enrichmentExecutor;
+    private UsernameChangePublisher usernameChangePublisher;
+    private LatencyTracer tracer;
+    private EventPrioritizer prioritizer;
+    private EventCoalescer coalescer;
+    private FlatBufferBuilderPool builderPool;
+    private EmissionFilter filter;
+    private EventHeaders headers;
+    private EventDeduplicator deduplicator;
+    private RealmRateLimiter rateLimiter;
+    private EventJournal journal;
+    private RawEventSender rawSender;
+    private boolean sortedDetails;
+
+    /**
+     * @param idGenerator supplies the ID generator of the node, which may be replaced while the emitter runs
+     */
+    public EmissionPipeline(KafkaEventSender sender, String eventTopic, String adminEventTopic, Supplier<IdGenerator> idGenerator) {
+        this.sender = sender;
+        this.eventTopic = eventTopic;
+        this.adminEventTopic = adminEventTopic;
+        this.idGenerator = idGenerator;
+    }
+
+    public EmissionPipeline withEnrichmentExecutor(EnrichmentExecutor enrichmentExecutor) {
+        this.enrichmentExecutor = enrichmentExecutor;
+        return this;
+    }
+
+    public EmissionPipeline withUsernameChangePublisher(UsernameChangePublisher usernameChangePublisher) {
+        this.usernameChangePublisher = usernameChangePublisher;
+        return this;
+    }
+
+    public EmissionPipeline withTracer(LatencyTracer tracer) {
+        this.tracer = tracer;
+        return this;
+    }
+
+    public EmissionPipeline withPrioritizer(EventPrioritizer prioritizer) {
+        this.prioritizer = prioritizer;
+        return this;
+    }
+
+    public EmissionPipeline withCoalescer(EventCoalescer coalescer) {
+        this.coalescer = coalescer;
+        return this;
+    }
+
+    public EmissionPipeline withBuilderPool(FlatBufferBuilderPool builderPool) {
+        this.builderPool = builderPool;
+        return this;
+    }
+
+    public EmissionPipeline withFilter(EmissionFilter filter) {
+        this.filter = filter;
+        return this;
+    }
+
+    public EmissionPipeline withHeaders(EventHeaders headers) {
+        this.headers = headers;
+        return this;
+    }
+
+    public EmissionPipeline withDeduplicator(EventDeduplicator deduplicator) {
+        this.deduplicator = deduplicator;
+        return this;
+    }
+
+    public EmissionPipeline withRateLimiter(RealmRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+
+    public EmissionPipeline withJournal(EventJournal journal) {
+        this.journal = journal;
+        return this;
+    }
+
+    public EmissionPipeline withRawSender(RawEventSender rawSender) {
+        this.rawSender = rawSender;
+        return this;
+    }
+
+    /**
+     * @param sortedDetails true to serialize the details sorted by key, so that consumers can binary search them
+     */
+    public EmissionPipeline withSortedDetails(boolean sortedDetails) {
+        this.sortedDetails = sortedDetails;
+        return this;
+    }
+
+    public KafkaEventSender getSender() {
+        return sender;
+    }
+
+    public String getEventTopic() {
+        return eventTopic;
+    }
+
+    public String getAdminEventTopic() {
+        return adminEventTopic;
+    }
+
+    public IdGenerator getIdGenerator() {
+        return idGenerator.get();
+    }
+
+    public EnrichmentExecutor getEnrichmentExecutor() {
+        return enrichmentExecutor;
+    }
+
+    public UsernameChangePublisher getUsernameChangePublisher() {
+        return usernameChangePublisher;
+    }
+
+    public LatencyTracer getTracer() {
+        return tracer;
+    }
+
+    public EventPrioritizer getPrioritizer() {
+        return prioritizer;
+    }
+
+    public EventCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    public FlatBufferBuilderPool getBuilderPool() {
+        return builderPool;
+    }
+
+    public EmissionFilter getFilter() {
+        return filter;
+    }
+
+    public EventHeaders getHeaders() {
+        return headers;
+    }
+
+    public EventDeduplicator getDeduplicator() {
+        return deduplicator;
+    }
+
+    public RealmRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public EventJournal getJournal() {
+        return journal;
+    }
+
+    public RawEventSender getRawSender() {
+        return rawSender;
+    }
+
+    public boolean isSortedDetails() {
+        return sortedDetails;
+    }
+}
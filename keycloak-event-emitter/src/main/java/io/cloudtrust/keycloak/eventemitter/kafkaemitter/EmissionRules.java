@@ -0,0 +1,35 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.OperationType;
+
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Rules selecting the emitted events, changed at runtime by operators.
+ *
+ * @param excludedEventTypes     types of the events which are not emitted
+ * @param excludedOperationTypes operation types of the admin events which are not emitted
+ * @param samplingRates          share of the events of a type which are emitted, between 0 and 1; events with an error
+ *                               are always emitted
+ */
+public record EmissionRules(Set<EventType> excludedEventTypes, Set<OperationType> excludedOperationTypes,
+                            Map<EventType, Double> samplingRates) {
+    public static final EmissionRules ALL = new EmissionRules(Set.of(), Set.of(), Map.of());
+
+    /**
+     * @throws IllegalArgumentException if a sampling rate is not between 0 and 1
+     */
+    public EmissionRules {
+        excludedEventTypes = excludedEventTypes != null ? Set.copyOf(excludedEventTypes) : Set.of();
+        excludedOperationTypes = excludedOperationTypes != null ? Set.copyOf(excludedOperationTypes) : Set.of();
+        samplingRates = samplingRates != null ? Map.copyOf(samplingRates) : Map.of();
+        for (Map.Entry<EventType, Double> samplingRate : samplingRates.entrySet()) {
+            double rate = samplingRate.getValue();
+            if (rate < 0.0 || rate > 1.0) {
+                throw new IllegalArgumentException("Sampling rate of " + samplingRate.getKey() + " must be between 0 and 1: " + rate);
+            }
+        }
+    }
+}
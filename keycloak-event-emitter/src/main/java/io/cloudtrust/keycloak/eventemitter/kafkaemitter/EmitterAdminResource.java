@@ -0,0 +1,226 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import io.cloudtrust.keycloak.eventemitter.snowflake.IdGeneratorConfig;
+import io.cloudtrust.keycloak.eventemitter.tracing.LatencyTracer;
+import jakarta.ws.rs.BadRequestException;
+import jakarta.ws.rs.Consumes;
+import jakarta.ws.rs.DefaultValue;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotAuthorizedException;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.PUT;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.managers.AppAuthManager;
+import org.keycloak.services.managers.AuthenticationManager;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resources.admin.AdminAuth;
+import org.keycloak.services.resources.admin.permissions.AdminPermissionEvaluator;
+import org.keycloak.services.resources.admin.permissions.AdminPermissions;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Live statistics and control of the emitter of the node serving the request, under
+ * {@code /realms/master/kafka-event-emitter}. Reading requires the view-events role of the master realm, control
+ * operations the manage-events role.
+ */
+public class EmitterAdminResource implements RealmResourceProvider {
+    private static final int MAX_JOURNAL_LIMIT = 10000;
+
+    private final KeycloakSession session;
+    private final KafkaEventEmitterProviderFactory emitter;
+
+    public EmitterAdminResource(KeycloakSession session, KafkaEventEmitterProviderFactory emitter) {
+        this.session = session;
+        this.emitter = emitter;
+    }
+
+    @Override
+    public Object getResource() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    @GET
+    @Path("stats")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> getStats() {
+        checkPermission(false);
+        return emitter.getStats();
+    }
+
+    /**
+     * @return the latency percentiles of each stage, in microseconds
+     */
+    @GET
+    @Path("latencies")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Long> getLatencies() {
+        checkPermission(false);
+        LatencyTracer tracer = emitter.getTracer();
+        if (tracer == null) {
+            throw new NotFoundException("Latency tracing is disabled");
+        }
+        return tracer.getLatencies();
+    }
+
+    @POST
+    @Path("pause")
+    public Response pause() {
+        checkPermission(true);
+        emitter.getSender().pause();
+        return Response.noContent().build();
+    }
+
+    @POST
+    @Path("resume")
+    public Response resume() {
+        checkPermission(true);
+        emitter.getSender().resume();
+        return Response.noContent().build();
+    }
+
+    @POST
+    @Path("drain")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Integer> drain() {
+        checkPermission(true);
+        return Map.of("drainedEvents", emitter.getSender().forceDrain());
+    }
+
+    @GET
+    @Path("rules")
+    @Produces(MediaType.APPLICATION_JSON)
+    public EmissionRules getRules() {
+        checkPermission(false);
+        return emitter.getFilter().getRules();
+    }
+
+    @PUT
+    @Path("rules")
+    @Consumes(MediaType.APPLICATION_JSON)
+    public Response setRules(EmissionRules rules) {
+        checkPermission(true);
+        emitter.getFilter().setRules(rules);
+        return Response.noContent().build();
+    }
+
+    /**
+     * Starts the replay of the dead letters written to disk.
+     *
+     * @param rate maximum number of records replayed per second, 0 for no limit
+     */
+    @POST
+    @Path("dead-letters/replay")
+    public Response replayDeadLetters(@QueryParam("rate") @DefaultValue("100") int rate) {
+        checkPermission(true);
+        if (rate < 0) {
+            throw new BadRequestException("rate must be positive");
+        }
+        if (!emitter.replayDeadLetters(rate)) {
+            return Response.status(Response.Status.CONFLICT).build();
+        }
+        return Response.accepted().build();
+    }
+
+    /**
+     * Starts the publication of the usernames of all the users of a realm to the username topic, for the users created
+     * before the publication was enabled.
+     *
+     * @param realmName name of the realm of the users
+     */
+    @POST
+    @Path("usernames/bootstrap")
+    public Response bootstrapUsernames(@QueryParam("realm") String realmName) {
+        checkPermission(true);
+        RealmModel realm = realmName != null ? session.realms().getRealmByName(realmName) : null;
+        if (realm == null) {
+            throw new NotFoundException("Unknown realm");
+        }
+        if (!emitter.bootstrapUsernames(realm.getId())) {
+            return Response.status(Response.Status.CONFLICT).build();
+        }
+        return Response.accepted().build();
+    }
+
+    /**
+     * Events of the local journal, the most recent ones when more than the limit match.
+     *
+     * @param from   first millisecond since 1970 of the events, the oldest journaled event by default
+     * @param to     last millisecond since 1970 of the events, the most recent journaled event by default
+     * @param userId user ID of the events, or of the administrator for admin events, all the users by default
+     * @param limit  maximum number of events
+     * @param raw    true to return the events serialized as in Kafka, i.e. the Base64 encoded FlatBuffer
+     */
+    @GET
+    @Path("journal")
+    @Produces(MediaType.APPLICATION_JSON)
+    public List<Map<String, Object>> queryJournal(@QueryParam("from") @DefaultValue("0") long from,
+                                                  @QueryParam("to") Long to,
+                                                  @QueryParam("userId") String userId,
+                                                  @QueryParam("limit") @DefaultValue("100") int limit,
+                                                  @QueryParam("raw") @DefaultValue("false") boolean raw) {
+        checkPermission(false);
+        EventJournal journal = emitter.getJournal();
+        if (journal == null) {
+            throw new NotFoundException("The journal is disabled");
+        }
+        if (limit < 1 || limit > MAX_JOURNAL_LIMIT) {
+            throw new BadRequestException("limit must be between 1 and " + MAX_JOURNAL_LIMIT);
+        }
+        IdGeneratorConfig idConfig = emitter.getIdGeneratorConfig();
+        long toUid = to == null || to >= idConfig.getEndOfTime() ? Long.MAX_VALUE : idConfig.firstId(to + 1) - 1;
+        List<Map<String, Object>> events = new ArrayList<>();
+        for (EventJournal.Entry entry : journal.query(idConfig.firstId(from), toUid, userId, limit)) {
+            if (raw) {
+                ByteBuffer encoded = Base64.getEncoder().encode(entry.payload().duplicate());
+                events.add(Map.of("uid", entry.uid(), "kind", entry.kind() == EventJournal.ADMIN_EVENT ? "adminEvent" : "event",
+                        "value", new String(encoded.array(), 0, encoded.remaining(), StandardCharsets.ISO_8859_1)));
+            } else {
+                events.add(entry.toMap());
+            }
+        }
+        return events;
+    }
+
+    /**
+     * The emitter being shared by all the realms of the node, only the administrators of the master realm control it.
+     *
+     * @throws NotFoundException      if the realm is not the master realm
+     * @throws NotAuthorizedException if there is no valid bearer token
+     */
+    private void checkPermission(boolean manage) {
+        RealmModel realm = session.getContext().getRealm();
+        if (!Config.getAdminRealm().equals(realm.getName())) {
+            throw new NotFoundException();
+        }
+        AuthenticationManager.AuthResult auth = new AppAuthManager.BearerTokenAuthenticator(session).authenticate();
+        if (auth == null) {
+            throw new NotAuthorizedException("Bearer");
+        }
+        AdminPermissionEvaluator permissions = AdminPermissions.evaluator(session, realm,
+                new AdminAuth(realm, auth.token(), auth.user(), auth.client()));
+        if (manage) {
+            permissions.realm().requireManageEvents();
+        } else {
+            permissions.realm().requireViewEvents();
+        }
+    }
+}
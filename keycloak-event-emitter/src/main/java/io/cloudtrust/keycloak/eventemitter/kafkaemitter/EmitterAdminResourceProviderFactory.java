@@ -0,0 +1,39 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.keycloak.Config;
+import org.keycloak.events.EventListenerProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+public class EmitterAdminResourceProviderFactory implements RealmResourceProviderFactory {
+    public static final String PROVIDER_ID = "kafka-event-emitter";
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        KafkaEventEmitterProviderFactory emitter = (KafkaEventEmitterProviderFactory) session.getKeycloakSessionFactory()
+                .getProviderFactory(EventListenerProvider.class, KafkaEventEmitterProviderFactory.PROVIDER_ID);
+        return new EmitterAdminResource(session, emitter);
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        // No configuration
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        // Nothing to initialize
+    }
+
+    @Override
+    public void close() {
+        // Nothing to close
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
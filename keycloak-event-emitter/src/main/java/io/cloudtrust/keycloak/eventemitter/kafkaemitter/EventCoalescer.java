@@ -0,0 +1,148 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Merges the near-identical events of high-frequency types (e.g. token refreshes), i.e. the events with the same type,
+ * realm, client, user, session and IP address, over a short window. A single event is emitted per window: the first
+ * event of the window, whose details are completed with the number of merged events and the times of the first and
+ * last ones. Events with an error are never merged.
+ * Windows are held in memory until flushed; when the maximum number of windows is reached, events which don't belong
+ * to an open window are not merged.
+ */
+public class EventCoalescer {
+    public static final String COUNT_DETAIL = "count";
+    public static final String FIRST_TIME_DETAIL = "firstTime";
+    public static final String LAST_TIME_DETAIL = "lastTime";
+
+    private final Set<EventType> eventTypes;
+    private final long windowMillis;
+    private final int maxWindows;
+    private final Map<Key, Window> windows = new ConcurrentHashMap<>();
+    private final AtomicLong mergedCount = new AtomicLong();
+
+    /**
+     * @param eventTypes   types of the events to merge
+     * @param windowMillis duration of a window, from its first event
+     * @param maxWindows   maximum number of windows open at the same time
+     */
+    public EventCoalescer(Set<EventType> eventTypes, long windowMillis, int maxWindows) {
+        this.eventTypes = eventTypes;
+        this.windowMillis = windowMillis;
+        this.maxWindows = maxWindows;
+    }
+
+    /**
+     * Adds the event to its window, opening it if needed.
+     *
+     * @return false if the event can't be merged and must be emitted as is
+     */
+    public boolean add(Event event) {
+        if (!eventTypes.contains(event.getType()) || event.getError() != null) {
+            return false;
+        }
+        Key key = new Key(event.getType(), event.getRealmId(), event.getClientId(), event.getUserId(),
+                event.getSessionId(), event.getIpAddress());
+        boolean[] added = {true};
+        windows.compute(key, (k, window) -> {
+            if (window != null) {
+                window.add(event);
+                mergedCount.incrementAndGet();
+                return window;
+            }
+            if (windows.size() >= maxWindows) {
+                added[0] = false;
+                return null;
+            }
+            return new Window(event, timeGen());
+        });
+        return added[0];
+    }
+
+    /**
+     * Closes the windows.
+     *
+     * @param all true to close all the windows, false to only close the expired ones
+     * @return one event per closed window
+     */
+    public List<Event> poll(boolean all) {
+        long now = timeGen();
+        List<Event> events = new ArrayList<>();
+        windows.forEach((key, window) -> {
+            if ((all || now - window.openingTime >= windowMillis) && windows.remove(key, window)) {
+                events.add(window.toEvent());
+            }
+        });
+        return events;
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public int getOpenWindowsCount() {
+        return windows.size();
+    }
+
+    /**
+     * @return the number of events merged into the first event of their window
+     */
+    public long getMergedCount() {
+        return mergedCount.get();
+    }
+
+    protected long timeGen() {
+        return System.currentTimeMillis();
+    }
+
+    private record Key(EventType type, String realmId, String clientId, String userId, String sessionId,
+                       String ipAddress) {
+    }
+
+    /**
+     * Only mutated while holding the lock of its map entry.
+     */
+    private static class Window {
+        private final Event firstEvent;
+        private final long openingTime;
+        private int count = 1;
+        private long lastTime;
+
+        Window(Event firstEvent, long openingTime) {
+            this.firstEvent = firstEvent;
+            this.openingTime = openingTime;
+            this.lastTime = firstEvent.getTime();
+        }
+
+        void add(Event event) {
+            count++;
+            lastTime = Math.max(lastTime, event.getTime());
+        }
+
+        Event toEvent() {
+            Event event = new Event();
+            event.setTime(firstEvent.getTime());
+            event.setType(firstEvent.getType());
+            event.setRealmId(firstEvent.getRealmId());
+            event.setClientId(firstEvent.getClientId());
+            event.setUserId(firstEvent.getUserId());
+            event.setSessionId(firstEvent.getSessionId());
+            event.setIpAddress(firstEvent.getIpAddress());
+            Map<String, String> details = firstEvent.getDetails() != null ? new HashMap<>(firstEvent.getDetails()) : new HashMap<>();
+            details.put(COUNT_DETAIL, Integer.toString(count));
+            details.put(FIRST_TIME_DETAIL, Long.toString(firstEvent.getTime()));
+            details.put(LAST_TIME_DETAIL, Long.toString(lastTime));
+            event.setDetails(details);
+            return event;
+        }
+    }
+}
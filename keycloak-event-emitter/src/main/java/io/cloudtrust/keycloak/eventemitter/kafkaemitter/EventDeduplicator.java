@@ -0,0 +1,234 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.jboss.logging.Logger;
+import org.keycloak.events.Event;
+import org.keycloak.models.KeycloakSession;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Drops the events already emitted within a sliding window, identified by a 64-bit fingerprint of their content
+ * (type, time, realm, client, user, session, IP address, error and details, whatever the order of the details).
+ * Fingerprints are kept in two Bloom filters of fixed size: the current window and the previous one, the oldest being
+ * cleared when a new window starts. A duplicate is thus detected if it occurs within one window of the original event,
+ * and may be detected up to two windows after it.
+ * Bloom filters have false positives, i.e. distinct events dropped as duplicates; the estimated rate is exposed and
+ * must be kept low by sizing the filters for the event rate.
+ * Cluster-wide, fingerprints not known locally are also registered in the single-use object store of Keycloak, so
+ * that events observed by several nodes are only emitted by the first one, at the cost of a cluster write per event.
+ */
+public class EventDeduplicator {
+    private static final Logger logger = Logger.getLogger(EventDeduplicator.class);
+
+    private static final String CLUSTER_KEY_PREFIX = "kafka-event-emitter-dedupe:";
+    private static final int HASH_COUNT = 5;
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final long windowMillis;
+    private final boolean clusterWide;
+    private final int bitCount;
+    private final AtomicLongArray[] generations = new AtomicLongArray[2];
+    private final AtomicLongArray insertedCounts = new AtomicLongArray(2);
+    private final AtomicLong duplicateCount = new AtomicLong();
+    private volatile int current;
+    private volatile long windowEnd;
+
+    /**
+     * @param windowMillis duration of a window
+     * @param filterBytes  memory of the two Bloom filters
+     * @param clusterWide  true to also check the fingerprints with the other nodes
+     */
+    public EventDeduplicator(long windowMillis, int filterBytes, boolean clusterWide) {
+        this.windowMillis = windowMillis;
+        this.clusterWide = clusterWide;
+        int wordCount = Math.max(1, filterBytes / 2 / Long.BYTES);
+        this.bitCount = wordCount * Long.SIZE;
+        generations[0] = new AtomicLongArray(wordCount);
+        generations[1] = new AtomicLongArray(wordCount);
+        this.windowEnd = timeGen() + windowMillis;
+    }
+
+    /**
+     * Records the event, unless it is a duplicate.
+     *
+     * @param session session used to check the event with the other nodes
+     * @return true if the event has already been emitted and must be dropped
+     */
+    public boolean isDuplicate(Event event, KeycloakSession session) {
+        rotateIfNeeded();
+        long fingerprint = fingerprint(event);
+        int currentIndex = current;
+        boolean known = mightContain(generations[1 - currentIndex], fingerprint);
+        // Also added when known by the previous window, to keep it for the next one
+        known = put(generations[currentIndex], fingerprint) || known;
+        if (!known) {
+            insertedCounts.incrementAndGet(currentIndex);
+            if (clusterWide) {
+                known = !registerInCluster(session, fingerprint);
+            }
+        }
+        if (known) {
+            duplicateCount.incrementAndGet();
+        }
+        return known;
+    }
+
+    /**
+     * @return the memory used by the Bloom filters, in bytes
+     */
+    public long getMemoryBytes() {
+        return 2L * generations[0].length() * Long.BYTES;
+    }
+
+    /**
+     * @return the number of events dropped as duplicates
+     */
+    public long getDuplicateCount() {
+        return duplicateCount.get();
+    }
+
+    /**
+     * @return the estimated probability that a new event is dropped as a duplicate, given the events of the windows
+     */
+    public double getFalsePositiveRate() {
+        long insertedCount = insertedCounts.get(0) + insertedCounts.get(1);
+        // An event is checked against both filters: either one may report it
+        double perFilterRate = Math.pow(-Math.expm1(-(double) HASH_COUNT * insertedCount / 2 / bitCount), HASH_COUNT);
+        return perFilterRate * (2 - perFilterRate);
+    }
+
+    public long getWindowMillis() {
+        return windowMillis;
+    }
+
+    public boolean isClusterWide() {
+        return clusterWide;
+    }
+
+    protected long timeGen() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Starts a new window when the current one has ended, clearing the filter of the previous one.
+     */
+    private void rotateIfNeeded() {
+        long now = timeGen();
+        if (now < windowEnd) {
+            return;
+        }
+        synchronized (this) {
+            if (now < windowEnd) {
+                return;
+            }
+            // After more than one window without event, both filters are obsolete
+            int cleared = now >= windowEnd + windowMillis ? 2 : 1;
+            for (int i = 0; i < cleared; i++) {
+                int next = 1 - current;
+                AtomicLongArray filter = generations[next];
+                for (int word = 0; word < filter.length(); word++) {
+                    filter.set(word, 0L);
+                }
+                insertedCounts.set(next, 0L);
+                current = next;
+            }
+            windowEnd = now + windowMillis;
+        }
+    }
+
+    private boolean registerInCluster(KeycloakSession session, long fingerprint) {
+        try {
+            long lifespanSeconds = Math.max(1L, windowMillis / 1000L);
+            return session.singleUseObjects().putIfAbsent(CLUSTER_KEY_PREFIX + Long.toHexString(fingerprint), lifespanSeconds);
+        } catch (RuntimeException e) {
+            // Emit the event: duplicates are preferable to losing events
+            logger.debugf("Event fingerprint not checked with the cluster: %s", e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * @return true if all the bits of the fingerprint were already set
+     */
+    private boolean put(AtomicLongArray filter, long fingerprint) {
+        boolean present = true;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = bitIndex(fingerprint, i);
+            long mask = 1L << bit;
+            long previous = filter.getAndUpdate(bit >>> 6, word -> word | mask);
+            present &= (previous & mask) != 0;
+        }
+        return present;
+    }
+
+    private boolean mightContain(AtomicLongArray filter, long fingerprint) {
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int bit = bitIndex(fingerprint, i);
+            if ((filter.get(bit >>> 6) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Double hashing of the two halves of the fingerprint.
+     */
+    private int bitIndex(long fingerprint, int i) {
+        int hash = (int) fingerprint + i * (int) (fingerprint >>> 32);
+        return Math.floorMod(hash, bitCount);
+    }
+
+    static long fingerprint(Event event) {
+        long hash = FNV_OFFSET_BASIS;
+        hash = hash(hash, event.getType() != null ? event.getType().name() : null);
+        hash = hash(hash, event.getTime());
+        hash = hash(hash, event.getRealmId());
+        hash = hash(hash, event.getClientId());
+        hash = hash(hash, event.getUserId());
+        hash = hash(hash, event.getSessionId());
+        hash = hash(hash, event.getIpAddress());
+        hash = hash(hash, event.getError());
+        if (event.getDetails() != null) {
+            // Commutative, so that the order of the details doesn't matter
+            long detailsHash = 0L;
+            for (Map.Entry<String, String> detail : event.getDetails().entrySet()) {
+                detailsHash += hash(hash(FNV_OFFSET_BASIS, detail.getKey()), detail.getValue());
+            }
+            hash = hash(hash, detailsHash);
+        }
+        return mix(hash);
+    }
+
+    private static long hash(long hash, String value) {
+        if (value == null) {
+            return (hash ^ 0xFF) * FNV_PRIME;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            hash = (hash ^ value.charAt(i)) * FNV_PRIME;
+        }
+        // Separator, so that ("ab", "c") and ("a", "bc") differ
+        return (hash ^ 0xFE) * FNV_PRIME;
+    }
+
+    private static long hash(long hash, long value) {
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash = (hash ^ ((value >>> (i * 8)) & 0xFF)) * FNV_PRIME;
+        }
+        return hash;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreading the bits of FNV over the whole fingerprint.
+     */
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        return hash ^ (hash >>> 33);
+    }
+}
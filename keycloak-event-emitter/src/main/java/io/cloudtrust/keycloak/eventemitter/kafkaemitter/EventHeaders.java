@@ -0,0 +1,67 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import io.cloudtrust.keycloak.eventemitter.SerializationUtils;
+import io.cloudtrust.keycloak.eventemitter.customevent.ExtendedAdminEvent;
+import io.cloudtrust.keycloak.eventemitter.customevent.IdentifiedEvent;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.internals.RecordHeader;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Kafka headers summarizing an event, so that consumers can route and filter the records without decoding their
+ * value:
+ * <ul>
+ *     <li>kind: "event" or "admin",</li>
+ *     <li>type: one byte, the Flatbuffers event type of an event or operation type of an admin event,</li>
+ *     <li>realm: realm ID, UTF-8 encoded, absent if unknown,</li>
+ *     <li>error: one byte, 1 if the event has an error, 0 otherwise,</li>
+ *     <li>schema: one byte, version of the serialized event,</li>
+ *     <li>uid: Snowflake ID of the event, 8 bytes big-endian.</li>
+ * </ul>
+ * Headers whose value is shared by many events are created once.
+ */
+public class EventHeaders {
+    public static final String KIND = "kind";
+    public static final String TYPE = "type";
+    public static final String REALM = "realm";
+    public static final String ERROR = "error";
+    public static final String SCHEMA = "schema";
+    public static final String UID = "uid";
+
+    private static final Header EVENT_KIND = new RecordHeader(KIND, "event".getBytes(StandardCharsets.UTF_8));
+    private static final Header ADMIN_KIND = new RecordHeader(KIND, "admin".getBytes(StandardCharsets.UTF_8));
+    private static final Header NO_ERROR = new RecordHeader(ERROR, new byte[]{0});
+    private static final Header WITH_ERROR = new RecordHeader(ERROR, new byte[]{1});
+    private static final Header SCHEMA_VERSION = new RecordHeader(SCHEMA, new byte[]{SerializationUtils.SCHEMA_VERSION});
+    private static final Header[] TYPES = new Header[256];
+
+    static {
+        for (int i = 0; i < TYPES.length; i++) {
+            TYPES[i] = new RecordHeader(TYPE, new byte[]{(byte) i});
+        }
+    }
+
+    public List<Header> forEvent(IdentifiedEvent event) {
+        byte type = event.getType() != null ? SerializationUtils.toFlatEventType(event.getType()) : 0;
+        return create(EVENT_KIND, type, event.getRealmId(), event.getError() != null, event.getUid());
+    }
+
+    public List<Header> forAdminEvent(ExtendedAdminEvent adminEvent) {
+        byte type = adminEvent.getOperationType() != null ? (byte) adminEvent.getOperationType().ordinal() : 0;
+        return create(ADMIN_KIND, type, adminEvent.getRealmId(), adminEvent.getError() != null, adminEvent.getUid());
+    }
+
+    private static List<Header> create(Header kind, byte type, String realmId, boolean error, long uid) {
+        Header uidHeader = new RecordHeader(UID, ByteBuffer.allocate(Long.BYTES).putLong(0, uid).array());
+        Header typeHeader = TYPES[type & 0xFF];
+        Header errorHeader = error ? WITH_ERROR : NO_ERROR;
+        if (realmId == null) {
+            return List.of(kind, typeHeader, errorHeader, SCHEMA_VERSION, uidHeader);
+        }
+        Header realmHeader = new RecordHeader(REALM, realmId.getBytes(StandardCharsets.UTF_8));
+        return List.of(kind, typeHeader, realmHeader, errorHeader, SCHEMA_VERSION, uidHeader);
+    }
+}
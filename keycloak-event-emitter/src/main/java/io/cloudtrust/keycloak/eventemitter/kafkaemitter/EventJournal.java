@@ -0,0 +1,381 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import flatbuffers.events.AdminEvent;
+import flatbuffers.events.AuthDetails;
+import flatbuffers.events.Event;
+import flatbuffers.events.EventType;
+import flatbuffers.events.OperationType;
+import flatbuffers.events.ResourceType;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Local journal of the serialized events, kept for incident response on the node without querying Kafka.
+ * Events are appended to memory-mapped segments of fixed size; once the maximum size of the journal is reached, the
+ * oldest segment is deleted. Each entry is made of its length, kind, UID and user ID hash, followed by the FlatBuffer
+ * event. The length is written last, so that an entry torn by a crash ends the segment when the journal is reopened.
+ * Each segment has an index held in memory, rebuilt from the segments when the journal is opened: the UID range of the
+ * segment, and the UID, offset and user ID hash of each entry, i.e. 16 bytes per entry.
+ * Queries return read-only slices of the segments, which remain valid after the segment is deleted.
+ */
+public class EventJournal {
+    public static final byte EVENT = 0;
+    public static final byte ADMIN_EVENT = 1;
+
+    private static final Logger logger = Logger.getLogger(EventJournal.class);
+
+    private static final String FILE_PREFIX = "journal-";
+    private static final String FILE_SUFFIX = ".segment";
+    // Length, kind, UID and user ID hash
+    private static final int ENTRY_HEADER_BYTES = Integer.BYTES + 1 + Long.BYTES + Integer.BYTES;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+    private final Deque<Segment> segments = new ArrayDeque<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile boolean failed;
+
+    private EventJournal(Path directory, int segmentBytes, long maxBytes) {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = (int) Math.max(1L, Math.min(Integer.MAX_VALUE, maxBytes / segmentBytes));
+    }
+
+    /**
+     * Opens the journal, indexing the existing segments.
+     *
+     * @param directory    directory of the segments
+     * @param segmentBytes size of a segment, which bounds the size of an event
+     * @param maxBytes     maximum size of the journal, at least one segment being kept
+     * @throws IOException if the segments can't be read
+     */
+    public static EventJournal open(Path directory, int segmentBytes, long maxBytes) throws IOException {
+        EventJournal journal = new EventJournal(directory, segmentBytes, maxBytes);
+        Files.createDirectories(directory);
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            stream.forEach(paths::add);
+        }
+        paths.sort(null);
+        for (Path path : paths) {
+            journal.segments.addLast(Segment.recover(path));
+        }
+        journal.deleteOldSegments(0);
+        return journal;
+    }
+
+    /**
+     * Appends a serialized event, without changing the position of the buffer. Events larger than a segment are
+     * dropped. If a segment can't be created, the journal stops appending.
+     *
+     * @param kind    {@link #EVENT} or {@link #ADMIN_EVENT}
+     * @param userId  user ID the event is indexed by, may be null
+     * @param payload serialized event
+     */
+    public void append(byte kind, long uid, String userId, ByteBuffer payload) {
+        int length = payload.remaining();
+        if (failed || ENTRY_HEADER_BYTES + length > segmentBytes) {
+            droppedCount.incrementAndGet();
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            Segment segment = segments.peekLast();
+            if (segment == null || !segment.hasRoom(ENTRY_HEADER_BYTES + length)) {
+                segment = roll(uid);
+            }
+            segment.append(kind, uid, userId != null ? userId.hashCode() : 0, payload);
+        } catch (IOException e) {
+            failed = true;
+            droppedCount.incrementAndGet();
+            logger.errorv(e, "Can't create a journal segment in %s, the journal is disabled", directory);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the most recent entries of a UID range, and of a user if given.
+     *
+     * @param fromUid first UID of the range
+     * @param toUid   last UID of the range
+     * @param userId  user ID the entries are indexed by, null for all the users
+     * @param limit   maximum number of entries
+     * @return the matching entries, oldest first
+     */
+    public List<Entry> query(long fromUid, long toUid, String userId, int limit) {
+        List<Entry> entries = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            Iterator<Segment> iterator = segments.descendingIterator();
+            while (iterator.hasNext() && entries.size() < limit) {
+                Segment segment = iterator.next();
+                if (segment.count > 0 && segment.minUid <= toUid && segment.maxUid >= fromUid) {
+                    segment.collect(fromUid, toUid, userId, limit, entries);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Collections.reverse(entries);
+        return entries;
+    }
+
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments) {
+                segment.mapped.force();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    public int getSegmentCount() {
+        lock.readLock().lock();
+        try {
+            return segments.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of events in the journal
+     */
+    public long getEntryCount() {
+        lock.readLock().lock();
+        try {
+            return segments.stream().mapToLong(segment -> segment.count).sum();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of events not appended, being larger than a segment or the journal having failed
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+
+    private Segment roll(long firstUid) throws IOException {
+        deleteOldSegments(1);
+        // Zero-padded, so that segments sort by their first UID
+        Path path = directory.resolve(String.format("%s%019d-%d%s", FILE_PREFIX, firstUid, System.nanoTime(), FILE_SUFFIX));
+        Segment segment = Segment.create(path, segmentBytes);
+        segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Deletes the oldest segments to make room for the given number of new ones.
+     */
+    private void deleteOldSegments(int newSegments) {
+        while (!segments.isEmpty() && segments.size() + newSegments > maxSegments) {
+            Segment segment = segments.removeFirst();
+            try {
+                Files.deleteIfExists(segment.path);
+            } catch (IOException e) {
+                logger.errorv(e, "Can't delete journal segment %s", segment.path);
+            }
+        }
+    }
+
+    /**
+     * Event of the journal.
+     *
+     * @param kind    {@link #EVENT} or {@link #ADMIN_EVENT}
+     * @param payload read-only slice of the segment holding the serialized event
+     */
+    public record Entry(byte kind, long uid, ByteBuffer payload) {
+        /**
+         * @return the user ID the entry is indexed by
+         */
+        public String getUserId() {
+            if (kind == ADMIN_EVENT) {
+                AuthDetails authDetails = AdminEvent.getRootAsAdminEvent(payload.duplicate()).authDetails();
+                return authDetails != null ? authDetails.userId() : null;
+            }
+            return Event.getRootAsEvent(payload.duplicate()).userId();
+        }
+
+        /**
+         * @return the fields of the event, read from the segment without copying the entry
+         */
+        public Map<String, Object> toMap() {
+            Map<String, Object> fields = new LinkedHashMap<>();
+            fields.put("uid", uid);
+            if (kind == ADMIN_EVENT) {
+                AdminEvent adminEvent = AdminEvent.getRootAsAdminEvent(payload.duplicate());
+                fields.put("kind", "adminEvent");
+                fields.put("time", adminEvent.time());
+                fields.put("realmId", adminEvent.realmId());
+                AuthDetails authDetails = adminEvent.authDetails();
+                if (authDetails != null) {
+                    Map<String, Object> auth = new LinkedHashMap<>();
+                    auth.put("realmId", authDetails.realmId());
+                    auth.put("clientId", authDetails.clientId());
+                    auth.put("userId", authDetails.userId());
+                    auth.put("username", authDetails.username());
+                    auth.put("ipAddress", authDetails.ipAddress());
+                    fields.put("authDetails", auth);
+                }
+                fields.put("resourceType", ResourceType.name(adminEvent.resourceType()));
+                fields.put("operationType", OperationType.name(adminEvent.operationType()));
+                fields.put("resourcePath", adminEvent.resourcePath());
+                fields.put("representation", adminEvent.representation());
+                fields.put("error", adminEvent.error());
+                Map<String, String> details = new LinkedHashMap<>();
+                for (int i = 0; i < adminEvent.detailsLength(); i++) {
+                    details.put(adminEvent.details(i).key(), adminEvent.details(i).value());
+                }
+                fields.put("details", details);
+            } else {
+                Event event = Event.getRootAsEvent(payload.duplicate());
+                fields.put("kind", "event");
+                fields.put("time", event.time());
+                fields.put("type", EventType.name(event.type()));
+                fields.put("realmId", event.realmId());
+                fields.put("clientId", event.clientId());
+                fields.put("userId", event.userId());
+                fields.put("sessionId", event.sessionId());
+                fields.put("ipAddress", event.ipAddress());
+                fields.put("error", event.error());
+                Map<String, String> details = new LinkedHashMap<>();
+                for (int i = 0; i < event.detailsLength(); i++) {
+                    details.put(event.details(i).key(), event.details(i).value());
+                }
+                fields.put("details", details);
+            }
+            return fields;
+        }
+    }
+
+    /**
+     * Segment and its index, only mutated while holding the write lock of the journal.
+     */
+    private static class Segment {
+        private final Path path;
+        private final MappedByteBuffer mapped;
+        private int position;
+        private int count;
+        private long minUid = Long.MAX_VALUE;
+        private long maxUid = Long.MIN_VALUE;
+        private long[] uids = new long[INITIAL_INDEX_CAPACITY];
+        private int[] offsets = new int[INITIAL_INDEX_CAPACITY];
+        private int[] userHashes = new int[INITIAL_INDEX_CAPACITY];
+
+        private Segment(Path path, MappedByteBuffer mapped) {
+            this.path = path;
+            this.mapped = mapped;
+        }
+
+        static Segment create(Path path, int segmentBytes) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                return new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes));
+            }
+        }
+
+        /**
+         * Maps an existing segment and indexes its entries, up to the first empty or torn one.
+         */
+        static Segment recover(Path path) throws IOException {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                Segment segment = new Segment(path, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+                MappedByteBuffer mapped = segment.mapped;
+                while (mapped.capacity() - segment.position >= ENTRY_HEADER_BYTES) {
+                    int length = mapped.getInt(segment.position);
+                    if (length <= 0 || length > mapped.capacity() - segment.position - ENTRY_HEADER_BYTES) {
+                        break;
+                    }
+                    segment.index(mapped.getLong(segment.position + Integer.BYTES + 1),
+                            mapped.getInt(segment.position + Integer.BYTES + 1 + Long.BYTES));
+                    segment.position += ENTRY_HEADER_BYTES + length;
+                }
+                return segment;
+            }
+        }
+
+        boolean hasRoom(int entryBytes) {
+            return mapped.capacity() - position >= entryBytes;
+        }
+
+        void append(byte kind, long uid, int userHash, ByteBuffer payload) {
+            int length = payload.remaining();
+            mapped.put(position + Integer.BYTES, kind);
+            mapped.putLong(position + Integer.BYTES + 1, uid);
+            mapped.putInt(position + Integer.BYTES + 1 + Long.BYTES, userHash);
+            mapped.put(position + ENTRY_HEADER_BYTES, payload, payload.position(), length);
+            mapped.putInt(position, length);
+            index(uid, userHash);
+            position += ENTRY_HEADER_BYTES + length;
+        }
+
+        /**
+         * Adds the matching entries, most recent first, until the limit is reached. Entries whose user ID hash matches
+         * are decoded to check the user ID itself.
+         */
+        void collect(long fromUid, long toUid, String userId, int limit, List<Entry> entries) {
+            int userHash = userId != null ? userId.hashCode() : 0;
+            for (int i = count - 1; i >= 0 && entries.size() < limit; i--) {
+                long uid = uids[i];
+                if (uid < fromUid || uid > toUid || (userId != null && userHashes[i] != userHash)) {
+                    continue;
+                }
+                int offset = offsets[i];
+                Entry entry = new Entry(mapped.get(offset + Integer.BYTES), uid,
+                        mapped.slice(offset + ENTRY_HEADER_BYTES, mapped.getInt(offset)).asReadOnlyBuffer());
+                if (userId == null || userId.equals(entry.getUserId())) {
+                    entries.add(entry);
+                }
+            }
+        }
+
+        private void index(long uid, int userHash) {
+            if (count == uids.length) {
+                uids = Arrays.copyOf(uids, count * 2);
+                offsets = Arrays.copyOf(offsets, count * 2);
+                userHashes = Arrays.copyOf(userHashes, count * 2);
+            }
+            uids[count] = uid;
+            offsets[count] = position;
+            userHashes[count] = userHash;
+            count++;
+            minUid = Math.min(minUid, uid);
+            maxUid = Math.max(maxUid, uid);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Assigns the events to the priority lanes of the sender, so that security-relevant events survive an overload at the
+ * expense of high-volume token events.
+ */
+public class EventPrioritizer {
+    public static final Set<EventType> DEFAULT_HIGH_PRIORITY_EVENT_TYPES = EnumSet.of(EventType.LOGIN_ERROR,
+            EventType.CLIENT_LOGIN_ERROR, EventType.UPDATE_PASSWORD, EventType.RESET_PASSWORD, EventType.IMPERSONATE,
+            EventType.DELETE_ACCOUNT, EventType.UPDATE_CREDENTIAL, EventType.REMOVE_CREDENTIAL);
+    public static final Set<EventType> DEFAULT_LOW_PRIORITY_EVENT_TYPES = EnumSet.of(EventType.REFRESH_TOKEN,
+            EventType.CODE_TO_TOKEN, EventType.INTROSPECT_TOKEN, EventType.USER_INFO_REQUEST);
+    public static final Set<OperationType> DEFAULT_HIGH_PRIORITY_OPERATION_TYPES = EnumSet.allOf(OperationType.class);
+
+    private final Set<EventType> highPriorityEventTypes;
+    private final Set<EventType> lowPriorityEventTypes;
+    private final Set<OperationType> highPriorityOperationTypes;
+    private final boolean highPriorityErrors;
+
+    /**
+     * @param highPriorityEventTypes     types of the user events sent with a high priority
+     * @param lowPriorityEventTypes      types of the user events sent with a low priority
+     * @param highPriorityOperationTypes operations of the admin events sent with a high priority, the other ones
+     *                                   being sent with a normal priority
+     * @param highPriorityErrors         whether the events with an error are sent with a high priority, whatever
+     *                                   their type
+     */
+    public EventPrioritizer(Set<EventType> highPriorityEventTypes, Set<EventType> lowPriorityEventTypes,
+                            Set<OperationType> highPriorityOperationTypes, boolean highPriorityErrors) {
+        this.highPriorityEventTypes = highPriorityEventTypes;
+        this.lowPriorityEventTypes = lowPriorityEventTypes;
+        this.highPriorityOperationTypes = highPriorityOperationTypes;
+        this.highPriorityErrors = highPriorityErrors;
+    }
+
+    public EventPriority getPriority(Event event) {
+        if ((highPriorityErrors && event.getError() != null) || highPriorityEventTypes.contains(event.getType())) {
+            return EventPriority.HIGH;
+        }
+        return lowPriorityEventTypes.contains(event.getType()) ? EventPriority.LOW : EventPriority.NORMAL;
+    }
+
+    public EventPriority getPriority(AdminEvent adminEvent) {
+        if ((highPriorityErrors && adminEvent.getError() != null) || highPriorityOperationTypes.contains(adminEvent.getOperationType())) {
+            return EventPriority.HIGH;
+        }
+        return EventPriority.NORMAL;
+    }
+}
@@ -0,0 +1,11 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+/**
+ * Priority lanes of the events waiting for Kafka, from the most to the least important. Under overload, events of the
+ * lower lanes are dropped first, and buffered events are sent lane by lane.
+ */
+public enum EventPriority {
+    HIGH,
+    NORMAL,
+    LOW
+}
@@ -0,0 +1,52 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * The part of the Kafka producer API the sender uses. The emitter doesn't use transactions, so the producers of the
+ * events don't have to implement them.
+ */
+public interface EventProducer {
+    /**
+     * @return a producer of the events backed by the given Kafka producer
+     */
+    static EventProducer of(Producer<String, String> producer) {
+        return new KafkaProducerAdapter(producer);
+    }
+
+    /**
+     * @see Producer#send(ProducerRecord, Callback)
+     */
+    Future<RecordMetadata> send(ProducerRecord<String, String> record, Callback callback);
+
+    /**
+     * @see Producer#flush()
+     */
+    void flush();
+
+    /**
+     * @see Producer#partitionsFor(String)
+     */
+    List<PartitionInfo> partitionsFor(String topic);
+
+    /**
+     * @see Producer#metrics()
+     */
+    Map<MetricName, ? extends Metric> metrics();
+
+    /**
+     * @see Producer#close(Duration)
+     */
+    void close(Duration timeout);
+}
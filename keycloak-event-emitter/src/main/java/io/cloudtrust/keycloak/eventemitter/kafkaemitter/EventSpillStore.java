@@ -0,0 +1,118 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.jboss.logging.Logger;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Persists the events which could not be sent before shutdown, so that they are buffered again on next start.
+ * Each spill is a text file with one record per line: topic, key, value, headers and priority separated by
+ * tabulations. Null keys and values are written as empty strings. Files written before headers were spilled have no
+ * headers field, and files written before priorities were spilled have no priority field: their events are reloaded
+ * with the normal priority.
+ */
+public class EventSpillStore {
+    private static final Logger logger = Logger.getLogger(EventSpillStore.class);
+
+    private static final String FILE_PREFIX = "events-";
+    private static final String FILE_SUFFIX = ".spill";
+    private static final String SEPARATOR = "\t";
+
+    private final Path directory;
+
+    public EventSpillStore(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Writes the events in a new spill file. The file is only visible once completely written.
+     *
+     * @param events events to persist, with their priority
+     * @throws IOException if the spill file can't be written
+     */
+    public void write(Collection<PendingEventBuffer.PendingEvent> events) throws IOException {
+        if (events.isEmpty()) {
+            return;
+        }
+        Files.createDirectories(directory);
+        Path tmpFile = Files.createTempFile(directory, FILE_PREFIX, ".tmp");
+        try (BufferedWriter writer = Files.newBufferedWriter(tmpFile, StandardCharsets.UTF_8)) {
+            for (PendingEventBuffer.PendingEvent event : events) {
+                ProducerRecord<String, String> record = event.record();
+                writer.write(record.topic());
+                writer.write(SEPARATOR);
+                writer.write(record.key() != null ? record.key() : "");
+                writer.write(SEPARATOR);
+                writer.write(record.value() != null ? record.value() : "");
+                writer.write(SEPARATOR);
+                writer.write(HeaderCodec.format(record.headers()));
+                writer.write(SEPARATOR);
+                writer.write(event.priority().name());
+                writer.newLine();
+            }
+        }
+        Path spillFile = directory.resolve(FILE_PREFIX + System.currentTimeMillis() + "-" + tmpFile.getFileName().toString().hashCode() + FILE_SUFFIX);
+        Files.move(tmpFile, spillFile, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads and deletes all the spill files, oldest records first.
+     *
+     * @return the persisted events, with their priority
+     */
+    public List<PendingEventBuffer.PendingEvent> readAll() {
+        List<PendingEventBuffer.PendingEvent> events = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return events;
+        }
+        List<Path> spillFiles = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*" + FILE_SUFFIX)) {
+            stream.forEach(spillFiles::add);
+        } catch (IOException e) {
+            logger.errorv(e, "Can't list spill directory %s", directory);
+            return events;
+        }
+        spillFiles.sort(null);
+        for (Path spillFile : spillFiles) {
+            try {
+                for (String line : Files.readAllLines(spillFile, StandardCharsets.UTF_8)) {
+                    String[] fields = line.split(SEPARATOR, 5);
+                    if (fields.length >= 3) {
+                        ProducerRecord<String, String> record = new ProducerRecord<>(fields[0], null,
+                                fields[1].isEmpty() ? null : fields[1], fields[2].isEmpty() ? null : fields[2],
+                                fields.length >= 4 ? HeaderCodec.parse(fields[3]) : null);
+                        EventPriority priority = fields.length == 5 ? parsePriority(fields[4]) : EventPriority.NORMAL;
+                        events.add(new PendingEventBuffer.PendingEvent(record, priority));
+                    }
+                }
+                Files.delete(spillFile);
+            } catch (IOException e) {
+                logger.errorv(e, "Can't read spill file %s", spillFile);
+            }
+        }
+        return events;
+    }
+
+    public Path getDirectory() {
+        return directory;
+    }
+
+    private static EventPriority parsePriority(String name) {
+        try {
+            return EventPriority.valueOf(name);
+        } catch (IllegalArgumentException e) {
+            logger.infof("Unknown spilled event priority %s, loaded with the normal priority", name);
+            return EventPriority.NORMAL;
+        }
+    }
+}
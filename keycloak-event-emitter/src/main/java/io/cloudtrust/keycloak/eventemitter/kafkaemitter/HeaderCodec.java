@@ -0,0 +1,57 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeader;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Text form of record headers, for the files of the spill and dead-letter stores: headers separated by commas, each
+ * one being its Base64 encoded key and value separated by a colon. A header without value has no colon.
+ */
+final class HeaderCodec {
+    private static final String HEADER_SEPARATOR = ",";
+    private static final String VALUE_SEPARATOR = ":";
+
+    private HeaderCodec() {
+    }
+
+    static String format(Headers headers) {
+        StringBuilder text = new StringBuilder();
+        for (Header header : headers) {
+            if (!text.isEmpty()) {
+                text.append(HEADER_SEPARATOR);
+            }
+            text.append(Base64.getEncoder().encodeToString(header.key().getBytes(StandardCharsets.UTF_8)));
+            if (header.value() != null) {
+                text.append(VALUE_SEPARATOR).append(Base64.getEncoder().encodeToString(header.value()));
+            }
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return the headers, those which are not valid excepted
+     */
+    static List<Header> parse(String text) {
+        List<Header> headers = new ArrayList<>();
+        if (text.isEmpty()) {
+            return headers;
+        }
+        for (String header : text.split(HEADER_SEPARATOR)) {
+            int separatorIndex = header.indexOf(VALUE_SEPARATOR);
+            String key = separatorIndex < 0 ? header : header.substring(0, separatorIndex);
+            try {
+                byte[] value = separatorIndex < 0 ? null : Base64.getDecoder().decode(header.substring(separatorIndex + 1));
+                headers.add(new RecordHeader(new String(Base64.getDecoder().decode(key), StandardCharsets.UTF_8), value));
+            } catch (IllegalArgumentException e) {
+                // Not Base64, skipped
+            }
+        }
+        return headers;
+    }
+}
@@ -1,76 +1,165 @@
 package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
 
+import com.google.flatbuffers.FlatBufferBuilder;
 import io.cloudtrust.keycloak.eventemitter.CompleteEventUtils;
+import io.cloudtrust.keycloak.eventemitter.EnrichmentExecutor;
+import io.cloudtrust.keycloak.eventemitter.FlatBufferBuilderPool;
 import io.cloudtrust.keycloak.eventemitter.SerializationUtils;
 import io.cloudtrust.keycloak.eventemitter.customevent.ExtendedAdminEvent;
 import io.cloudtrust.keycloak.eventemitter.customevent.IdentifiedAdminEvent;
 import io.cloudtrust.keycloak.eventemitter.customevent.IdentifiedEvent;
 import io.cloudtrust.keycloak.eventemitter.snowflake.IdGenerator;
-import org.apache.kafka.clients.producer.Producer;
+import io.cloudtrust.keycloak.eventemitter.snowflake.IdRange;
+import io.cloudtrust.keycloak.eventemitter.tracing.LatencyTracer;
+import io.cloudtrust.keycloak.eventemitter.tracing.Stage;
 import org.apache.kafka.clients.producer.ProducerRecord;
-import org.apache.kafka.clients.producer.RecordMetadata;
-import org.jboss.logging.Logger;
+import org.apache.kafka.common.header.Header;
 import org.keycloak.events.Event;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.models.KeycloakSession;
-import org.keycloak.models.RealmModel;
-import org.keycloak.models.UserModel;
 
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Base64;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.Lock;
-import java.util.function.Consumer;
+import java.util.HashMap;
+import java.util.List;
 
 public class KafkaEventEmitterProvider implements EventListenerProvider {
-    private static final Logger logger = Logger.getLogger(KafkaEventEmitterProvider.class);
-
-    private final Producer<String, String> producer;
+    private final KafkaEventSender sender;
     private final KeycloakSession keycloakSession;
     private final String eventTopic;
     private final String adminEventTopic;
     private final IdGenerator idGenerator;
-    private final LinkedBlockingQueue<ProducerRecord<String, String>> pendingEvents;
-
-    private final KafkaEventEmitterState state;
-    private final Lock stateLock;
+    private final EnrichmentExecutor enrichmentExecutor;
+    private final UsernameChangePublisher usernameChangePublisher;
+    private final LatencyTracer tracer;
+    private final EventPrioritizer prioritizer;
+    private final EventCoalescer coalescer;
+    private final FlatBufferBuilderPool builderPool;
+    private final EmissionFilter filter;
+    private final EventHeaders headers;
+    private final EventDeduplicator deduplicator;
+    private final RealmRateLimiter rateLimiter;
+    private final EventJournal journal;
+    private final RawEventSender rawSender;
+    private final boolean sortedDetails;
 
-    KafkaEventEmitterProvider(KeycloakSession keycloakSession, Producer<String, String> producer, String eventTopic,
-                              String adminEventTopic, IdGenerator idGenerator,
-                              LinkedBlockingQueue<ProducerRecord<String, String>> pendingEvents, KafkaEventEmitterState state, Lock stateLock) {
+    KafkaEventEmitterProvider(KeycloakSession keycloakSession, EmissionPipeline pipeline) {
         this.keycloakSession = keycloakSession;
-        this.producer = producer;
-        this.eventTopic = eventTopic;
-        this.adminEventTopic = adminEventTopic;
-        this.idGenerator = idGenerator;
-        this.pendingEvents = pendingEvents;
-        this.state = state;
-        this.stateLock = stateLock;
+        this.sender = pipeline.getSender();
+        this.eventTopic = pipeline.getEventTopic();
+        this.adminEventTopic = pipeline.getAdminEventTopic();
+        this.idGenerator = pipeline.getIdGenerator();
+        this.enrichmentExecutor = pipeline.getEnrichmentExecutor();
+        this.usernameChangePublisher = pipeline.getUsernameChangePublisher();
+        this.tracer = pipeline.getTracer();
+        this.prioritizer = pipeline.getPrioritizer();
+        this.coalescer = pipeline.getCoalescer();
+        this.builderPool = pipeline.getBuilderPool();
+        this.filter = pipeline.getFilter();
+        this.headers = pipeline.getHeaders();
+        this.deduplicator = pipeline.getDeduplicator();
+        this.rateLimiter = pipeline.getRateLimiter();
+        this.journal = pipeline.getJournal();
+        this.rawSender = pipeline.getRawSender();
+        this.sortedDetails = pipeline.isSortedDetails();
     }
 
     @Override
     public void onEvent(Event event) {
-        CompleteEventUtils.completeEventAttributes(keycloakSession, event);
+        if (usernameChangePublisher != null) {
+            usernameChangePublisher.onEvent(event, keycloakSession);
+        }
+        if (filter != null && !filter.accept(event)) {
+            return;
+        }
+        if (deduplicator != null && deduplicator.isDuplicate(event, keycloakSession)) {
+            return;
+        }
+        if (coalescer != null && coalescer.add(event)) {
+            return;
+        }
+        if (rateLimiter != null && !rateLimiter.tryAcquire(event)) {
+            return;
+        }
+        emit(event);
+    }
+
+    /**
+     * Emits the event without coalescing it.
+     */
+    void emit(Event event) {
+        traceBegin();
         long uid = idGenerator.nextValidId();
-        IdentifiedEvent identifiedEvent = new IdentifiedEvent(uid, event);
+        trace(Stage.ID_GENERATION);
+        emit(event, uid);
+    }
 
-        // Flatbuffer serialization
-        ByteBuffer buffer = SerializationUtils.toFlat(identifiedEvent);
+    /**
+     * Emits a batch of events without coalescing them, their IDs being reserved at once.
+     */
+    void emitAll(List<Event> events) {
+        int maxRangeSize = (int) idGenerator.getConfig().getSequenceMask() + 1;
+        for (int start = 0; start < events.size(); start += maxRangeSize) {
+            int count = Math.min(maxRangeSize, events.size() - start);
+            traceBegin();
+            IdRange range = idGenerator.reserveValid(count);
+            trace(Stage.ID_GENERATION);
+            for (int i = 0; i < count; i++) {
+                traceBegin();
+                emit(events.get(start + i), range.get(i));
+            }
+        }
+    }
 
-        produceEvent(buffer, identifiedEvent.getUserId(), eventTopic);
+    private void emit(Event event, long uid) {
+        if (enrichmentExecutor == null) {
+            CompleteEventUtils.completeEventAttributes(getUserStoreSession(), event);
+            trace(Stage.ENRICHMENT);
+            emitEvent(new IdentifiedEvent(uid, event));
+            return;
+        }
+        // The event is copied as the enrichment may complete after its emission without enrichment
+        IdentifiedEvent identifiedEvent = copyOf(uid, event);
+        enrichmentExecutor.execute(session -> {
+            traceBegin();
+            IdentifiedEvent enrichedEvent = copyOf(uid, identifiedEvent);
+            CompleteEventUtils.completeEventAttributes(session, enrichedEvent);
+            trace(Stage.ENRICHMENT);
+            return enrichedEvent;
+        }, () -> {
+            CompleteEventUtils.completeEventAttributes(null, identifiedEvent);
+            return identifiedEvent;
+        }, this::emitEvent);
     }
 
     @Override
     public void onEvent(AdminEvent adminEvent, boolean includeRepresentation) {
+        if (usernameChangePublisher != null) {
+            usernameChangePublisher.onEvent(adminEvent);
+        }
+        if (filter != null && !filter.accept(adminEvent)) {
+            return;
+        }
+        traceBegin();
         long uid = idGenerator.nextValidId();
+        trace(Stage.ID_GENERATION);
         IdentifiedAdminEvent identifiedAdminEvent = new IdentifiedAdminEvent(uid, adminEvent);
-        ExtendedAdminEvent customAdminEvent = CompleteEventUtils.completeAdminEventAttributes(keycloakSession, identifiedAdminEvent);
-
-        // Flatbuffer serialization
-        ByteBuffer buffer = SerializationUtils.toFlat(customAdminEvent);
-
-        produceEvent(buffer, customAdminEvent.getAuthDetails().getUserId(), adminEventTopic);
+        if (enrichmentExecutor == null) {
+            ExtendedAdminEvent extendedAdminEvent = CompleteEventUtils.completeAdminEventAttributes(getUserStoreSession(), identifiedAdminEvent);
+            trace(Stage.ENRICHMENT);
+            emitAdminEvent(extendedAdminEvent);
+            return;
+        }
+        enrichmentExecutor.execute(session -> {
+                    traceBegin();
+                    ExtendedAdminEvent extendedAdminEvent = CompleteEventUtils.completeAdminEventAttributes(session, identifiedAdminEvent);
+                    trace(Stage.ENRICHMENT);
+                    return extendedAdminEvent;
+                },
+                () -> CompleteEventUtils.completeAdminEventAttributes(null, identifiedAdminEvent),
+                this::emitAdminEvent);
     }
 
     @Override
@@ -78,73 +167,111 @@ public class KafkaEventEmitterProvider implements EventListenerProvider {
 
     }
 
-    private void findUser(String userId, String realmId, Consumer<UserModel> whenUserFound) {
-        RealmModel realm = keycloakSession.realms().getRealm(realmId);
-        if (realm != null) {
-            UserModel user = keycloakSession.users().getUserById(realm, userId);
+    /**
+     * Usernames are not looked up when they are published to a dedicated topic.
+     */
+    private KeycloakSession getUserStoreSession() {
+        return usernameChangePublisher == null ? keycloakSession : null;
+    }
 
-            if (user != null) {
-                whenUserFound.accept(user);
-            }
+    /**
+     * Tracing calls are no-ops when tracing is disabled.
+     */
+    private void traceBegin() {
+        if (tracer != null) {
+            tracer.begin();
         }
     }
 
-    private void produceEvent(ByteBuffer buffer, String key, String topic) {
-        byte[] b = new byte[buffer.remaining()];
-        buffer.get(b);
-
-        String eventValue = Base64.getEncoder().encodeToString(b);
+    private void trace(Stage stage) {
+        if (tracer != null) {
+            tracer.mark(stage);
+        }
+    }
 
-        // Event production in Kafka topic
-        ProducerRecord<String, String> record = new ProducerRecord<>(topic, key, eventValue);
-
-        if (state.isWorking()) {
-            producer.send(record, (RecordMetadata recordMetadata, Exception e) -> {
-                if (e != null) {
-                    logger.error(e);
-                    logger.error(record);
-                }
-            });
-        } else if (producer == null) {
-            stateLock.lock();
-            while (!pendingEvents.offer(record)) {
-                ProducerRecord<String, String> skippedRecord = pendingEvents.poll();
-                if (skippedRecord != null) {
-                    logger.errorf("Event dropped due to full queue, event : %s", skippedRecord);
-                }
+    private void emitEvent(IdentifiedEvent identifiedEvent) {
+        // Emission may run on another thread than the enrichment
+        traceBegin();
+        FlatBufferBuilder builder = acquireBuilder();
+        try {
+            // Flatbuffer serialization
+            ByteBuffer buffer = SerializationUtils.toFlat(identifiedEvent, builder, sortedDetails);
+            trace(Stage.SERIALIZATION);
+            if (journal != null) {
+                journal.append(EventJournal.EVENT, identifiedEvent.getUid(), identifiedEvent.getUserId(), buffer);
+                trace(Stage.JOURNAL);
             }
-            state.pending();
-            stateLock.unlock();
-        } else if (state.isStarting() || state.isPending()) {
-            stateLock.lock();
-            while (!pendingEvents.offer(record)) {
-                ProducerRecord<String, String> skippedRecord = pendingEvents.poll();
-                if (skippedRecord != null) {
-                    logger.errorf("Event dropped due to full queue, event : %s", skippedRecord);
-                }
+
+            EventPriority priority = prioritizer != null ? prioritizer.getPriority(identifiedEvent) : EventPriority.NORMAL;
+            List<Header> recordHeaders = headers != null ? headers.forEvent(identifiedEvent) : null;
+            String rawTopic = rawSender != null ? rawSender.getEventTopic() : null;
+            produceEvent(buffer, identifiedEvent.getUserId(), eventTopic, rawTopic, priority, recordHeaders);
+        } finally {
+            releaseBuilder(builder);
+        }
+    }
+
+    private void emitAdminEvent(ExtendedAdminEvent customAdminEvent) {
+        traceBegin();
+        FlatBufferBuilder builder = acquireBuilder();
+        try {
+            // Flatbuffer serialization
+            ByteBuffer buffer = SerializationUtils.toFlat(customAdminEvent, builder, sortedDetails);
+            trace(Stage.SERIALIZATION);
+            if (journal != null) {
+                journal.append(EventJournal.ADMIN_EVENT, customAdminEvent.getUid(), customAdminEvent.getAuthDetails().getUserId(), buffer);
+                trace(Stage.JOURNAL);
             }
 
-            int pendingEventsSize = pendingEvents.size();
-            for (int i = 0; i < pendingEventsSize; i++) {
-                ProducerRecord<String, String> polledRecord = pendingEvents.poll();
+            EventPriority priority = prioritizer != null ? prioritizer.getPriority(customAdminEvent) : EventPriority.NORMAL;
+            List<Header> recordHeaders = headers != null ? headers.forAdminEvent(customAdminEvent) : null;
+            String rawTopic = rawSender != null ? rawSender.getAdminEventTopic() : null;
+            produceEvent(buffer, customAdminEvent.getAuthDetails().getUserId(), adminEventTopic, rawTopic, priority, recordHeaders);
+        } finally {
+            releaseBuilder(builder);
+        }
+    }
+
+    /**
+     * Builders are pooled when serialization buffers are, otherwise a builder is created per event.
+     */
+    private FlatBufferBuilder acquireBuilder() {
+        return builderPool != null ? builderPool.acquire() : new FlatBufferBuilder(SerializationUtils.FLATBUFFER_INIT_SIZE);
+    }
 
-                if (polledRecord == null) {
-                    return;
-                }
+    private void releaseBuilder(FlatBufferBuilder builder) {
+        if (builderPool != null) {
+            builderPool.release(builder);
+        }
+    }
 
-                producer.send(polledRecord, (RecordMetadata recordMetadata, Exception e) -> {
-                    if (e != null) {
-                        logger.error(e);
-                        logger.error(record);
-                    }
-                });
-            }
-            state.working();
-            stateLock.unlock();
-        } else {
-            logger.error(state);
-            logger.error(record);
-            throw new IllegalStateException("Kafka event consumer is in an indefinite state");
+    private static IdentifiedEvent copyOf(long uid, Event event) {
+        IdentifiedEvent copy = new IdentifiedEvent(uid, event);
+        if (event.getDetails() != null) {
+            copy.setDetails(new HashMap<>(event.getDetails()));
+        }
+        return copy;
+    }
+
+    /**
+     * @param rawTopic topic where the event is also sent as raw bytes, null if it is not
+     */
+    private void produceEvent(ByteBuffer buffer, String key, String topic, String rawTopic, EventPriority priority,
+                              List<Header> recordHeaders) {
+        // Sliced before the Base64 encoder consumes the buffer
+        ByteBuffer rawValue = rawTopic != null ? buffer.slice() : null;
+        // Encoded from the backing array of a heap builder buffer, a direct one being first copied by the encoder; the
+        // encoded value is then copied by the String and by the serializer of the producer
+        ByteBuffer encodedValue = Base64.getEncoder().encode(buffer);
+        String eventValue = new String(encodedValue.array(), 0, encodedValue.remaining(), StandardCharsets.ISO_8859_1);
+        trace(Stage.ENCODING);
+
+        // Event production in Kafka topic
+        sender.send(new ProducerRecord<>(topic, null, key, eventValue, recordHeaders), priority);
+        if (rawValue != null) {
+            // Copied by the serializer of the producer before the builder returns to the pool
+            rawSender.send(new ProducerRecord<>(rawTopic, null, key, rawValue, recordHeaders));
         }
+        trace(Stage.SEND);
     }
 }
@@ -1,27 +1,56 @@
 package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
 
+import io.cloudtrust.keycloak.eventemitter.EnrichmentExecutor;
+import io.cloudtrust.keycloak.eventemitter.FlatBufferBuilderPool;
+import io.cloudtrust.keycloak.eventemitter.SerializationUtils;
 import io.cloudtrust.keycloak.eventemitter.snowflake.IdGenerator;
+import io.cloudtrust.keycloak.eventemitter.snowflake.IdGeneratorConfig;
+import io.cloudtrust.keycloak.eventemitter.snowflake.WorkerIdLease;
+import io.cloudtrust.keycloak.eventemitter.tracing.LatencyTracer;
+import io.cloudtrust.keycloak.eventemitter.tracing.Stage;
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.AdminClientConfig;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.Producer;
 import org.apache.kafka.clients.producer.ProducerConfig;
-import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.config.SaslConfigs;
 import org.apache.kafka.common.security.oauthbearer.OAuthBearerLoginCallbackHandler;
+import org.apache.kafka.common.serialization.ByteBufferSerializer;
 import org.apache.kafka.common.serialization.StringSerializer;
 import org.jboss.logging.Logger;
 import org.keycloak.Config;
+import org.keycloak.events.Event;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventListenerProviderFactory;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.OperationType;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.provider.ServerInfoAwareProviderFactory;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class KafkaEventEmitterProviderFactory implements EventListenerProviderFactory, ServerInfoAwareProviderFactory {
     private static final Logger logger = Logger.getLogger(KafkaEventEmitterProviderFactory.class);
@@ -44,6 +73,98 @@ public class KafkaEventEmitterProviderFactory implements EventListenerProviderFa
     private static final String SASL_MECHANISM_KEY = "saslMechanism";
     private static final String SNOWFLAKE_KEYCLOAKID_CONFIG_KEY = "keycloakId";
     private static final String SNOWFLAKE_DATACENTERID_CONFIG_KEY = "datacenterId";
+    private static final String SNOWFLAKE_WORKER_ID_LEASE_CONFIG_KEY = "workerIdLease";
+    private static final String SNOWFLAKE_EPOCH_CONFIG_KEY = "snowflakeEpoch";
+    private static final String SNOWFLAKE_DATACENTER_ID_BITS_CONFIG_KEY = "snowflakeDatacenterIdBits";
+    private static final String SNOWFLAKE_KEYCLOAK_ID_BITS_CONFIG_KEY = "snowflakeKeycloakIdBits";
+    private static final String SNOWFLAKE_SEQUENCE_BITS_CONFIG_KEY = "snowflakeSequenceBits";
+    private static final String SNOWFLAKE_WORKER_ID_LEASE_SECONDS_CONFIG_KEY = "workerIdLeaseSeconds";
+    private static final String MAX_BLOCK_MS_CONFIG_KEY = "maxBlockMs";
+    private static final String CIRCUIT_BREAKER_WINDOW_SIZE_CONFIG_KEY = "circuitBreakerWindowSize";
+    private static final String CIRCUIT_BREAKER_FAILURE_RATE_CONFIG_KEY = "circuitBreakerFailureRateThreshold";
+    private static final String CIRCUIT_BREAKER_SLOW_CALL_MS_CONFIG_KEY = "circuitBreakerSlowCallThresholdMs";
+    private static final String CIRCUIT_BREAKER_OPEN_DURATION_MS_CONFIG_KEY = "circuitBreakerOpenDurationMs";
+    private static final String ERROR_LOG_INTERVAL_MS_CONFIG_KEY = "errorLogIntervalMs";
+    private static final String HEALTH_CHECK_INTERVAL_MS_CONFIG_KEY = "healthCheckIntervalMs";
+    private static final String HEALTH_CHECK_TIMEOUT_MS_CONFIG_KEY = "healthCheckTimeoutMs";
+    private static final String HEALTH_CHECK_FAILURE_THRESHOLD_CONFIG_KEY = "healthCheckFailureThreshold";
+    private static final String RECONNECT_BACKOFF_MS_CONFIG_KEY = "reconnectBackoffMs";
+    private static final String RECONNECT_MAX_BACKOFF_MS_CONFIG_KEY = "reconnectMaxBackoffMs";
+    private static final String DRAIN_INTERVAL_MS_CONFIG_KEY = "drainIntervalMs";
+    private static final String SHUTDOWN_TIMEOUT_MS_CONFIG_KEY = "shutdownTimeoutMs";
+    private static final String SPILL_DIRECTORY_CONFIG_KEY = "spillDirectory";
+    private static final String ASYNC_ENRICHMENT_CONFIG_KEY = "asyncEnrichment";
+    private static final String ASYNC_ENRICHMENT_MAX_CONCURRENCY_CONFIG_KEY = "asyncEnrichmentMaxConcurrency";
+    private static final String ASYNC_ENRICHMENT_TIMEOUT_MS_CONFIG_KEY = "asyncEnrichmentTimeoutMs";
+    private static final String USERNAME_TOPIC_CONFIG_KEY = "usernameTopic";
+    private static final String USERNAME_PUBLISH_INTERVAL_MS_CONFIG_KEY = "usernamePublishIntervalMs";
+    private static final String WARMUP_CONFIG_KEY = "warmup";
+    private static final String WARMUP_ITERATIONS_CONFIG_KEY = "warmupIterations";
+    private static final String LATENCY_TRACING_CONFIG_KEY = "latencyTracing";
+    private static final String OFF_HEAP_BUFFER_BYTES_CONFIG_KEY = "offHeapBufferBytes";
+    private static final String HIGH_PRIORITY_EVENT_TYPES_CONFIG_KEY = "highPriorityEventTypes";
+    private static final String LOW_PRIORITY_EVENT_TYPES_CONFIG_KEY = "lowPriorityEventTypes";
+    private static final String HIGH_PRIORITY_OPERATION_TYPES_CONFIG_KEY = "highPriorityOperationTypes";
+    private static final String HIGH_PRIORITY_ERRORS_CONFIG_KEY = "highPriorityErrors";
+    private static final String SORTED_DETAILS_CONFIG_KEY = "sortedDetails";
+    private static final String SERIALIZATION_BUFFER_POOL_SIZE_CONFIG_KEY = "serializationBufferPoolSize";
+    private static final String COALESCING_WINDOW_MS_CONFIG_KEY = "coalescingWindowMs";
+    private static final String COALESCED_EVENT_TYPES_CONFIG_KEY = "coalescedEventTypes";
+    private static final String COALESCING_MAX_WINDOWS_CONFIG_KEY = "coalescingMaxWindows";
+    private static final String DEAD_LETTER_TOPIC_CONFIG_KEY = "deadLetterTopic";
+    private static final String RECORD_HEADERS_CONFIG_KEY = "recordHeaders";
+    private static final String DEAD_LETTER_DIRECTORY_CONFIG_KEY = "deadLetterDirectory";
+    private static final String DEAD_LETTER_SEGMENT_BYTES_CONFIG_KEY = "deadLetterSegmentBytes";
+    private static final String DEDUPLICATION_WINDOW_MS_CONFIG_KEY = "deduplicationWindowMs";
+    private static final String DEDUPLICATION_FILTER_BYTES_CONFIG_KEY = "deduplicationFilterBytes";
+    private static final String DEDUPLICATION_CLUSTER_WIDE_CONFIG_KEY = "deduplicationClusterWide";
+    private static final String REALM_RATE_LIMIT_CONFIG_KEY = "realmRateLimit";
+    private static final String REALM_RATE_LIMIT_BURST_CONFIG_KEY = "realmRateLimitBurst";
+    private static final String REALM_RATE_LIMITS_CONFIG_KEY = "realmRateLimits";
+    private static final String RATE_LIMIT_SUMMARY_INTERVAL_MS_CONFIG_KEY = "rateLimitSummaryIntervalMs";
+    private static final String PRODUCER_COUNT_CONFIG_KEY = "producerCount";
+    private static final String PRODUCER_SHARDING_CONFIG_KEY = "producerSharding";
+    private static final String JOURNAL_DIRECTORY_CONFIG_KEY = "journalDirectory";
+    private static final String JOURNAL_SEGMENT_BYTES_CONFIG_KEY = "journalSegmentBytes";
+    private static final String JOURNAL_MAX_BYTES_CONFIG_KEY = "journalMaxBytes";
+    private static final String RAW_EVENT_TOPIC_CONFIG_KEY = "rawEventTopic";
+    private static final String RAW_ADMIN_EVENT_TOPIC_CONFIG_KEY = "rawAdminEventTopic";
+
+    private static final String LATENCY_TRACER_OBJECT_NAME = "io.cloudtrust.keycloak:type=KafkaEventEmitter,name=LatencyTracer";
+
+    private static final long DEFAULT_MAX_BLOCK_MS = 1000L;
+    private static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 20;
+    private static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE = 50;
+    private static final long DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_MS = 5000L;
+    private static final long DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS = 30000L;
+    private static final long DEFAULT_ERROR_LOG_INTERVAL_MS = 10000L;
+    private static final long DEFAULT_HEALTH_CHECK_INTERVAL_MS = 10000L;
+    private static final long DEFAULT_HEALTH_CHECK_TIMEOUT_MS = 5000L;
+    private static final int DEFAULT_HEALTH_CHECK_FAILURE_THRESHOLD = 3;
+    private static final long DEFAULT_RECONNECT_BACKOFF_MS = 1000L;
+    private static final long DEFAULT_RECONNECT_MAX_BACKOFF_MS = 60000L;
+    private static final long DEFAULT_DRAIN_INTERVAL_MS = 1000L;
+    private static final long DEFAULT_SHUTDOWN_TIMEOUT_MS = 10000L;
+    private static final int DEFAULT_ASYNC_ENRICHMENT_MAX_CONCURRENCY = 64;
+    private static final long DEFAULT_ASYNC_ENRICHMENT_TIMEOUT_MS = 500L;
+    private static final long DEFAULT_USERNAME_PUBLISH_INTERVAL_MS = 5000L;
+    private static final int DEFAULT_WARMUP_ITERATIONS = 1000;
+    private static final long DEFAULT_WORKER_ID_LEASE_SECONDS = 60L;
+    private static final int DEFAULT_COALESCING_MAX_WINDOWS = 10000;
+    private static final long DEFAULT_DEAD_LETTER_SEGMENT_BYTES = 64L * 1024 * 1024;
+    private static final int DEFAULT_DEDUPLICATION_FILTER_BYTES = 1024 * 1024;
+    private static final long DEFAULT_RATE_LIMIT_SUMMARY_INTERVAL_MS = 10000L;
+    // One thread per transactional job, so that a slow user store delays neither the other jobs nor the lease renewal
+    private static final int JOB_THREADS = 4;
+    private static final int RATE_LIMIT_MAX_SUMMARIES = 10000;
+    private static final int DEFAULT_JOURNAL_SEGMENT_BYTES = 64 * 1024 * 1024;
+    private static final long DEFAULT_JOURNAL_MAX_BYTES = 1024L * 1024 * 1024;
+    private static final Set<EventType> DEFAULT_COALESCED_EVENT_TYPES = EnumSet.of(EventType.REFRESH_TOKEN,
+            EventType.INTROSPECT_TOKEN, EventType.USER_INFO_REQUEST);
+    // Maximum size of an event buffered off-heap, Kafka rejecting records above 1 MB by default
+    private static final int PAYLOAD_SLAB_SIZE = 1 << 20;
+    // Larger serialization buffers, only needed for admin events with large representations, are not pooled
+    private static final int SERIALIZATION_BUFFER_MAX_RETAINED_SIZE = 64 * 1024;
 
     private Integer keycloakId;
     private Integer datacenterId;
@@ -51,20 +172,56 @@ public class KafkaEventEmitterProviderFactory implements EventListenerProviderFa
     private String adminEventTopic;
 
     private Properties kafkaProperties;
-    private Producer<String, String> producer;
-    private IdGenerator idGenerator;
-    //Queue only used during STARTING state
-    private LinkedBlockingQueue<ProducerRecord<String, String>> pendingEvents;
-    private KafkaEventEmitterState state;
-    private Lock stateLock;
+    // Replaced when the leased worker ID is lost
+    private volatile IdGenerator idGenerator;
+    private IdGeneratorConfig idGeneratorConfig;
+    private WorkerIdLease workerIdLease;
+    private KeycloakSessionFactory sessionFactory;
+    private CircuitBreaker circuitBreaker;
+    private KafkaEventSender sender;
+    private long shutdownTimeout;
+    private String spillDirectory;
+    private boolean asyncEnrichment;
+    private int asyncEnrichmentMaxConcurrency;
+    private long asyncEnrichmentTimeout;
+    private EnrichmentExecutor enrichmentExecutor;
+    private String usernameTopic;
+    private long usernamePublishInterval;
+    private UsernameChangePublisher usernameChangePublisher;
+    private boolean warmup;
+    private int warmupIterations;
+    private String warmupResult = "not done";
+    private LatencyTracer tracer;
+    private EventPrioritizer prioritizer;
+    private EventCoalescer coalescer;
+    private FlatBufferBuilderPool builderPool;
+    private DeadLetterHandler deadLetterHandler;
+    private final AtomicBoolean deadLetterReplayRunning = new AtomicBoolean();
+    private final AtomicLong deadLetterReplayedCount = new AtomicLong();
+    private final AtomicBoolean usernameBootstrapRunning = new AtomicBoolean();
+    private final EmissionFilter filter = new EmissionFilter();
+    private EventHeaders eventHeaders;
+    private boolean sortedDetails;
+    private EventDeduplicator deduplicator;
+    private RealmRateLimiter rateLimiter;
+    private long rateLimitSummaryInterval;
+    private int producerCount;
+    private ShardedProducer.Sharding producerSharding;
+    // Replaced when the producer is recreated
+    private volatile ShardedProducer shardedProducer;
+    private EventJournal journal;
+    private RawEventSender rawSender;
+    private long drainInterval;
+    private EmissionPipeline pipeline;
+    // Periodic jobs running Keycloak transactions, kept off the producer supervisor thread
+    private volatile ScheduledExecutorService jobs;
 
     @Override
     public EventListenerProvider create(KeycloakSession session) {
-        if (state.isInitialized()) {
-            state.starting();
-            producer = new KafkaProducer<>(kafkaProperties);
+        if (sender.getState().isInitialized()) {
+            startSender();
         }
-        return new KafkaEventEmitterProvider(session, producer, eventTopic, adminEventTopic, idGenerator, pendingEvents, state, stateLock);
+        return new KafkaEventEmitterProvider(session, pipeline);
     }
 
     @Override
@@ -83,26 +240,229 @@ public class KafkaEventEmitterProviderFactory implements EventListenerProviderFa
         kafkaProperties.put(SaslConfigs.SASL_OAUTHBEARER_TOKEN_ENDPOINT_URL, getStringConfig(config, SASL_OAUTHBEARER_TOKEN_ENDPOINT_URL_KEY));
         kafkaProperties.put(SaslConfigs.SASL_MECHANISM, getStringConfig(config, SASL_MECHANISM_KEY));
         kafkaProperties.put(SaslConfigs.SASL_LOGIN_CALLBACK_HANDLER_CLASS, OAuthBearerLoginCallbackHandler.class.getName());
+        // Bound the time a Keycloak thread can be blocked by a full accumulator or missing metadata
+        kafkaProperties.put(ProducerConfig.MAX_BLOCK_MS_CONFIG, getLongConfig(config, MAX_BLOCK_MS_CONFIG_KEY, DEFAULT_MAX_BLOCK_MS));
 
         // Snowflake ID generator configuration
-        keycloakId = getIntConfig(config, SNOWFLAKE_KEYCLOAKID_CONFIG_KEY, true);
-        datacenterId = getIntConfig(config, SNOWFLAKE_DATACENTERID_CONFIG_KEY, true);
-        idGenerator = new IdGenerator(keycloakId, datacenterId);
-        pendingEvents = new LinkedBlockingQueue<>(getIntConfig(config, BUFFER_CAPACITY_CONFIG_KEY, true));
-        state = new KafkaEventEmitterState();
-        state.initialized();
-        stateLock = new ReentrantLock();
+        idGeneratorConfig = getIdGeneratorConfig(config);
+        // Static worker ID only mandatory when it is not leased from the cluster
+        boolean leaseWorkerId = config.getBoolean(SNOWFLAKE_WORKER_ID_LEASE_CONFIG_KEY, false);
+        keycloakId = getIntConfig(config, SNOWFLAKE_KEYCLOAKID_CONFIG_KEY, !leaseWorkerId);
+        datacenterId = getIntConfig(config, SNOWFLAKE_DATACENTERID_CONFIG_KEY, !leaseWorkerId);
+        if (leaseWorkerId) {
+            workerIdLease = new WorkerIdLease((int) idGeneratorConfig.getMaxKeycloakId() + 1, (int) idGeneratorConfig.getMaxDatacenterId() + 1,
+                    getLongConfig(config, SNOWFLAKE_WORKER_ID_LEASE_SECONDS_CONFIG_KEY, DEFAULT_WORKER_ID_LEASE_SECONDS));
+        } else {
+            idGenerator = new IdGenerator(idGeneratorConfig, keycloakId, datacenterId);
+        }
+        int bufferCapacity = getIntConfig(config, BUFFER_CAPACITY_CONFIG_KEY, true);
+
+        // Back-pressure configuration
+        circuitBreaker = new CircuitBreaker(
+                getIntConfig(config, CIRCUIT_BREAKER_WINDOW_SIZE_CONFIG_KEY, DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE),
+                getIntConfig(config, CIRCUIT_BREAKER_FAILURE_RATE_CONFIG_KEY, DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE),
+                getLongConfig(config, CIRCUIT_BREAKER_SLOW_CALL_MS_CONFIG_KEY, DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_MS),
+                getLongConfig(config, CIRCUIT_BREAKER_OPEN_DURATION_MS_CONFIG_KEY, DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION_MS));
+        RateLimitedLogger errorLogger = new RateLimitedLogger(Logger.getLogger(KafkaEventSender.class),
+                getLongConfig(config, ERROR_LOG_INTERVAL_MS_CONFIG_KEY, DEFAULT_ERROR_LOG_INTERVAL_MS));
+
+        // Producer supervision configuration
+        KafkaSupervisorConfig supervisorConfig = new KafkaSupervisorConfig(
+                getLongConfig(config, HEALTH_CHECK_INTERVAL_MS_CONFIG_KEY, DEFAULT_HEALTH_CHECK_INTERVAL_MS),
+                getLongConfig(config, HEALTH_CHECK_TIMEOUT_MS_CONFIG_KEY, DEFAULT_HEALTH_CHECK_TIMEOUT_MS),
+                getIntConfig(config, HEALTH_CHECK_FAILURE_THRESHOLD_CONFIG_KEY, DEFAULT_HEALTH_CHECK_FAILURE_THRESHOLD),
+                getLongConfig(config, RECONNECT_BACKOFF_MS_CONFIG_KEY, DEFAULT_RECONNECT_BACKOFF_MS),
+                getLongConfig(config, RECONNECT_MAX_BACKOFF_MS_CONFIG_KEY, DEFAULT_RECONNECT_MAX_BACKOFF_MS),
+                getLongConfig(config, DRAIN_INTERVAL_MS_CONFIG_KEY, DEFAULT_DRAIN_INTERVAL_MS));
+
+        // Shutdown configuration
+        shutdownTimeout = getLongConfig(config, SHUTDOWN_TIMEOUT_MS_CONFIG_KEY, DEFAULT_SHUTDOWN_TIMEOUT_MS);
+        spillDirectory = config.get(SPILL_DIRECTORY_CONFIG_KEY);
+        EventSpillStore spillStore = spillDirectory != null ? new EventSpillStore(Paths.get(spillDirectory)) : null;
+
+        // Enrichment configuration
+        asyncEnrichment = config.getBoolean(ASYNC_ENRICHMENT_CONFIG_KEY, false);
+        asyncEnrichmentMaxConcurrency = getIntConfig(config, ASYNC_ENRICHMENT_MAX_CONCURRENCY_CONFIG_KEY, DEFAULT_ASYNC_ENRICHMENT_MAX_CONCURRENCY);
+        asyncEnrichmentTimeout = getLongConfig(config, ASYNC_ENRICHMENT_TIMEOUT_MS_CONFIG_KEY, DEFAULT_ASYNC_ENRICHMENT_TIMEOUT_MS);
+        usernameTopic = config.get(USERNAME_TOPIC_CONFIG_KEY);
+        usernamePublishInterval = getLongConfig(config, USERNAME_PUBLISH_INTERVAL_MS_CONFIG_KEY, DEFAULT_USERNAME_PUBLISH_INTERVAL_MS);
+        if (usernameTopic != null) {
+            usernameChangePublisher = new UsernameChangePublisher(usernameTopic);
+        }
+
+        // Priority configuration
+        prioritizer = new EventPrioritizer(
+                getEnumSetConfig(config, HIGH_PRIORITY_EVENT_TYPES_CONFIG_KEY, EventType.class, EventPrioritizer.DEFAULT_HIGH_PRIORITY_EVENT_TYPES),
+                getEnumSetConfig(config, LOW_PRIORITY_EVENT_TYPES_CONFIG_KEY, EventType.class, EventPrioritizer.DEFAULT_LOW_PRIORITY_EVENT_TYPES),
+                getEnumSetConfig(config, HIGH_PRIORITY_OPERATION_TYPES_CONFIG_KEY, OperationType.class, EventPrioritizer.DEFAULT_HIGH_PRIORITY_OPERATION_TYPES),
+                config.getBoolean(HIGH_PRIORITY_ERRORS_CONFIG_KEY, true));
+
+        // Coalescing configuration
+        long coalescingWindow = getLongConfig(config, COALESCING_WINDOW_MS_CONFIG_KEY, 0L);
+        if (coalescingWindow > 0) {
+            coalescer = new EventCoalescer(
+                    getEnumSetConfig(config, COALESCED_EVENT_TYPES_CONFIG_KEY, EventType.class, DEFAULT_COALESCED_EVENT_TYPES),
+                    coalescingWindow, getIntConfig(config, COALESCING_MAX_WINDOWS_CONFIG_KEY, DEFAULT_COALESCING_MAX_WINDOWS));
+        }
+
+        // Deduplication configuration
+        long deduplicationWindow = getLongConfig(config, DEDUPLICATION_WINDOW_MS_CONFIG_KEY, 0L);
+        if (deduplicationWindow > 0) {
+            deduplicator = new EventDeduplicator(deduplicationWindow,
+                    getIntConfig(config, DEDUPLICATION_FILTER_BYTES_CONFIG_KEY, DEFAULT_DEDUPLICATION_FILTER_BYTES),
+                    config.getBoolean(DEDUPLICATION_CLUSTER_WIDE_CONFIG_KEY, false));
+        }
+
+        // Rate limiting configuration
+        int realmRateLimit = getIntConfig(config, REALM_RATE_LIMIT_CONFIG_KEY, 0);
+        RealmRateLimiter.Limit defaultLimit = realmRateLimit > 0
+                ? new RealmRateLimiter.Limit(realmRateLimit, getIntConfig(config, REALM_RATE_LIMIT_BURST_CONFIG_KEY, realmRateLimit))
+                : null;
+        Map<String, RealmRateLimiter.Limit> realmLimits = getRealmLimitsConfig(config, REALM_RATE_LIMITS_CONFIG_KEY);
+        if (defaultLimit != null || !realmLimits.isEmpty()) {
+            rateLimiter = new RealmRateLimiter(defaultLimit, realmLimits, RATE_LIMIT_MAX_SUMMARIES);
+            rateLimitSummaryInterval = getLongConfig(config, RATE_LIMIT_SUMMARY_INTERVAL_MS_CONFIG_KEY, DEFAULT_RATE_LIMIT_SUMMARY_INTERVAL_MS);
+        }
+
+        // Tracing configuration
+        if (config.getBoolean(LATENCY_TRACING_CONFIG_KEY, false)) {
+            tracer = new LatencyTracer();
+        }
+
+        // Serialization configuration
+        sortedDetails = config.getBoolean(SORTED_DETAILS_CONFIG_KEY, false);
+        if (config.getBoolean(RECORD_HEADERS_CONFIG_KEY, true)) {
+            eventHeaders = new EventHeaders();
+        }
+        String rawEventTopic = config.get(RAW_EVENT_TOPIC_CONFIG_KEY);
+        String rawAdminEventTopic = config.get(RAW_ADMIN_EVENT_TOPIC_CONFIG_KEY);
+        boolean rawEvents = rawEventTopic != null || rawAdminEventTopic != null;
+        int serializationBufferPoolSize = getIntConfig(config, SERIALIZATION_BUFFER_POOL_SIZE_CONFIG_KEY, 0);
+        if (serializationBufferPoolSize > 0) {
+            // Raw events are copied by the producer straight from direct buffers
+            builderPool = new FlatBufferBuilderPool(SerializationUtils.FLATBUFFER_INIT_SIZE, SERIALIZATION_BUFFER_MAX_RETAINED_SIZE,
+                    serializationBufferPoolSize, rawEvents);
+        }
+
+        // Startup configuration
+        warmup = config.getBoolean(WARMUP_CONFIG_KEY, true);
+        warmupIterations = getIntConfig(config, WARMUP_ITERATIONS_CONFIG_KEY, DEFAULT_WARMUP_ITERATIONS);
+
+        Properties adminProperties = getAdminProperties(kafkaProperties);
+        long offHeapBufferBytes = getLongConfig(config, OFF_HEAP_BUFFER_BYTES_CONFIG_KEY, 0L);
+        PayloadPool payloadPool = offHeapBufferBytes > 0 ? new PayloadPool(PAYLOAD_SLAB_SIZE, offHeapBufferBytes) : null;
+        producerCount = getIntConfig(config, PRODUCER_COUNT_CONFIG_KEY, 1);
+        producerSharding = getEnumConfig(config, PRODUCER_SHARDING_CONFIG_KEY, ShardedProducer.Sharding.class, ShardedProducer.Sharding.KEY);
+        sender = new KafkaEventSender(() -> createProducers(kafkaProperties), () -> Admin.create(adminProperties),
+                new PendingEventBuffer(bufferCapacity, payloadPool), circuitBreaker, errorLogger, supervisorConfig, spillStore);
+        drainInterval = supervisorConfig.drainIntervalMillis();
+        if (rawEvents) {
+            Properties rawProperties = new Properties();
+            rawProperties.putAll(kafkaProperties);
+            rawProperties.put(ProducerConfig.CLIENT_ID_CONFIG, kafkaProperties.get(ProducerConfig.CLIENT_ID_CONFIG) + "-raw");
+            rawProperties.put(ProducerConfig.VALUE_SERIALIZER_CLASS_CONFIG, ByteBufferSerializer.class.getName());
+            rawSender = new RawEventSender(() -> createRawProducer(rawProperties), sender, rawEventTopic, rawAdminEventTopic, errorLogger);
+        }
+
+        // Dead letters configuration
+        String deadLetterTopic = config.get(DEAD_LETTER_TOPIC_CONFIG_KEY);
+        String deadLetterDirectory = config.get(DEAD_LETTER_DIRECTORY_CONFIG_KEY);
+        if (deadLetterTopic != null || deadLetterDirectory != null) {
+            DeadLetterStore deadLetterStore = deadLetterDirectory != null ? new DeadLetterStore(Paths.get(deadLetterDirectory),
+                    getLongConfig(config, DEAD_LETTER_SEGMENT_BYTES_CONFIG_KEY, DEFAULT_DEAD_LETTER_SEGMENT_BYTES)) : null;
+            deadLetterHandler = new DeadLetterHandler(deadLetterTopic, deadLetterStore, bufferCapacity);
+            sender.setFailureHandler(deadLetterHandler::onFailure);
+        }
+
+        // Journal configuration
+        String journalDirectory = config.get(JOURNAL_DIRECTORY_CONFIG_KEY);
+        if (journalDirectory != null) {
+            try {
+                journal = EventJournal.open(Paths.get(journalDirectory),
+                        getIntConfig(config, JOURNAL_SEGMENT_BYTES_CONFIG_KEY, DEFAULT_JOURNAL_SEGMENT_BYTES),
+                        getLongConfig(config, JOURNAL_MAX_BYTES_CONFIG_KEY, DEFAULT_JOURNAL_MAX_BYTES));
+            } catch (IOException e) {
+                // The journal is a diagnostic aid, events are emitted without it
+                logger.errorv(e, "Can't open the event journal in %s, events are not journaled", journalDirectory);
+            }
+        }
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
-        // Nothing to initialize
+        sessionFactory = factory;
+        if (workerIdLease != null) {
+            leaseWorkerId();
+        }
+        // Nothing to enrich when usernames are published to their own topic
+        if (asyncEnrichment && usernameChangePublisher == null) {
+            enrichmentExecutor = new EnrichmentExecutor(factory, asyncEnrichmentMaxConcurrency, asyncEnrichmentTimeout);
+        }
+        if (tracer != null) {
+            registerMBean(tracer);
+        }
+        pipeline = new EmissionPipeline(sender, eventTopic, adminEventTopic, () -> idGenerator)
+                .withEnrichmentExecutor(enrichmentExecutor)
+                .withUsernameChangePublisher(usernameChangePublisher)
+                .withTracer(tracer)
+                .withPrioritizer(prioritizer)
+                .withCoalescer(coalescer)
+                .withBuilderPool(builderPool)
+                .withFilter(filter)
+                .withHeaders(eventHeaders)
+                .withDeduplicator(deduplicator)
+                .withRateLimiter(rateLimiter)
+                .withJournal(journal)
+                .withRawSender(rawSender)
+                .withSortedDetails(sortedDetails);
+        if (warmup) {
+            warmup();
+        }
     }
 
     @Override
     public void close() {
-        if (producer != null) {
-            producer.close();
+        long deadline = System.currentTimeMillis() + shutdownTimeout;
+        if (jobs != null) {
+            stopJobs(deadline);
+        }
+        if (coalescer != null && sender != null) {
+            flushCoalescedEvents(true);
+        }
+        if (rateLimiter != null && sender != null) {
+            flushRateLimitSummaries();
+        }
+        if (enrichmentExecutor != null) {
+            // Asynchronous emissions still feed the sender buffer
+            enrichmentExecutor.close(Duration.ofMillis(shutdownTimeout / 2));
+        }
+        if (sender != null) {
+            if (usernameChangePublisher != null) {
+                usernameChangePublisher.publish(sender);
+            }
+            if (deadLetterHandler != null) {
+                deadLetterHandler.route(sender);
+            }
+            sender.close(Duration.ofMillis(Math.max(0L, deadline - System.currentTimeMillis())));
+        }
+        if (rawSender != null) {
+            rawSender.close(Duration.ofMillis(Math.max(0L, deadline - System.currentTimeMillis())));
+        }
+        if (deadLetterHandler != null) {
+            deadLetterHandler.close();
+        }
+        if (journal != null) {
+            journal.close();
+        }
+        if (tracer != null) {
+            unregisterMBean();
+        }
+        if (workerIdLease != null && workerIdLease.isLeased()) {
+            try {
+                KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> workerIdLease.release(session.singleUseObjects()));
+            } catch (RuntimeException e) {
+                logger.infof("Snowflake worker ID not released, it will be available once its lease expires: %s", e.getMessage());
+            }
         }
     }
 
@@ -118,11 +478,501 @@ public class KafkaEventEmitterProviderFactory implements EventListenerProviderFa
         ret.put("Name", PROVIDER_NAME);
         ret.put("Event topic", eventTopic);
         ret.put("Admin event topic", adminEventTopic);
-        ret.put("Snowflake Id Generator - Keycloak ID", Integer.toString(keycloakId));
-        ret.put("Snowflake Id Generator - Datacenter ID", Integer.toString(datacenterId));
+        IdGenerator currentIdGenerator = idGenerator;
+        ret.put("Snowflake Id Generator - Keycloak ID", currentIdGenerator != null ? Integer.toString(currentIdGenerator.getKeycloakId()) : "none");
+        ret.put("Snowflake Id Generator - Datacenter ID", currentIdGenerator != null ? Integer.toString(currentIdGenerator.getDatacenterId()) : "none");
+        ret.put("Snowflake Id Generator - Layout", idGeneratorConfig.toString());
+        if (workerIdLease != null) {
+            ret.put("Snowflake Id Generator - Worker ID", workerIdLease.isLeased() ? "leased" : "static configuration");
+        }
+        ret.put("State", sender.getState().toString());
+        ret.put("Pending events", Integer.toString(sender.getPendingEventsCount()));
+        for (EventPriority priority : EventPriority.values()) {
+            ret.put("Pending events - " + priority, Integer.toString(sender.getPendingEventsCount(priority)));
+            ret.put("Dropped events - " + priority, Long.toString(sender.getDroppedEventsCount(priority)));
+        }
+        PayloadPool payloadPool = sender.getPayloadPool();
+        if (payloadPool != null) {
+            ret.put("Off-heap buffer - Allocated bytes", Long.toString(payloadPool.getAllocatedBytes()));
+            ret.put("Off-heap buffer - Used bytes", Long.toString(payloadPool.getUsedBytes()));
+            ret.put("Off-heap buffer - Events kept on heap", Long.toString(payloadPool.getRejectedCount()));
+        }
+        ret.put("Circuit breaker - State", circuitBreaker.getState());
+        ret.put("Shutdown timeout (ms)", Long.toString(shutdownTimeout));
+        ret.put("Asynchronous enrichment", Boolean.toString(enrichmentExecutor != null));
+        ret.put("Username topic", usernameTopic != null ? usernameTopic : "none");
+        if (enrichmentExecutor != null) {
+            ret.put("Asynchronous enrichment - Saturated", Long.toString(enrichmentExecutor.getSaturatedCount()));
+            ret.put("Asynchronous enrichment - Timed out", Long.toString(enrichmentExecutor.getTimedOutCount()));
+        }
+        ret.put("Spill directory", spillDirectory != null ? spillDirectory : "none");
+        ret.put("Warmup", warmupResult);
+        ret.put("Dead letters", Boolean.toString(deadLetterHandler != null));
+        if (deadLetterHandler != null) {
+            ret.put("Dead letters - Topic", deadLetterHandler.getDeadLetterTopic() != null ? deadLetterHandler.getDeadLetterTopic() : "none");
+            ret.put("Dead letters - Directory", deadLetterHandler.getStore() != null ? deadLetterHandler.getStore().getDirectory().toString() : "none");
+            ret.put("Dead letters - Sent to topic", Long.toString(deadLetterHandler.getSentCount()));
+            ret.put("Dead letters - Written to disk", Long.toString(deadLetterHandler.getStoredCount()));
+            ret.put("Dead letters - Lost", Long.toString(deadLetterHandler.getLostCount()));
+            ret.put("Dead letters - Replayed", Long.toString(deadLetterReplayedCount.get()));
+        }
+        ret.put("Coalescing", Boolean.toString(coalescer != null));
+        if (coalescer != null) {
+            ret.put("Coalescing - Open windows", Integer.toString(coalescer.getOpenWindowsCount()));
+            ret.put("Coalescing - Merged events", Long.toString(coalescer.getMergedCount()));
+        }
+        ret.put("Deduplication", Boolean.toString(deduplicator != null));
+        if (deduplicator != null) {
+            ret.put("Deduplication - Cluster wide", Boolean.toString(deduplicator.isClusterWide()));
+            ret.put("Deduplication - Memory bytes", Long.toString(deduplicator.getMemoryBytes()));
+            ret.put("Deduplication - Dropped duplicates", Long.toString(deduplicator.getDuplicateCount()));
+            ret.put("Deduplication - Estimated false positive rate", Double.toString(deduplicator.getFalsePositiveRate()));
+        }
+        ret.put("Rate limiting", Boolean.toString(rateLimiter != null));
+        if (rateLimiter != null) {
+            ret.put("Rate limiting - Limited events per realm", rateLimiter.getLimitedCounts().toString());
+            ret.put("Rate limiting - Pending summaries", Integer.toString(rateLimiter.getSummariesCount()));
+            ret.put("Rate limiting - Dropped events", Long.toString(rateLimiter.getDroppedCount()));
+        }
+        ret.put("Producers", Integer.toString(producerCount));
+        ShardedProducer currentShardedProducer = shardedProducer;
+        if (currentShardedProducer != null) {
+            ret.put("Producers - Sharding", currentShardedProducer.getSharding().toString());
+            ret.put("Producers - Sent events", Arrays.toString(currentShardedProducer.getSendCounts()));
+        }
+        ret.put("Raw event topic", rawSender != null && rawSender.getEventTopic() != null ? rawSender.getEventTopic() : "none");
+        ret.put("Raw admin event topic", rawSender != null && rawSender.getAdminEventTopic() != null ? rawSender.getAdminEventTopic() : "none");
+        if (rawSender != null) {
+            ret.put("Raw events - Sent", Long.toString(rawSender.getSentCount()));
+            ret.put("Raw events - Lost", Long.toString(rawSender.getLostCount()));
+        }
+        ret.put("Journal", journal != null ? journal.getDirectory().toString() : "none");
+        if (journal != null) {
+            ret.put("Journal - Segments", Integer.toString(journal.getSegmentCount()));
+            ret.put("Journal - Events", Long.toString(journal.getEntryCount()));
+            ret.put("Journal - Dropped events", Long.toString(journal.getDroppedCount()));
+            ret.put("Journal - Failed", Boolean.toString(journal.isFailed()));
+        }
+        ret.put("Latency tracing", Boolean.toString(tracer != null));
+        if (tracer != null) {
+            for (Stage stage : Stage.values()) {
+                ret.put("Latency (us) - " + stage, tracer.getSummary(stage));
+            }
+        }
+        ret.put("Sorted details", Boolean.toString(sortedDetails));
+        ret.put("Record headers", Boolean.toString(eventHeaders != null));
+        if (builderPool != null) {
+            ret.put("Serialization buffers - Created", Long.toString(builderPool.getCreatedCount()));
+            ret.put("Serialization buffers - Idle", Integer.toString(builderPool.getIdleCount()));
+            ret.put("Serialization buffers - Direct", Boolean.toString(builderPool.isDirect()));
+        }
+        ret.put("Unmapped event types", toInfo(SerializationUtils.getUnmappedEventTypes()));
+        ret.put("Unmapped resource types", toInfo(SerializationUtils.getUnmappedResourceTypes()));
         return ret;
     }
 
+    /**
+     * @return the live statistics of the emitter, exposed by the admin resource
+     */
+    Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("state", sender.getState().toString());
+        stats.put("paused", sender.isPaused());
+        stats.put("circuitBreaker", circuitBreaker.getState());
+        stats.put("acknowledgedEvents", sender.getAcknowledgedEventsCount());
+        stats.put("failedEvents", sender.getFailedEventsCount());
+        stats.put("throughput", sender.getThroughput());
+        stats.put("pendingEvents", sender.getPendingEventsCount());
+        Map<String, Object> pendingEvents = new LinkedHashMap<>();
+        Map<String, Object> droppedEvents = new LinkedHashMap<>();
+        for (EventPriority priority : EventPriority.values()) {
+            pendingEvents.put(priority.toString(), sender.getPendingEventsCount(priority));
+            droppedEvents.put(priority.toString(), sender.getDroppedEventsCount(priority));
+        }
+        stats.put("pendingEventsByPriority", pendingEvents);
+        stats.put("droppedEventsByPriority", droppedEvents);
+        stats.put("excludedEvents", filter.getExcludedCount());
+        stats.put("sampledOutEvents", filter.getSampledOutCount());
+        if (coalescer != null) {
+            stats.put("coalescedEvents", coalescer.getMergedCount());
+        }
+        ShardedProducer currentShardedProducer = shardedProducer;
+        if (currentShardedProducer != null) {
+            stats.put("sentEventsByProducer", currentShardedProducer.getSendCounts());
+        }
+        if (rateLimiter != null) {
+            stats.put("rateLimitedEventsByRealm", rateLimiter.getLimitedCounts());
+            stats.put("rateLimitDroppedEvents", rateLimiter.getDroppedCount());
+        }
+        if (deduplicator != null) {
+            Map<String, Object> deduplication = new LinkedHashMap<>();
+            deduplication.put("memoryBytes", deduplicator.getMemoryBytes());
+            deduplication.put("droppedDuplicates", deduplicator.getDuplicateCount());
+            deduplication.put("estimatedFalsePositiveRate", deduplicator.getFalsePositiveRate());
+            stats.put("deduplication", deduplication);
+        }
+        if (rawSender != null) {
+            Map<String, Object> rawEvents = new LinkedHashMap<>();
+            rawEvents.put("sent", rawSender.getSentCount());
+            rawEvents.put("lost", rawSender.getLostCount());
+            stats.put("rawEvents", rawEvents);
+        }
+        if (journal != null) {
+            Map<String, Object> journalStats = new LinkedHashMap<>();
+            journalStats.put("segments", journal.getSegmentCount());
+            journalStats.put("events", journal.getEntryCount());
+            journalStats.put("dropped", journal.getDroppedCount());
+            journalStats.put("failed", journal.isFailed());
+            stats.put("journal", journalStats);
+        }
+        if (deadLetterHandler != null) {
+            Map<String, Object> deadLetters = new LinkedHashMap<>();
+            deadLetters.put("sentToTopic", deadLetterHandler.getSentCount());
+            deadLetters.put("writtenToDisk", deadLetterHandler.getStoredCount());
+            deadLetters.put("lost", deadLetterHandler.getLostCount());
+            deadLetters.put("replayRunning", deadLetterReplayRunning.get());
+            deadLetters.put("replayed", deadLetterReplayedCount.get());
+            stats.put("deadLetters", deadLetters);
+        }
+        return stats;
+    }
+
+    /**
+     * Replays the dead letters written to disk in the background, with a producer of its own.
+     *
+     * @param maxRecordsPerSecond maximum replay rate, 0 for no limit
+     * @return false if there is no dead letters directory or a replay is already running
+     */
+    boolean replayDeadLetters(int maxRecordsPerSecond) {
+        if (deadLetterHandler == null || deadLetterHandler.getStore() == null || !deadLetterReplayRunning.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread thread = new Thread(() -> {
+            try (Producer<String, String> producer = createProducer(kafkaProperties)) {
+                long replayedCount = new DeadLetterReplayer(producer, maxRecordsPerSecond).replay(deadLetterHandler.getStore());
+                deadLetterReplayedCount.addAndGet(replayedCount);
+                logger.infof("%d dead letters replayed", replayedCount);
+            } catch (IOException | KafkaException e) {
+                logger.infof("Dead letters replay failed: %s", e.getMessage());
+            } finally {
+                deadLetterReplayRunning.set(false);
+            }
+        }, "kafka-event-emitter-dead-letter-replay");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Starts the publication of the usernames of all the users of the realm, through a producer of its own.
+     *
+     * @return false if the usernames are not published or a bootstrap is already running
+     */
+    boolean bootstrapUsernames(String realmId) {
+        if (usernameChangePublisher == null || !usernameBootstrapRunning.compareAndSet(false, true)) {
+            return false;
+        }
+        Thread thread = new Thread(() -> {
+            try (Producer<String, String> producer = createProducer(kafkaProperties)) {
+                long publishedCount = usernameChangePublisher.bootstrap(sessionFactory, realmId, producer);
+                logger.infof("%d usernames of realm %s published", publishedCount, realmId);
+            } catch (RuntimeException e) {
+                logger.infof("Usernames publication of realm %s failed: %s", realmId, e.getMessage());
+            } finally {
+                usernameBootstrapRunning.set(false);
+            }
+        }, "kafka-event-emitter-username-bootstrap");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    KafkaEventSender getSender() {
+        return sender;
+    }
+
+    EmissionFilter getFilter() {
+        return filter;
+    }
+
+    LatencyTracer getTracer() {
+        return tracer;
+    }
+
+    EventJournal getJournal() {
+        return journal;
+    }
+
+    IdGeneratorConfig getIdGeneratorConfig() {
+        return idGeneratorConfig;
+    }
+
+    private void startSender() {
+        if (!sender.start()) {
+            return;
+        }
+        if (deadLetterHandler != null) {
+            sender.schedule(() -> deadLetterHandler.route(sender), drainInterval);
+        }
+        if (rawSender != null) {
+            rawSender.connect();
+            // Retried until the producer is created
+            sender.schedule(rawSender::connect, drainInterval);
+        }
+        jobs = Executors.newScheduledThreadPool(JOB_THREADS, r -> {
+            Thread thread = new Thread(r, "kafka-event-emitter-jobs");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (usernameChangePublisher != null) {
+            scheduleJob(() -> usernameChangePublisher.publish(sender), usernamePublishInterval);
+        }
+        if (coalescer != null) {
+            scheduleJob(() -> flushCoalescedEvents(false), Math.max(1L, coalescer.getWindowMillis() / 2));
+        }
+        if (rateLimiter != null) {
+            scheduleJob(this::flushRateLimitSummaries, rateLimitSummaryInterval);
+        }
+        if (workerIdLease != null) {
+            // Renewed well before expiry, so that a failed renewal can be retried
+            scheduleJob(this::renewWorkerId, Math.max(1L, workerIdLease.getLeaseSeconds() * 1000L / 3));
+        }
+    }
+
+    private void scheduleJob(Runnable job, long intervalMillis) {
+        jobs.scheduleWithFixedDelay(() -> {
+            try {
+                job.run();
+            } catch (RuntimeException e) {
+                logger.errorv(e, "Unexpected error in periodic job");
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Cancels the periodic jobs and lets the running ones complete until the deadline, the final flushes being done
+     * by close.
+     */
+    private void stopJobs(long deadline) {
+        jobs.shutdown();
+        try {
+            if (!jobs.awaitTermination(Math.max(0L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                logger.info("Periodic jobs still running at the shutdown deadline");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Emits the events of the closed coalescing windows, in a session of their own as no Keycloak request is running.
+     *
+     * @param all true to close all the windows, false to only close the expired ones
+     */
+    private void flushCoalescedEvents(boolean all) {
+        List<Event> events = coalescer.poll(all);
+        if (events.isEmpty()) {
+            return;
+        }
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                KafkaEventEmitterProvider provider = (KafkaEventEmitterProvider) create(session);
+                provider.emitAll(events);
+            });
+        } catch (RuntimeException e) {
+            logger.infof("%d coalesced events lost: %s", events.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Emits the summaries of the events over the rate limits, bypassing the limits.
+     */
+    private void flushRateLimitSummaries() {
+        List<Event> events = rateLimiter.poll();
+        if (events.isEmpty()) {
+            return;
+        }
+        try {
+            KeycloakModelUtils.runJobInTransaction(sessionFactory, session -> {
+                KafkaEventEmitterProvider provider = (KafkaEventEmitterProvider) create(session);
+                provider.emitAll(events);
+            });
+        } catch (RuntimeException e) {
+            logger.infof("%d rate limit summaries lost: %s", events.size(), e.getMessage());
+        }
+    }
+
+    /**
+     * Reads the Snowflake ID layout, defaulting to the historical one.
+     *
+     * @throws IllegalArgumentException if the layout is invalid or the epoch is in the future
+     */
+    private IdGeneratorConfig getIdGeneratorConfig(Config.Scope config) {
+        IdGeneratorConfig defaultConfig = IdGeneratorConfig.DEFAULT;
+        try {
+            IdGeneratorConfig layout = new IdGeneratorConfig(
+                    getLongConfig(config, SNOWFLAKE_EPOCH_CONFIG_KEY, defaultConfig.getEpoch()),
+                    getIntConfig(config, SNOWFLAKE_DATACENTER_ID_BITS_CONFIG_KEY, defaultConfig.getDatacenterIdBits()),
+                    getIntConfig(config, SNOWFLAKE_KEYCLOAK_ID_BITS_CONFIG_KEY, defaultConfig.getKeycloakIdBits()),
+                    getIntConfig(config, SNOWFLAKE_SEQUENCE_BITS_CONFIG_KEY, defaultConfig.getSequenceBits()));
+            long now = System.currentTimeMillis();
+            if (layout.getEpoch() > now || layout.getEndOfTime() < now) {
+                throw new IllegalArgumentException("Current time is out of the Snowflake ID range, check " + SNOWFLAKE_EPOCH_CONFIG_KEY);
+            }
+            return layout;
+        } catch (IllegalArgumentException e) {
+            logger.errorf("Invalid Snowflake ID layout: %s", e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Leases a worker ID from the cluster, falling back to the configured one.
+     *
+     * @throws IllegalStateException if no worker ID is available nor configured
+     */
+    private void leaseWorkerId() {
+        boolean leased;
+        try {
+            leased = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> workerIdLease.acquire(session.singleUseObjects()));
+        } catch (RuntimeException e) {
+            logger.infof("Failed to lease a Snowflake worker ID: %s", e.getMessage());
+            leased = false;
+        }
+        IdGenerator currentIdGenerator = idGenerator;
+        if (leased) {
+            idGenerator = new IdGenerator(idGeneratorConfig, workerIdLease.getKeycloakId(), workerIdLease.getDatacenterId());
+        } else if (keycloakId != null && datacenterId != null) {
+            // Already in use when a lease is retried: keeping the generator keeps its sequence
+            if (currentIdGenerator == null || currentIdGenerator.getKeycloakId() != keycloakId
+                    || currentIdGenerator.getDatacenterId() != datacenterId) {
+                logger.infof("Using configured Snowflake worker ID: datacenter ID = %d, keycloak ID = %d", datacenterId, keycloakId);
+                idGenerator = new IdGenerator(idGeneratorConfig, keycloakId, datacenterId);
+            }
+        } else {
+            String message = "No Snowflake worker ID could be leased and " + SNOWFLAKE_KEYCLOAKID_CONFIG_KEY + "/"
+                    + SNOWFLAKE_DATACENTERID_CONFIG_KEY + " configuration is missing";
+            logger.error(message);
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /**
+     * Periodic task: renews the lease, or leases another worker ID if it has been lost or could not be leased so far.
+     */
+    void renewWorkerId() {
+        if (!workerIdLease.isLeased()) {
+            retryWorkerIdLease();
+            return;
+        }
+        boolean renewed;
+        try {
+            renewed = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> workerIdLease.renew(session.singleUseObjects()));
+        } catch (RuntimeException e) {
+            // Retried on next run, the lease being renewed well before expiry
+            logger.infof("Failed to renew the Snowflake worker ID lease: %s", e.getMessage());
+            return;
+        }
+        if (!renewed) {
+            retryWorkerIdLease();
+        }
+    }
+
+    private void retryWorkerIdLease() {
+        try {
+            leaseWorkerId();
+        } catch (IllegalStateException e) {
+            // Keep generating IDs: duplicates are preferable to losing events
+            logger.errorf("Keeping Snowflake datacenter ID %d and keycloak ID %d, which may be used by another node",
+                    idGenerator.getDatacenterId(), idGenerator.getKeycloakId());
+        }
+    }
+
+    /**
+     * Creates the producer, fetches the metadata of the topics and serializes synthetic events, instead of letting the
+     * first events pay for it. Nothing is sent.
+     */
+    private void warmup() {
+        long start = System.currentTimeMillis();
+        startSender();
+        List<String> topics = new ArrayList<>(List.of(eventTopic, adminEventTopic));
+        if (usernameTopic != null) {
+            topics.add(usernameTopic);
+        }
+        boolean metadataFetched = sender.warmup(topics);
+        SerializationUtils.warmup(warmupIterations);
+        long duration = System.currentTimeMillis() - start;
+        warmupResult = (metadataFetched ? "done" : "metadata unavailable") + " in " + duration + " ms";
+        logger.infof("Kafka event emitter warmup %s", warmupResult);
+    }
+
+    private void registerMBean(LatencyTracer latencyTracer) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(latencyTracer, new ObjectName(LATENCY_TRACER_OBJECT_NAME));
+        } catch (JMException e) {
+            logger.infof("Latency tracer not exposed through JMX: %s", e.getMessage());
+        }
+    }
+
+    private void unregisterMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(new ObjectName(LATENCY_TRACER_OBJECT_NAME));
+        } catch (JMException e) {
+            logger.debugf("Latency tracer MBean not unregistered: %s", e.getMessage());
+        }
+    }
+
+    private String toInfo(List<String> values) {
+        return values.isEmpty() ? "none" : String.join(", ", values);
+    }
+
+    /**
+     * Creates the producers of the events, called again each time they are recreated. Sharded producers are told apart
+     * by the suffix of their client ID, which also keeps their metrics apart.
+     */
+    private EventProducer createProducers(Properties producerProperties) {
+        if (producerCount <= 1) {
+            return EventProducer.of(createProducer(producerProperties));
+        }
+        ShardedProducer newProducer = new ShardedProducer(producerCount, producerSharding, index -> {
+            Properties shardProperties = new Properties();
+            shardProperties.putAll(producerProperties);
+            shardProperties.put(ProducerConfig.CLIENT_ID_CONFIG, producerProperties.get(ProducerConfig.CLIENT_ID_CONFIG) + "-" + index);
+            return createProducer(shardProperties);
+        });
+        shardedProducer = newProducer;
+        return newProducer;
+    }
+
+    /**
+     * Creates the producer of the events, called again each time the producer is recreated.
+     */
+    protected Producer<String, String> createProducer(Properties producerProperties) {
+        return new KafkaProducer<>(producerProperties);
+    }
+
+    /**
+     * Creates the producer of the raw events.
+     */
+    protected Producer<String, ByteBuffer> createRawProducer(Properties producerProperties) {
+        return new KafkaProducer<>(producerProperties);
+    }
+
+    /**
+     * The health probe only needs the connection and security settings of the producer.
+     */
+    private Properties getAdminProperties(Properties producerProperties) {
+        Properties adminProperties = new Properties();
+        producerProperties.forEach((key, value) -> {
+            String name = key.toString();
+            if (name.startsWith("sasl.") || name.equals(SECURITY_PROTOCOL_CONFIG) || name.equals(ProducerConfig.BOOTSTRAP_SERVERS_CONFIG)) {
+                adminProperties.put(name, value);
+            }
+        });
+        adminProperties.put(AdminClientConfig.CLIENT_ID_CONFIG, producerProperties.get(ProducerConfig.CLIENT_ID_CONFIG) + "-health");
+        return adminProperties;
+    }
+
     private Integer getIntConfig(Config.Scope config, String name, boolean mandatory) {
         try {
             Integer value = config.getInt(name);
@@ -138,6 +988,85 @@ public class KafkaEventEmitterProviderFactory implements EventListenerProviderFa
         }
     }
 
+    private int getIntConfig(Config.Scope config, String name, int defaultValue) {
+        Integer value = getIntConfig(config, name, false);
+        return value != null ? value : defaultValue;
+    }
+
+    private long getLongConfig(Config.Scope config, String name, long defaultValue) {
+        try {
+            Long value = config.getLong(name);
+            return value != null ? value : defaultValue;
+        } catch (NumberFormatException e) {
+            logger.errorv(e, "Invalid %s configuration parameter", name);
+            throw e;
+        }
+    }
+
+    /**
+     * Reads a comma separated list of enum names, an empty list being allowed.
+     */
+    private <E extends Enum<E>> Set<E> getEnumSetConfig(Config.Scope config, String name, Class<E> enumClass, Set<E> defaultValue) {
+        String value = config.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        Set<E> values = EnumSet.noneOf(enumClass);
+        for (String item : value.split(",")) {
+            if (!item.isBlank()) {
+                try {
+                    values.add(Enum.valueOf(enumClass, item.trim()));
+                } catch (IllegalArgumentException e) {
+                    logger.errorv(e, "Invalid %s configuration parameter", name);
+                    throw e;
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Reads a comma separated list of realmId:rate or realmId:rate:burst, the burst being the rate by default.
+     */
+    private Map<String, RealmRateLimiter.Limit> getRealmLimitsConfig(Config.Scope config, String name) {
+        Map<String, RealmRateLimiter.Limit> limits = new HashMap<>();
+        String value = config.get(name);
+        if (value == null) {
+            return limits;
+        }
+        for (String item : value.split(",")) {
+            if (item.isBlank()) {
+                continue;
+            }
+            String[] fields = item.trim().split(":");
+            try {
+                if (fields.length < 2 || fields.length > 3) {
+                    throw new IllegalArgumentException("Invalid realm limit " + item);
+                }
+                int rate = Integer.parseInt(fields[1]);
+                int burst = fields.length == 3 ? Integer.parseInt(fields[2]) : rate;
+                limits.put(fields[0], new RealmRateLimiter.Limit(rate, burst));
+            } catch (IllegalArgumentException e) {
+                logger.errorv(e, "Invalid %s configuration parameter", name);
+                throw e;
+            }
+        }
+        return limits;
+    }
+
+    private <E extends Enum<E>> E getEnumConfig(Config.Scope config, String name, Class<E> enumClass, E defaultValue) {
+        String value = config.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Enum.valueOf(enumClass, value.trim());
+        } catch (IllegalArgumentException e) {
+            logger.errorv(e, "Invalid %s configuration parameter", name);
+            throw e;
+        }
+    }
+
     private String getStringConfig(Config.Scope config, String name) {
         String value = config.get(name);
         if (value == null) {
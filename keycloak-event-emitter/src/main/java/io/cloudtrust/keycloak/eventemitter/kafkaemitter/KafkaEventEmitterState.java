@@ -1,7 +1,7 @@
 package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
 
 public class KafkaEventEmitterState {
-    private state currentState;
+    private volatile state currentState;
 
     public void initialized() {
         currentState = state.INITIALIZED;
@@ -35,6 +35,11 @@ public class KafkaEventEmitterState {
         return currentState == state.WORKING;
     }
 
+    @Override
+    public String toString() {
+        return String.valueOf(currentState);
+    }
+
     private enum state {
         INITIALIZED, STARTING, PENDING, WORKING;
     }
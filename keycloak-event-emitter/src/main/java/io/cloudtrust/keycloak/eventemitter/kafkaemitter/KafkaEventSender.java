@@ -0,0 +1,587 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.admin.Admin;
+import org.apache.kafka.clients.admin.DescribeClusterOptions;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.errors.InterruptException;
+import org.jboss.logging.Logger;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Application-scoped transport shared by all providers. It owns the Kafka producer, the buffer of pending events and
+ * the emitter state, and supervises the producer in the background:
+ * <ul>
+ *     <li>a health probe fetches the cluster metadata periodically,</li>
+ *     <li>the producer is recreated with an exponential backoff when it can't be created or when probes keep failing,
+ *     in which case the emitter goes back to PENDING,</li>
+ *     <li>a drainer flushes the buffered events without waiting for new traffic.</li>
+ * </ul>
+ * On close, the buffered events are flushed within a deadline and the remaining ones are spilled to disk.
+ */
+public class KafkaEventSender {
+    private static final Logger logger = Logger.getLogger(KafkaEventSender.class);
+    private static final int THROUGHPUT_WINDOW_SECONDS = 60;
+
+    private final Supplier<EventProducer> producerFactory;
+    private final Supplier<Admin> adminFactory;
+    private final PendingEventBuffer pendingEvents;
+    private final CircuitBreaker circuitBreaker;
+    private final RateLimitedLogger errorLogger;
+    private final KafkaSupervisorConfig supervisorConfig;
+    private final EventSpillStore spillStore;
+
+    private final KafkaEventEmitterState state = new KafkaEventEmitterState();
+    private final Lock stateLock = new ReentrantLock();
+    // Records failed or aborted while closing, spilled with the pending ones
+    private final Queue<PendingEventBuffer.PendingEvent> unsentEvents = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean closing;
+    // Paused by an operator: events are buffered until resumed
+    private volatile boolean paused;
+    private volatile BiConsumer<ProducerRecord<String, String>, Exception> failureHandler;
+    private final AtomicLong acknowledgedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final ThroughputMeter throughputMeter = new ThroughputMeter(THROUGHPUT_WINDOW_SECONDS);
+
+    private volatile EventProducer producer;
+    // Only accessed by the supervisor thread, then by close once the supervisor has terminated
+    private Admin admin;
+    private volatile ScheduledExecutorService supervisor;
+
+    // Only accessed by the thread starting the sender, then by the supervisor thread
+    private long reconnectBackoff;
+    private long nextConnectAttempt;
+    private int consecutiveProbeFailures;
+
+    public KafkaEventSender(Supplier<EventProducer> producerFactory, Supplier<Admin> adminFactory,
+                            int bufferCapacity, CircuitBreaker circuitBreaker, RateLimitedLogger errorLogger,
+                            KafkaSupervisorConfig supervisorConfig, EventSpillStore spillStore) {
+        this(producerFactory, adminFactory, new PendingEventBuffer(bufferCapacity, null), circuitBreaker, errorLogger,
+                supervisorConfig, spillStore);
+    }
+
+    public KafkaEventSender(Supplier<EventProducer> producerFactory, Supplier<Admin> adminFactory,
+                            PendingEventBuffer pendingEvents, CircuitBreaker circuitBreaker, RateLimitedLogger errorLogger,
+                            KafkaSupervisorConfig supervisorConfig, EventSpillStore spillStore) {
+        this.producerFactory = producerFactory;
+        this.adminFactory = adminFactory;
+        this.pendingEvents = pendingEvents;
+        this.circuitBreaker = circuitBreaker;
+        this.errorLogger = errorLogger;
+        this.supervisorConfig = supervisorConfig;
+        this.spillStore = spillStore;
+        this.reconnectBackoff = supervisorConfig.reconnectBackoffMillis();
+        state.initialized();
+    }
+
+    /**
+     * Creates the producer and starts its supervision. Only the first call has an effect.
+     *
+     * @return true if the sender has been started by this call
+     */
+    public boolean start() {
+        stateLock.lock();
+        try {
+            if (!state.isInitialized()) {
+                return false;
+            }
+            state.starting();
+        } finally {
+            stateLock.unlock();
+        }
+        if (spillStore != null) {
+            List<PendingEventBuffer.PendingEvent> spilledEvents = spillStore.readAll();
+            spilledEvents.forEach(event -> bufferRecord(event.record(), event.priority()));
+            if (!spilledEvents.isEmpty()) {
+                logger.infof("%d spilled events loaded from %s", spilledEvents.size(), spillStore.getDirectory());
+            }
+        }
+        // Without the state lock: the producer constructor may authenticate to the brokers, connect only publishes it
+        // under the lock
+        connect();
+        ScheduledExecutorService newSupervisor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "kafka-event-emitter-supervisor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        newSupervisor.scheduleWithFixedDelay(this::checkHealth, supervisorConfig.healthCheckIntervalMillis(),
+                supervisorConfig.healthCheckIntervalMillis(), TimeUnit.MILLISECONDS);
+        newSupervisor.scheduleWithFixedDelay(this::drain, supervisorConfig.drainIntervalMillis(),
+                supervisorConfig.drainIntervalMillis(), TimeUnit.MILLISECONDS);
+        stateLock.lock();
+        try {
+            if (closing) {
+                newSupervisor.shutdownNow();
+            } else {
+                supervisor = newSupervisor;
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        return true;
+    }
+
+    /**
+     * Fetches the metadata of the topics, which also authenticates the producer to the brokers, so that the first
+     * events don't wait for them. Failures are only logged, unreachable brokers being handled by the supervision.
+     *
+     * @param topics topics the events will be sent to
+     * @return true if the metadata of all the topics has been fetched
+     */
+    public boolean warmup(Collection<String> topics) {
+        EventProducer currentProducer = producer;
+        if (currentProducer == null) {
+            return false;
+        }
+        long start = timeGen();
+        try {
+            for (String topic : topics) {
+                currentProducer.partitionsFor(topic);
+            }
+            logger.infof("Metadata of topics %s fetched in %d ms", topics, timeGen() - start);
+            return true;
+        } catch (KafkaException e) {
+            logger.infof("Failed to fetch the metadata of topics %s: %s", topics, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Runs a task periodically on the supervisor thread until the sender is closed. The sender must be started.
+     */
+    public void schedule(Runnable task, long intervalMillis) {
+        supervisor.scheduleWithFixedDelay(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.errorv(e, "Unexpected error in periodic task");
+            }
+        }, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Sends the record with the normal priority.
+     */
+    public void send(ProducerRecord<String, String> record) {
+        send(record, EventPriority.NORMAL);
+    }
+
+    /**
+     * Sends the record, or buffers it in the lane of its priority when the producer is unavailable or the circuit
+     * breaker is open. The buffered events are only sent by the supervisor, so that the calling thread never waits for
+     * the producer on behalf of other events.
+     */
+    public void send(ProducerRecord<String, String> record, EventPriority priority) {
+        EventProducer currentProducer = producer;
+        long permit;
+        if (state.isWorking() && !closing && !paused && currentProducer != null
+                && (permit = circuitBreaker.allowRequest()) != CircuitBreaker.NO_PERMIT) {
+            doSend(currentProducer, record, priority, permit);
+            return;
+        }
+        bufferRecord(record, priority);
+        if (state.isWorking() && !closing && !paused) {
+            // Refused by the circuit breaker: the drainer sends the buffered events once it allows it
+            state.pending();
+        }
+    }
+
+    /**
+     * Stops accepting events, sends the buffered ones and waits for their acknowledgement until the deadline.
+     * Events still buffered or unacknowledged at the deadline are spilled to disk.
+     *
+     * @param timeout maximum duration of the shutdown sequence, spilling excepted
+     */
+    public void close(Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        closing = true;
+        ScheduledExecutorService currentSupervisor;
+        stateLock.lock();
+        try {
+            currentSupervisor = supervisor;
+        } finally {
+            stateLock.unlock();
+        }
+        // The supervisor may be probing or recreating the producer: wait for it before touching them
+        boolean supervisorTerminated = currentSupervisor == null || stopSupervisor(currentSupervisor, deadline);
+
+        EventProducer currentProducer;
+        int sentCount = 0;
+        stateLock.lock();
+        try {
+            currentProducer = producer;
+            if (currentProducer != null && circuitBreaker.isClosed()) {
+                long permit;
+                PendingEventBuffer.PendingEvent event;
+                while ((permit = circuitBreaker.allowRequest()) != CircuitBreaker.NO_PERMIT
+                        && (event = pendingEvents.poll()) != null
+                        && doSend(currentProducer, event.record(), event.priority(), permit)) {
+                    sentCount++;
+                }
+            }
+        } finally {
+            stateLock.unlock();
+        }
+        if (currentProducer != null) {
+            // Waits for the in-flight records until the deadline, then aborts them
+            currentProducer.close(Duration.ofNanos(Math.max(0L, deadline - System.nanoTime())));
+        }
+        if (supervisorTerminated) {
+            closeAdmin();
+        }
+
+        List<PendingEventBuffer.PendingEvent> remainingEvents = new ArrayList<>();
+        pendingEvents.drainTo(remainingEvents);
+        remainingEvents.addAll(unsentEvents);
+        int spilledCount = spill(remainingEvents);
+        logger.infof("Kafka event emitter closed: %d buffered events sent, %d events unsent, %d events spilled, %d events lost",
+                sentCount, remainingEvents.size(), spilledCount, remainingEvents.size() - spilledCount);
+    }
+
+    /**
+     * Interrupts the running task, such as a probe, and waits for the supervisor thread until the deadline.
+     *
+     * @return true if the supervisor has terminated
+     */
+    private boolean stopSupervisor(ScheduledExecutorService currentSupervisor, long deadline) {
+        currentSupervisor.shutdownNow();
+        try {
+            if (currentSupervisor.awaitTermination(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        logger.info("Kafka supervisor still running at the shutdown deadline, its admin client is left open");
+        return false;
+    }
+
+    /**
+     * @param failureHandler called by the producer I/O thread with the records which could not be sent, must not block
+     */
+    public void setFailureHandler(BiConsumer<ProducerRecord<String, String>, Exception> failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Stops sending events, which are buffered until {@link #resume()}. The buffer capacity still applies.
+     */
+    public void pause() {
+        paused = true;
+        logger.info("Kafka event emitter paused");
+    }
+
+    /**
+     * Resumes sending events; the buffered ones are drained by the next periodic drain.
+     */
+    public void resume() {
+        paused = false;
+        logger.info("Kafka event emitter resumed");
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    /**
+     * Sends the buffered events now, even when paused, as long as the producer is available and the circuit breaker
+     * allows it.
+     *
+     * @return the number of events which left the buffer
+     */
+    public int forceDrain() {
+        stateLock.lock();
+        try {
+            if (state.isInitialized() || closing) {
+                return 0;
+            }
+            int pendingEventsCount = pendingEvents.size();
+            drainPendingEvents();
+            return Math.max(0, pendingEventsCount - pendingEvents.size());
+        } finally {
+            stateLock.unlock();
+        }
+    }
+
+    public KafkaEventEmitterState getState() {
+        return state;
+    }
+
+    public int getPendingEventsCount() {
+        return pendingEvents.size();
+    }
+
+    public int getPendingEventsCount(EventPriority priority) {
+        return pendingEvents.size(priority);
+    }
+
+    /**
+     * @return the number of events of the given priority dropped because the buffer was full
+     */
+    public long getDroppedEventsCount(EventPriority priority) {
+        return pendingEvents.getDroppedCount(priority);
+    }
+
+    /**
+     * @return the number of events acknowledged by Kafka since the start
+     */
+    public long getAcknowledgedEventsCount() {
+        return acknowledgedCount.get();
+    }
+
+    /**
+     * @return the number of events whose send failed since the start
+     */
+    public long getFailedEventsCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return the number of events acknowledged per second over the last minute
+     */
+    public double getThroughput() {
+        return throughputMeter.getRate();
+    }
+
+    /**
+     * @return the pool of the buffered events, null if they are kept on the heap
+     */
+    public PayloadPool getPayloadPool() {
+        return pendingEvents.getPayloadPool();
+    }
+
+    /**
+     * Periodic task: recreates the producer when due, otherwise probes the brokers.
+     */
+    void checkHealth() {
+        try {
+            EventProducer currentProducer = producer;
+            if (currentProducer == null) {
+                if (timeGen() >= nextConnectAttempt) {
+                    connect();
+                }
+                return;
+            }
+            try {
+                probe();
+                consecutiveProbeFailures = 0;
+                reconnectBackoff = supervisorConfig.reconnectBackoffMillis();
+            } catch (KafkaException e) {
+                consecutiveProbeFailures++;
+                logger.infof("Kafka health check failed (%d/%d): %s", consecutiveProbeFailures,
+                        supervisorConfig.healthCheckFailureThreshold(), e.getMessage());
+                if (consecutiveProbeFailures >= supervisorConfig.healthCheckFailureThreshold()) {
+                    recreate(currentProducer);
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.errorv(e, "Unexpected error during Kafka health check");
+        }
+    }
+
+    /**
+     * Periodic task: flushes the buffered events, and completes the transition to WORKING.
+     */
+    void drain() {
+        try {
+            if (paused || (state.isWorking() && pendingEvents.isEmpty())) {
+                return;
+            }
+            stateLock.lock();
+            try {
+                drainPendingEvents();
+            } finally {
+                stateLock.unlock();
+            }
+        } catch (RuntimeException e) {
+            logger.errorv(e, "Unexpected error while draining buffered events");
+        }
+    }
+
+    /**
+     * Fetches the cluster metadata from the brokers.
+     *
+     * @throws KafkaException if the metadata could not be fetched in time
+     */
+    protected void probe() {
+        long timeout = supervisorConfig.healthCheckTimeoutMillis();
+        try {
+            if (admin == null) {
+                admin = adminFactory.get();
+            }
+            admin.describeCluster(new DescribeClusterOptions().timeoutMs((int) timeout)).nodes().get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new KafkaException("Metadata fetch failed", e.getCause());
+        } catch (TimeoutException e) {
+            throw new KafkaException("Metadata fetch timed out", e);
+        } catch (InterruptedException e) {
+            throw new InterruptException(e);
+        }
+    }
+
+    protected long timeGen() {
+        return System.currentTimeMillis();
+    }
+
+    private void connect() {
+        try {
+            EventProducer newProducer = producerFactory.get();
+            stateLock.lock();
+            try {
+                if (closing) {
+                    newProducer.close(Duration.ZERO);
+                    return;
+                }
+                producer = newProducer;
+                // Buffered events are left to the drainer
+                if (pendingEvents.isEmpty() && circuitBreaker.isClosed()) {
+                    state.working();
+                } else {
+                    state.pending();
+                }
+            } finally {
+                stateLock.unlock();
+            }
+            consecutiveProbeFailures = 0;
+            logger.info("Kafka producer created");
+        } catch (KafkaException e) {
+            state.pending();
+            scheduleReconnection();
+            logger.infof("Failed to create Kafka producer, next attempt in %d ms: %s", nextConnectAttempt - timeGen(), e.getMessage());
+        }
+    }
+
+    private void recreate(EventProducer failedProducer) {
+        logger.infof("Kafka unreachable for %d consecutive health checks, recreating the producer", consecutiveProbeFailures);
+        stateLock.lock();
+        try {
+            producer = null;
+            state.pending();
+        } finally {
+            stateLock.unlock();
+        }
+        consecutiveProbeFailures = 0;
+        closeAdmin();
+        failedProducer.close(Duration.ZERO);
+        scheduleReconnection();
+    }
+
+    private void scheduleReconnection() {
+        nextConnectAttempt = timeGen() + reconnectBackoff;
+        reconnectBackoff = Math.min(reconnectBackoff * 2, supervisorConfig.reconnectMaxBackoffMillis());
+    }
+
+    private void closeAdmin() {
+        if (admin != null) {
+            admin.close(Duration.ZERO);
+            admin = null;
+        }
+    }
+
+    /**
+     * Sends the buffered events as long as the circuit breaker allows it. Must be called while holding the state lock.
+     */
+    private void drainPendingEvents() {
+        EventProducer currentProducer = producer;
+        if (currentProducer == null) {
+            state.pending();
+            return;
+        }
+        int pendingEventsSize = pendingEvents.size();
+        for (int i = 0; i < pendingEventsSize; i++) {
+            long permit = circuitBreaker.allowRequest();
+            if (permit == CircuitBreaker.NO_PERMIT) {
+                state.pending();
+                return;
+            }
+            PendingEventBuffer.PendingEvent polledEvent = pendingEvents.poll();
+            if (polledEvent == null) {
+                break;
+            }
+            if (!doSend(currentProducer, polledEvent.record(), polledEvent.priority(), permit)) {
+                return;
+            }
+        }
+        if (circuitBreaker.isClosed()) {
+            state.working();
+        } else {
+            state.pending();
+        }
+    }
+
+    /**
+     * Hands the record to the producer, its outcome being reported to the circuit breaker with the given permit.
+     */
+    private boolean doSend(EventProducer currentProducer, ProducerRecord<String, String> record,
+                           EventPriority priority, long permit) {
+        long start = System.nanoTime();
+        try {
+            currentProducer.send(record, (RecordMetadata recordMetadata, Exception e) -> {
+                if (e == null) {
+                    circuitBreaker.onSuccess(permit, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    acknowledgedCount.incrementAndGet();
+                    throughputMeter.record();
+                } else {
+                    circuitBreaker.onFailure(permit);
+                    failedCount.incrementAndGet();
+                    if (closing) {
+                        unsentEvents.add(new PendingEventBuffer.PendingEvent(record, priority));
+                    } else {
+                        errorLogger.errorf(e, "Failed to send event to topic %s", record.topic());
+                        BiConsumer<ProducerRecord<String, String>, Exception> handler = failureHandler;
+                        if (handler != null) {
+                            handler.accept(record, e);
+                        }
+                    }
+                }
+            });
+            return true;
+        } catch (KafkaException | IllegalStateException e) {
+            // The record never reached the producer accumulator, keep it for a later attempt
+            circuitBreaker.onFailure(permit);
+            errorLogger.errorf(e, "Kafka producer rejected event to topic %s", record.topic());
+            bufferRecord(record, priority);
+            state.pending();
+            return false;
+        }
+    }
+
+    private int spill(List<PendingEventBuffer.PendingEvent> events) {
+        if (spillStore == null || events.isEmpty()) {
+            return 0;
+        }
+        try {
+            spillStore.write(events);
+            return events.size();
+        } catch (IOException e) {
+            logger.errorv(e, "Can't spill %d events to %s", events.size(), spillStore.getDirectory());
+            return 0;
+        }
+    }
+
+    private void bufferRecord(ProducerRecord<String, String> record, EventPriority priority) {
+        int droppedCount = pendingEvents.add(record, priority);
+        if (droppedCount > 0) {
+            errorLogger.errorf(null, "%d events dropped due to full queue", droppedCount);
+        }
+    }
+}
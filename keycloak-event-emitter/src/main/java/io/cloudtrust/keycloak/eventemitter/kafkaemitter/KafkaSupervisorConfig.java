@@ -0,0 +1,16 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+/**
+ * Timings of the background supervision of the Kafka producer.
+ *
+ * @param healthCheckIntervalMillis   delay between two metadata fetches probing the brokers
+ * @param healthCheckTimeoutMillis    maximum duration of a metadata fetch
+ * @param healthCheckFailureThreshold consecutive failed probes after which the producer is recreated
+ * @param reconnectBackoffMillis      initial delay before recreating a failed producer, doubled on each failure
+ * @param reconnectMaxBackoffMillis   upper bound of the recreation delay
+ * @param drainIntervalMillis         delay between two attempts to flush the buffered events
+ */
+public record KafkaSupervisorConfig(long healthCheckIntervalMillis, long healthCheckTimeoutMillis,
+                                    int healthCheckFailureThreshold, long reconnectBackoffMillis,
+                                    long reconnectMaxBackoffMillis, long drainIntervalMillis) {
+}
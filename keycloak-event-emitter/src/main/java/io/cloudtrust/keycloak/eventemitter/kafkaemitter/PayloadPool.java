@@ -0,0 +1,158 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Off-heap pool of payloads, so that events kept for a long time (e.g. buffered during a Kafka outage) don't fill the
+ * old generation of the heap. Memory is allocated in direct slabs, up to the capacity of the pool, each slab being
+ * cut in chunks of one size class (powers of two from MIN_CHUNK_SIZE to the slab size). Released chunks are reused
+ * for payloads of the same size class; slabs are never freed.
+ */
+public class PayloadPool {
+    static final int MIN_CHUNK_SIZE = 256;
+
+    private final int slabSize;
+    private final long capacity;
+    private final Queue<ByteBuffer>[] freeChunks;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param slabSize size of the direct buffers allocated at once, and maximum size of a payload; power of two
+     * @param capacity maximum off-heap memory of the pool
+     */
+    @SuppressWarnings("unchecked")
+    public PayloadPool(int slabSize, long capacity) {
+        checkArgument(Integer.bitCount(slabSize) == 1 && slabSize >= MIN_CHUNK_SIZE,
+                String.format("Slab size must be a power of two greater than %d", MIN_CHUNK_SIZE));
+        this.slabSize = slabSize;
+        this.capacity = capacity;
+        int sizeClassCount = Integer.numberOfTrailingZeros(slabSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE) + 1;
+        freeChunks = new Queue[sizeClassCount];
+        for (int i = 0; i < sizeClassCount; i++) {
+            freeChunks[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    /**
+     * Copies the bytes in a pooled payload.
+     *
+     * @param bytes content of the payload
+     * @return the payload, with a reference count of 1, or null if the pool is exhausted or the content too large
+     */
+    public Payload allocate(byte[] bytes) {
+        if (bytes.length > slabSize) {
+            rejectedCount.incrementAndGet();
+            return null;
+        }
+        int sizeClass = getSizeClass(bytes.length);
+        ByteBuffer chunk = freeChunks[sizeClass].poll();
+        if (chunk == null) {
+            chunk = allocateSlab(sizeClass);
+            if (chunk == null) {
+                rejectedCount.incrementAndGet();
+                return null;
+            }
+        }
+        chunk.clear();
+        chunk.put(bytes).flip();
+        usedBytes.addAndGet(chunk.capacity());
+        return new Payload(chunk, sizeClass);
+    }
+
+    /**
+     * @return off-heap memory allocated by the pool
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * @return off-heap memory held by payloads not released yet
+     */
+    public long getUsedBytes() {
+        return usedBytes.get();
+    }
+
+    /**
+     * @return number of payloads which could not be pooled
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    private static int getSizeClass(int length) {
+        int chunkSize = Math.max(MIN_CHUNK_SIZE, Integer.highestOneBit(Math.max(1, length - 1)) << 1);
+        return Integer.numberOfTrailingZeros(chunkSize) - Integer.numberOfTrailingZeros(MIN_CHUNK_SIZE);
+    }
+
+    /**
+     * Allocates a slab for the size class, keeps one chunk and makes the other ones available.
+     */
+    private ByteBuffer allocateSlab(int sizeClass) {
+        long allocated;
+        do {
+            allocated = allocatedBytes.get();
+            if (allocated + slabSize > capacity) {
+                return null;
+            }
+        } while (!allocatedBytes.compareAndSet(allocated, allocated + slabSize));
+
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabSize);
+        int chunkSize = MIN_CHUNK_SIZE << sizeClass;
+        ByteBuffer firstChunk = slab.slice(0, chunkSize);
+        for (int offset = chunkSize; offset < slabSize; offset += chunkSize) {
+            freeChunks[sizeClass].add(slab.slice(offset, chunkSize));
+        }
+        return firstChunk;
+    }
+
+    /**
+     * Reference counted payload. The chunk goes back to the pool when the last reference is released.
+     */
+    public final class Payload {
+        private final ByteBuffer chunk;
+        private final int sizeClass;
+        private final AtomicInteger referenceCount = new AtomicInteger(1);
+
+        private Payload(ByteBuffer chunk, int sizeClass) {
+            this.chunk = chunk;
+            this.sizeClass = sizeClass;
+        }
+
+        public Payload retain() {
+            if (referenceCount.getAndIncrement() <= 0) {
+                throw new IllegalStateException("Payload already released");
+            }
+            return this;
+        }
+
+        public void release() {
+            int count = referenceCount.decrementAndGet();
+            if (count == 0) {
+                usedBytes.addAndGet(-chunk.capacity());
+                freeChunks[sizeClass].add(chunk);
+            } else if (count < 0) {
+                throw new IllegalStateException("Payload already released");
+            }
+        }
+
+        /**
+         * @return a read-only view of the content, valid until the payload is released
+         */
+        public ByteBuffer buffer() {
+            return chunk.asReadOnlyBuffer();
+        }
+
+        public int length() {
+            return chunk.limit();
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.header.Headers;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded buffer of the events waiting for Kafka, with one lane per priority. When full, the oldest event of the
+ * lowest priority lane is dropped, unless the new event has a lower priority than all the buffered ones, in which
+ * case the new event is dropped. Events are polled from the highest priority lane first.
+ * With a payload pool, the values of the buffered events are kept off-heap; they are copied back to the heap when
+ * the events leave the buffer. Values which can't be pooled stay on the heap.
+ */
+public class PendingEventBuffer {
+    private static final EventPriority[] PRIORITIES = EventPriority.values();
+
+    private final int capacity;
+    private final Deque<BufferedRecord>[] lanes;
+    private final PayloadPool payloadPool;
+    private final AtomicLong[] droppedCounts = new AtomicLong[PRIORITIES.length];
+    private int size;
+
+    /**
+     * @param capacity    maximum number of buffered events
+     * @param payloadPool pool of the values, null to keep them on the heap
+     */
+    @SuppressWarnings("unchecked")
+    public PendingEventBuffer(int capacity, PayloadPool payloadPool) {
+        this.capacity = capacity;
+        this.payloadPool = payloadPool;
+        lanes = new Deque[PRIORITIES.length];
+        for (int i = 0; i < PRIORITIES.length; i++) {
+            lanes[i] = new ArrayDeque<>();
+            droppedCounts[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Buffers the record, dropping events of lower or equal priority if the buffer is full.
+     *
+     * @param record   record to buffer
+     * @param priority priority of the record
+     * @return the number of dropped records, including the given one if it could not be buffered
+     */
+    public synchronized int add(ProducerRecord<String, String> record, EventPriority priority) {
+        int droppedCount = 0;
+        while (size >= capacity) {
+            Deque<BufferedRecord> lane = getLowestLane(priority);
+            if (lane == null) {
+                droppedCounts[priority.ordinal()].incrementAndGet();
+                return droppedCount + 1;
+            }
+            lane.poll().release();
+            size--;
+            droppedCount++;
+        }
+        lanes[priority.ordinal()].add(toBufferedRecord(record));
+        size++;
+        return droppedCount;
+    }
+
+    /**
+     * @return the oldest record of the highest priority lane, or null if the buffer is empty
+     */
+    public synchronized PendingEvent poll() {
+        for (EventPriority priority : PRIORITIES) {
+            BufferedRecord bufferedRecord = lanes[priority.ordinal()].poll();
+            if (bufferedRecord != null) {
+                size--;
+                return new PendingEvent(bufferedRecord.toRecord(), priority);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes all the records.
+     *
+     * @param target list receiving the records with their priority, by decreasing priority then oldest first
+     */
+    public synchronized void drainTo(List<PendingEvent> target) {
+        for (EventPriority priority : PRIORITIES) {
+            BufferedRecord bufferedRecord;
+            while ((bufferedRecord = lanes[priority.ordinal()].poll()) != null) {
+                target.add(new PendingEvent(bufferedRecord.toRecord(), priority));
+            }
+        }
+        size = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    public synchronized int size(EventPriority priority) {
+        return lanes[priority.ordinal()].size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * @return the number of events of the given priority dropped because the buffer was full
+     */
+    public long getDroppedCount(EventPriority priority) {
+        return droppedCounts[priority.ordinal()].get();
+    }
+
+    public PayloadPool getPayloadPool() {
+        return payloadPool;
+    }
+
+    /**
+     * @return the lowest priority lane which is not empty and whose priority is lower or equal to the given one
+     */
+    private Deque<BufferedRecord> getLowestLane(EventPriority priority) {
+        for (int i = PRIORITIES.length - 1; i >= priority.ordinal(); i--) {
+            if (!lanes[i].isEmpty()) {
+                droppedCounts[i].incrementAndGet();
+                return lanes[i];
+            }
+        }
+        return null;
+    }
+
+    private BufferedRecord toBufferedRecord(ProducerRecord<String, String> record) {
+        if (payloadPool != null && record.value() != null) {
+            PayloadPool.Payload payload = payloadPool.allocate(record.value().getBytes(StandardCharsets.UTF_8));
+            if (payload != null) {
+                return new BufferedRecord(record.topic(), record.key(), null, record.headers(), payload);
+            }
+        }
+        return new BufferedRecord(record.topic(), record.key(), record.value(), record.headers(), null);
+    }
+
+    /**
+     * Event leaving the buffer.
+     *
+     * @param record   record to send
+     * @param priority lane of the record
+     */
+    public record PendingEvent(ProducerRecord<String, String> record, EventPriority priority) {
+    }
+
+    /**
+     * Buffered event, whose value is either on the heap or in a pooled payload.
+     */
+    private record BufferedRecord(String topic, String key, String value, Headers headers, PayloadPool.Payload payload) {
+        ProducerRecord<String, String> toRecord() {
+            if (payload == null) {
+                return new ProducerRecord<>(topic, null, key, value, headers);
+            }
+            try {
+                return new ProducerRecord<>(topic, null, key, StandardCharsets.UTF_8.decode(payload.buffer()).toString(), headers);
+            } finally {
+                payload.release();
+            }
+        }
+
+        void release() {
+            if (payload != null) {
+                payload.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.jboss.logging.Logger;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logs at most one error per interval. Errors occurring in between are counted and the count is reported with the
+ * next logged error, so that an unavailable broker does not flood the log from every request thread.
+ * Only messages are logged: callers must not pass record payloads.
+ */
+public class RateLimitedLogger {
+    private final Logger logger;
+    private final long intervalMillis;
+
+    private final AtomicLong nextLogTime = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicLong suppressed = new AtomicLong(0L);
+
+    public RateLimitedLogger(Logger logger, long intervalMillis) {
+        this.logger = logger;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void errorf(Throwable cause, String format, Object... params) {
+        long now = timeGen();
+        long next = nextLogTime.get();
+        if (now < next || !nextLogTime.compareAndSet(next, now + intervalMillis)) {
+            suppressed.incrementAndGet();
+            return;
+        }
+        String message = String.format(format, params);
+        if (cause != null) {
+            message += ": " + cause;
+        }
+        long suppressedCount = suppressed.getAndSet(0L);
+        if (suppressedCount > 0) {
+            message += String.format(" (%d similar errors suppressed)", suppressedCount);
+        }
+        logger.error(message);
+    }
+
+    public long getSuppressedCount() {
+        return suppressed.get();
+    }
+
+    protected long timeGen() {
+        return System.currentTimeMillis();
+    }
+}
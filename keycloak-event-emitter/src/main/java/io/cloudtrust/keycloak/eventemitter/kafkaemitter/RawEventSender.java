@@ -0,0 +1,134 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.jboss.logging.Logger;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Sends the serialized events as raw bytes to topics of their own, for the consumers reading the FlatBuffers without
+ * Base64 decoding. The value serializer of the producer copies the value while send runs, so the serialization buffer
+ * can be reused as soon as send returns.
+ * Raw events are a best-effort copy of the events: they are neither buffered, spilled nor journaled, and are only sent
+ * while the event sender is working, so that request threads never wait for an unavailable broker. Raw events which
+ * can't be sent are lost and counted.
+ */
+public class RawEventSender {
+    private static final Logger logger = Logger.getLogger(RawEventSender.class);
+
+    private final Supplier<Producer<String, ByteBuffer>> producerFactory;
+    private final KafkaEventSender eventSender;
+    private final String eventTopic;
+    private final String adminEventTopic;
+    private final RateLimitedLogger errorLogger;
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong lostCount = new AtomicLong();
+    private volatile Producer<String, ByteBuffer> producer;
+    private volatile boolean closed;
+
+    /**
+     * @param eventSender     sender of the events, whose state tells whether Kafka is available
+     * @param eventTopic      topic of the raw events, null to not send the events as raw bytes
+     * @param adminEventTopic topic of the raw admin events, null to not send the admin events as raw bytes
+     */
+    public RawEventSender(Supplier<Producer<String, ByteBuffer>> producerFactory, KafkaEventSender eventSender,
+                          String eventTopic, String adminEventTopic, RateLimitedLogger errorLogger) {
+        this.producerFactory = producerFactory;
+        this.eventSender = eventSender;
+        this.eventTopic = eventTopic;
+        this.adminEventTopic = adminEventTopic;
+        this.errorLogger = errorLogger;
+    }
+
+    /**
+     * Creates the producer if it does not exist yet. Called on start, then periodically until the producer is created.
+     */
+    public void connect() {
+        if (producer != null || closed) {
+            return;
+        }
+        Producer<String, ByteBuffer> newProducer;
+        try {
+            newProducer = producerFactory.get();
+        } catch (KafkaException e) {
+            errorLogger.errorf(e, "Can't create the raw event producer");
+            return;
+        }
+        synchronized (this) {
+            if (!closed) {
+                producer = newProducer;
+                return;
+            }
+        }
+        newProducer.close(Duration.ZERO);
+    }
+
+    /**
+     * Hands the record to the producer, or counts it as lost if Kafka is not available.
+     */
+    public void send(ProducerRecord<String, ByteBuffer> record) {
+        Producer<String, ByteBuffer> currentProducer = producer;
+        if (currentProducer == null || !eventSender.getState().isWorking() || eventSender.isPaused()) {
+            lostCount.incrementAndGet();
+            return;
+        }
+        String topic = record.topic();
+        try {
+            currentProducer.send(record, (RecordMetadata recordMetadata, Exception e) -> {
+                if (e == null) {
+                    sentCount.incrementAndGet();
+                } else {
+                    lostCount.incrementAndGet();
+                    errorLogger.errorf(e, "Failed to send raw event to topic %s", topic);
+                }
+            });
+        } catch (KafkaException | IllegalStateException e) {
+            lostCount.incrementAndGet();
+            errorLogger.errorf(e, "Kafka producer rejected raw event to topic %s", topic);
+        }
+    }
+
+    /**
+     * Closes the producer, waiting for the in-flight records until the timeout.
+     */
+    public void close(Duration timeout) {
+        Producer<String, ByteBuffer> currentProducer;
+        synchronized (this) {
+            closed = true;
+            currentProducer = producer;
+            producer = null;
+        }
+        if (currentProducer != null) {
+            currentProducer.close(timeout);
+            logger.infof("Raw event producer closed: %d raw events sent, %d raw events lost", sentCount.get(), lostCount.get());
+        }
+    }
+
+    public String getEventTopic() {
+        return eventTopic;
+    }
+
+    public String getAdminEventTopic() {
+        return adminEventTopic;
+    }
+
+    /**
+     * @return the number of raw events acknowledged by Kafka
+     */
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * @return the number of raw events which could not be sent
+     */
+    public long getLostCount() {
+        return lostCount.get();
+    }
+}
@@ -0,0 +1,198 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate of the events of each realm with a token bucket, so that a noisy realm can't saturate the producer
+ * and the buffer shared by all the realms. Events over the limit are not emitted individually: they are counted per
+ * realm, type, client and error, and a summary event is emitted per combination when polled. A summary event has no
+ * user nor session; its details are the number of limited events and the times of the first and last ones.
+ * When the maximum number of summaries is reached, events which don't belong to one of them are dropped and counted.
+ */
+public class RealmRateLimiter {
+    public static final String RATE_LIMITED_DETAIL = "rateLimited";
+
+    private final Limit defaultLimit;
+    private final Map<String, Limit> realmLimits;
+    private final int maxSummaries;
+    private final Map<String, Bucket> buckets = new ConcurrentHashMap<>();
+    private final Map<SummaryKey, Summary> summaries = new ConcurrentHashMap<>();
+    private final AtomicLong droppedCount = new AtomicLong();
+
+    /**
+     * @param defaultLimit limit of the realms without a limit of their own, null for no limit
+     * @param realmLimits  limits per realm ID
+     * @param maxSummaries maximum number of summaries held until polled
+     */
+    public RealmRateLimiter(Limit defaultLimit, Map<String, Limit> realmLimits, int maxSummaries) {
+        this.defaultLimit = defaultLimit;
+        this.realmLimits = realmLimits;
+        this.maxSummaries = maxSummaries;
+    }
+
+    /**
+     * Takes a token from the bucket of the realm of the event, or adds the event to its summary.
+     *
+     * @return false if the event is over the limit and must not be emitted
+     */
+    public boolean tryAcquire(Event event) {
+        String realmId = event.getRealmId() != null ? event.getRealmId() : "";
+        Limit limit = realmLimits.getOrDefault(realmId, defaultLimit);
+        if (limit == null) {
+            return true;
+        }
+        Bucket bucket = buckets.computeIfAbsent(realmId, r -> new Bucket(limit, timeGen()));
+        if (bucket.tryAcquire(timeGen())) {
+            return true;
+        }
+        bucket.limitedCount.incrementAndGet();
+        SummaryKey key = new SummaryKey(event.getRealmId(), event.getType(), event.getClientId(), event.getError());
+        boolean[] added = {true};
+        summaries.compute(key, (k, summary) -> {
+            if (summary != null) {
+                summary.add(event);
+                return summary;
+            }
+            if (summaries.size() >= maxSummaries) {
+                added[0] = false;
+                return null;
+            }
+            return new Summary(event);
+        });
+        if (!added[0]) {
+            droppedCount.incrementAndGet();
+        }
+        return false;
+    }
+
+    /**
+     * Removes the summaries.
+     *
+     * @return one event per summary
+     */
+    public List<Event> poll() {
+        List<Event> events = new ArrayList<>();
+        summaries.forEach((key, summary) -> {
+            if (summaries.remove(key, summary)) {
+                events.add(summary.toEvent(key));
+            }
+        });
+        return events;
+    }
+
+    /**
+     * @return the number of events over the limit, per realm ID
+     */
+    public Map<String, Long> getLimitedCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        buckets.forEach((realmId, bucket) -> {
+            long count = bucket.limitedCount.get();
+            if (count > 0) {
+                counts.put(realmId, count);
+            }
+        });
+        return counts;
+    }
+
+    /**
+     * @return the number of events over the limit which were not summarized, the maximum number of summaries being
+     * reached
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public int getSummariesCount() {
+        return summaries.size();
+    }
+
+    protected long timeGen() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Rate limit of a realm.
+     *
+     * @param eventsPerSecond rate at which the bucket is refilled
+     * @param burst           capacity of the bucket, i.e. the number of events which can be emitted at once
+     */
+    public record Limit(double eventsPerSecond, int burst) {
+        public Limit {
+            if (eventsPerSecond <= 0 || burst < 1) {
+                throw new IllegalArgumentException("Rate and burst must be positive");
+            }
+        }
+    }
+
+    private static class Bucket {
+        private final Limit limit;
+        private final AtomicLong limitedCount = new AtomicLong();
+        private double tokens;
+        private long lastRefillTime;
+
+        Bucket(Limit limit, long now) {
+            this.limit = limit;
+            this.tokens = limit.burst();
+            this.lastRefillTime = now;
+        }
+
+        synchronized boolean tryAcquire(long now) {
+            if (now > lastRefillTime) {
+                tokens = Math.min(limit.burst(), tokens + (now - lastRefillTime) * limit.eventsPerSecond() / 1000d);
+                lastRefillTime = now;
+            }
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+
+    private record SummaryKey(String realmId, EventType type, String clientId, String error) {
+    }
+
+    /**
+     * Only mutated while holding the lock of its map entry.
+     */
+    private static class Summary {
+        private final long firstTime;
+        private long lastTime;
+        private int count = 1;
+
+        Summary(Event event) {
+            this.firstTime = event.getTime();
+            this.lastTime = event.getTime();
+        }
+
+        void add(Event event) {
+            count++;
+            lastTime = Math.max(lastTime, event.getTime());
+        }
+
+        Event toEvent(SummaryKey key) {
+            Event event = new Event();
+            event.setTime(firstTime);
+            event.setType(key.type());
+            event.setRealmId(key.realmId());
+            event.setClientId(key.clientId());
+            event.setError(key.error());
+            Map<String, String> details = new HashMap<>();
+            details.put(RATE_LIMITED_DETAIL, "true");
+            details.put(EventCoalescer.COUNT_DETAIL, Integer.toString(count));
+            details.put(EventCoalescer.FIRST_TIME_DETAIL, Long.toString(firstTime));
+            details.put(EventCoalescer.LAST_TIME_DETAIL, Long.toString(lastTime));
+            event.setDetails(details);
+            return event;
+        }
+    }
+}
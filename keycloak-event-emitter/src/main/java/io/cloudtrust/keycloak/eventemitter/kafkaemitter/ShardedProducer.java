@@ -0,0 +1,131 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import org.apache.kafka.clients.producer.Callback;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.PartitionInfo;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.IntFunction;
+
+/**
+ * Spreads the records over several producers, each one having its own accumulator, buffer memory and I/O thread, so
+ * that the throughput is not bound by a single I/O thread on nodes with many cores. Records are assigned to a producer
+ * either by key, which keeps the records of a key in order, or by thread, each thread always using the same producer.
+ * Records without key are assigned by thread.
+ */
+public class ShardedProducer implements EventProducer {
+    public enum Sharding {
+        KEY, THREAD
+    }
+
+    private static final AtomicInteger threadCounter = new AtomicInteger();
+    private static final ThreadLocal<Integer> threadIndex = ThreadLocal.withInitial(threadCounter::getAndIncrement);
+
+    private final List<Producer<String, String>> producers;
+    private final Sharding sharding;
+    private final AtomicLongArray sendCounts;
+
+    /**
+     * @param producerCount   number of producers
+     * @param sharding        assignment of the records to the producers
+     * @param producerFactory creates the producer of the given index, the producers created so far being closed if it
+     *                        fails
+     */
+    public ShardedProducer(int producerCount, Sharding sharding, IntFunction<Producer<String, String>> producerFactory) {
+        this.sharding = sharding;
+        this.producers = new ArrayList<>(producerCount);
+        this.sendCounts = new AtomicLongArray(producerCount);
+        try {
+            for (int i = 0; i < producerCount; i++) {
+                producers.add(producerFactory.apply(i));
+            }
+        } catch (KafkaException e) {
+            producers.forEach(p -> p.close(Duration.ZERO));
+            throw e;
+        }
+    }
+
+    @Override
+    public Future<RecordMetadata> send(ProducerRecord<String, String> record, Callback callback) {
+        int index = shardOf(record);
+        sendCounts.incrementAndGet(index);
+        return producers.get(index).send(record, callback);
+    }
+
+    @Override
+    public void flush() {
+        producers.forEach(Producer::flush);
+    }
+
+    /**
+     * All the producers share the same cluster metadata.
+     */
+    @Override
+    public List<PartitionInfo> partitionsFor(String topic) {
+        return producers.get(0).partitionsFor(topic);
+    }
+
+    /**
+     * @return the metrics of all the producers, told apart by their client-id tag
+     */
+    @Override
+    public Map<MetricName, ? extends Metric> metrics() {
+        Map<MetricName, Metric> metrics = new LinkedHashMap<>();
+        producers.forEach(p -> metrics.putAll(p.metrics()));
+        return metrics;
+    }
+
+    /**
+     * Closes the producers one after the other, within the timeout overall.
+     */
+    @Override
+    public void close(Duration timeout) {
+        long deadline = System.nanoTime() + Math.min(timeout.toNanos(), Long.MAX_VALUE / 2);
+        for (Producer<String, String> producer : producers) {
+            producer.close(Duration.ofNanos(Math.max(0L, deadline - System.nanoTime())));
+        }
+    }
+
+    public int getProducerCount() {
+        return producers.size();
+    }
+
+    public Sharding getSharding() {
+        return sharding;
+    }
+
+    /**
+     * @return the number of records sent through each producer
+     */
+    public long[] getSendCounts() {
+        long[] counts = new long[sendCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = sendCounts.get(i);
+        }
+        return counts;
+    }
+
+    private int shardOf(ProducerRecord<String, String> record) {
+        int hash;
+        if (sharding == Sharding.KEY && record.key() != null) {
+            hash = record.key().hashCode();
+            // Spreads the high bits, as HashMap does
+            hash ^= hash >>> 16;
+        } else {
+            hash = threadIndex.get();
+        }
+        return Math.floorMod(hash, producers.size());
+    }
+}
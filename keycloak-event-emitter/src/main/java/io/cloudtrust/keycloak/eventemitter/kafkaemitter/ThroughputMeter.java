@@ -0,0 +1,58 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts events in one-second slots over a sliding window, so that the recent throughput is read without keeping a
+ * timestamp per event. A slot is reset by the first event of its new second; an event recorded concurrently with the
+ * reset may be lost, which is acceptable for an indicator.
+ */
+public class ThroughputMeter {
+    private final int windowSeconds;
+    private final AtomicLongArray counts;
+    private final AtomicLongArray seconds;
+
+    /**
+     * @param windowSeconds number of complete seconds the rate is computed on
+     */
+    public ThroughputMeter(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+        // One more slot for the current second, which is not complete yet
+        this.counts = new AtomicLongArray(windowSeconds + 1);
+        this.seconds = new AtomicLongArray(windowSeconds + 1);
+    }
+
+    public void record() {
+        long second = currentSecond();
+        int slot = (int) (second % counts.length());
+        long slotSecond = seconds.get(slot);
+        if (slotSecond != second && seconds.compareAndSet(slot, slotSecond, second)) {
+            counts.set(slot, 0L);
+        }
+        counts.incrementAndGet(slot);
+    }
+
+    /**
+     * @return the number of events per second over the last complete seconds of the window
+     */
+    public double getRate() {
+        long second = currentSecond();
+        long total = 0L;
+        for (int slot = 0; slot < counts.length(); slot++) {
+            long slotSecond = seconds.get(slot);
+            if (slotSecond < second && slotSecond >= second - windowSeconds) {
+                total += counts.get(slot);
+            }
+        }
+        return (double) total / windowSeconds;
+    }
+
+    protected long timeGen() {
+        return System.currentTimeMillis();
+    }
+
+    private long currentSecond() {
+        return TimeUnit.MILLISECONDS.toSeconds(timeGen());
+    }
+}
@@ -0,0 +1,162 @@
+package io.cloudtrust.keycloak.eventemitter.kafkaemitter;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.cloudtrust.keycloak.eventemitter.CompleteEventUtils;
+import org.apache.kafka.clients.producer.Producer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.jboss.logging.Logger;
+import org.keycloak.events.Details;
+import org.keycloak.events.Event;
+import org.keycloak.events.EventType;
+import org.keycloak.events.admin.AdminEvent;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects the usernames of created, renamed and deleted users from the events seen by the emitter, and publishes them
+ * periodically to a compacted topic keyed by user ID. Consumers join events with this topic instead of relying on the
+ * emitter to look up usernames in the user store. Only the last change of a user is published; a deleted user is
+ * published as a tombstone (null value).
+ * User admin events only provide the username when the realm includes representations in admin events. The users
+ * which existed before the publication was enabled are published by {@link #bootstrap}.
+ */
+public class UsernameChangePublisher {
+    private static final Logger logger = Logger.getLogger(UsernameChangePublisher.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    // Keycloak usernames can't be empty
+    private static final String DELETED = "";
+    // Detail of the new username in UPDATE_PROFILE events, i.e. Details.PREF_UPDATED + "username"
+    static final String UPDATED_USERNAME = "updated_username";
+    private static final int BOOTSTRAP_PAGE_SIZE = 1000;
+    private static final Map<String, String> BOOTSTRAP_QUERY = Map.of(UserModel.INCLUDE_SERVICE_ACCOUNT, "true");
+
+    private final String topic;
+    private final Map<String, String> changes = new ConcurrentHashMap<>();
+
+    public UsernameChangePublisher(String topic) {
+        this.topic = topic;
+    }
+
+    /**
+     * @param session session of the event, only used to tell whether the email is the username on email updates
+     */
+    public void onEvent(Event event, KeycloakSession session) {
+        if (event.getUserId() == null || event.getDetails() == null) {
+            return;
+        }
+        String username = null;
+        if (event.getType() == EventType.REGISTER) {
+            username = event.getDetails().get(Details.USERNAME);
+        } else if (event.getType() == EventType.UPDATE_PROFILE || event.getType() == EventType.UPDATE_EMAIL) {
+            username = event.getDetails().get(UPDATED_USERNAME);
+            String email = event.getDetails().get(Details.UPDATED_EMAIL);
+            if (username == null && email != null && isEmailAsUsername(session, event.getRealmId())) {
+                // Usernames are stored lower case
+                username = email.toLowerCase(Locale.ROOT);
+            }
+        }
+        if (username != null) {
+            changes.put(event.getUserId(), username);
+        }
+    }
+
+    public void onEvent(AdminEvent adminEvent) {
+        if (adminEvent.getResourceType() != ResourceType.USER || adminEvent.getError() != null) {
+            return;
+        }
+        String userId = CompleteEventUtils.getTargetUserId(adminEvent.getResourcePath());
+        if (userId == null) {
+            return;
+        }
+        if (adminEvent.getOperationType() == OperationType.DELETE) {
+            changes.put(userId, DELETED);
+        } else if (adminEvent.getOperationType() == OperationType.CREATE || adminEvent.getOperationType() == OperationType.UPDATE) {
+            String username = getUsername(adminEvent.getRepresentation());
+            if (username != null) {
+                changes.put(userId, username);
+            }
+        }
+    }
+
+    /**
+     * Sends the changes collected since the last call.
+     *
+     * @param sender transport of the records
+     * @return the number of records sent
+     */
+    public int publish(KafkaEventSender sender) {
+        int count = 0;
+        for (String userId : changes.keySet()) {
+            String username = changes.remove(userId);
+            if (username != null) {
+                sender.send(new ProducerRecord<>(topic, userId, DELETED.equals(username) ? null : username));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Publishes the usernames of all the users of the realm, read page by page in transactions of their own, through
+     * the given producer.
+     *
+     * @return the number of records sent
+     */
+    public long bootstrap(KeycloakSessionFactory sessionFactory, String realmId, Producer<String, String> producer) {
+        long count = 0;
+        List<ProducerRecord<String, String>> page;
+        do {
+            long first = count;
+            page = KeycloakModelUtils.runJobInTransactionWithResult(sessionFactory, session -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                if (realm == null) {
+                    return List.of();
+                }
+                return session.users().searchForUserStream(realm, BOOTSTRAP_QUERY, (int) first, BOOTSTRAP_PAGE_SIZE)
+                        .map(user -> new ProducerRecord<>(topic, user.getId(), user.getUsername()))
+                        .toList();
+            });
+            page.forEach(producer::send);
+            count += page.size();
+        } while (page.size() == BOOTSTRAP_PAGE_SIZE);
+        producer.flush();
+        return count;
+    }
+
+    public int getPendingChangesCount() {
+        return changes.size();
+    }
+
+    private static boolean isEmailAsUsername(KeycloakSession session, String realmId) {
+        if (session == null || realmId == null) {
+            return false;
+        }
+        RealmModel realm = session.realms().getRealm(realmId);
+        return realm != null && realm.isRegistrationEmailAsUsername();
+    }
+
+    private String getUsername(String representation) {
+        if (representation == null) {
+            return null;
+        }
+        try {
+            JsonNode username = MAPPER.readTree(representation).get("username");
+            return username != null && username.isTextual() ? username.asText() : null;
+        } catch (JsonProcessingException e) {
+            logger.debugf("Can't parse user representation: %s", e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package io.cloudtrust.keycloak.eventemitter.snowflake;
+
+import java.time.Instant;
+
+/**
+ * Command line decoder of Snowflake IDs, e.g. to find which node generated a burst of events.
+ * Usage: {@code java -cp keycloak-event-emitter.jar io.cloudtrust.keycloak.eventemitter.snowflake.IdDecoder
+ * [--layout epoch/timestamp bits/datacenter ID bits/keycloak ID bits/sequence bits] id...}
+ * The layout is shown in the Server Info of Keycloak; the default one is used if omitted.
+ */
+public final class IdDecoder {
+    private IdDecoder() {
+    }
+
+    public static void main(String[] args) {
+        IdGeneratorConfig config = IdGeneratorConfig.DEFAULT;
+        int first = 0;
+        if (args.length >= 2 && args[0].equals("--layout")) {
+            config = IdGeneratorConfig.fromString(args[1]);
+            first = 2;
+        }
+        for (int i = first; i < args.length; i++) {
+            System.out.println(format(Long.parseLong(args[i]), config));
+        }
+    }
+
+    static String format(long id, IdGeneratorConfig config) {
+        IdGeneratorConfig.DecodedId decodedId = config.decode(id);
+        return String.format("%d: time=%s datacenterId=%d keycloakId=%d sequence=%d", id,
+                Instant.ofEpochMilli(decodedId.timestamp()), decodedId.datacenterId(), decodedId.keycloakId(),
+                decodedId.sequence());
+    }
+}
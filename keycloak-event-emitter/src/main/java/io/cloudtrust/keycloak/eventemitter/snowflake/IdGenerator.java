@@ -13,6 +13,7 @@ import static com.google.common.base.Preconditions.checkArgument;
 public class IdGenerator {
     private static final Logger logger = Logger.getLogger(IdGenerator.class);
 
+    private final IdGeneratorConfig config;
     private final int keycloakId;
     private final int datacenterId;
 
@@ -24,22 +25,31 @@ public class IdGenerator {
     }
 
     public IdGenerator(final int keycloakId, final int datacenterId, final long startSequence) {
+        this(IdGeneratorConfig.DEFAULT, keycloakId, datacenterId, startSequence);
+    }
+
+    public IdGenerator(final IdGeneratorConfig config, final int keycloakId, final int datacenterId) {
+        this(config, keycloakId, datacenterId, 0L);
+    }
+
+    public IdGenerator(final IdGeneratorConfig config, final int keycloakId, final int datacenterId, final long startSequence) {
         checkArgument(keycloakId >= 0, String.format("component Id can't be greater than %d or less than 0",
-                IdGeneratorConfig.MAX_KEYCLOAK_ID));
-        checkArgument(keycloakId <= IdGeneratorConfig.MAX_KEYCLOAK_ID, String.format("component Id can't be greater than %d "
-                + "or less than 0", IdGeneratorConfig.MAX_KEYCLOAK_ID));
+                config.getMaxKeycloakId()));
+        checkArgument(keycloakId <= config.getMaxKeycloakId(), String.format("component Id can't be greater than %d "
+                + "or less than 0", config.getMaxKeycloakId()));
 
         checkArgument(datacenterId >= 0, String.format("Datacenter ID can't be greater than %d or less than 0",
-                IdGeneratorConfig.MAX_DATACENTER_ID));
-        checkArgument(datacenterId <= IdGeneratorConfig.MAX_DATACENTER_ID, String.format("Datacenter ID can't be greater than %d or "
-                + "less than 0", IdGeneratorConfig.MAX_DATACENTER_ID));
+                config.getMaxDatacenterId()));
+        checkArgument(datacenterId <= config.getMaxDatacenterId(), String.format("Datacenter ID can't be greater than %d or "
+                + "less than 0", config.getMaxDatacenterId()));
 
+        this.config = config;
         this.keycloakId = keycloakId;
         this.datacenterId = datacenterId;
 
-        logger.infof("IdGenerator general settings: timestamp left shift = %d, datacenter ID bits = %d, "
-                        + "keycloak ID bits = %d, sequence bits = %d", IdGeneratorConfig.TIMESTAMP_LEFT_SHIFT, IdGeneratorConfig.DATACENTER_ID_BITS,
-                IdGeneratorConfig.KEYCLOAK_ID_BITS, IdGeneratorConfig.SEQUENCE_BITS);
+        logger.infof("IdGenerator general settings: epoch = %d, timestamp left shift = %d, datacenter ID bits = %d, "
+                        + "keycloak ID bits = %d, sequence bits = %d", config.getEpoch(), config.getTimestampLeftShift(),
+                config.getDatacenterIdBits(), config.getKeycloakIdBits(), config.getSequenceBits());
         logger.infof("IdGenerator instance settings: datacenter ID = %d, keycloak ID = %d", datacenterId, keycloakId);
         sequence = new AtomicLong(startSequence);
     }
@@ -63,7 +73,7 @@ public class IdGenerator {
         }
 
         if (prevTimestamp == timestamp) {
-            curSequence = sequence.incrementAndGet() & IdGeneratorConfig.SEQUENCE_MASK;
+            curSequence = sequence.incrementAndGet() & config.getSequenceMask();
             if (curSequence == 0) {
                 timestamp = tilNextMillis(prevTimestamp);
             }
@@ -73,9 +83,7 @@ public class IdGenerator {
         }
 
         lastTimestamp.set(timestamp);
-        final long id = ((timestamp - IdGeneratorConfig.START_EPOCH) << IdGeneratorConfig.TIMESTAMP_LEFT_SHIFT)
-                | (datacenterId << IdGeneratorConfig.DATACENTER_ID_SHIFT)
-                | (keycloakId << IdGeneratorConfig.KEYCLOAK_ID_SHIFT) | curSequence;
+        final long id = compose(timestamp, curSequence);
 
         logger.debugf(
                 "prevTimestamp = %d, timestamp = %d, sequence = %d, id = %d",
@@ -96,6 +104,57 @@ public class IdGenerator {
         return id;
     }
 
+    /**
+     * Reserve consecutive IDs, sharing the same timestamp. If the sequence of the current millisecond can't hold them
+     * all, they are taken from the next millisecond.
+     *
+     * @param count number of IDs, at most the size of the sequence
+     * @return Reserved IDs
+     * @throws InvalidSystemClock When the clock is moving backward
+     */
+    public synchronized IdRange reserve(final int count) throws InvalidSystemClock {
+        checkArgument(count > 0 && count <= config.getSequenceMask() + 1, String.format("Can't reserve less than 1 or "
+                + "more than %d IDs", config.getSequenceMask() + 1));
+        long timestamp = timeGen();
+        final long prevTimestamp = lastTimestamp.get();
+
+        if (timestamp < prevTimestamp) {
+            logger.errorf("clock is moving backwards. Rejecting requests until %d", prevTimestamp);
+            throw new InvalidSystemClock(String.format("Clock moved backwards. Refusing to generate id "
+                    + "for %d milliseconds", prevTimestamp - timestamp));
+        }
+
+        long firstSequence = 0L;
+        if (prevTimestamp == timestamp) {
+            firstSequence = (sequence.get() & config.getSequenceMask()) + 1;
+            if (firstSequence + count - 1 > config.getSequenceMask()) {
+                timestamp = tilNextMillis(prevTimestamp);
+                firstSequence = 0L;
+            }
+        }
+        sequence.set(firstSequence + count - 1);
+        lastTimestamp.set(timestamp);
+        return new IdRange(compose(timestamp, firstSequence), count);
+    }
+
+    public IdRange reserveValid(final int count) {
+        IdRange range = null;
+        do {
+            try {
+                range = reserve(count);
+            } catch (InvalidSystemClock invalidSystemClock) {
+                logger.infof("InvalidSystemClock: %s", invalidSystemClock);
+            }
+        } while (range == null);
+        return range;
+    }
+
+    private long compose(final long timestamp, final long curSequence) {
+        return ((timestamp - config.getEpoch()) << config.getTimestampLeftShift())
+                | ((long) datacenterId << config.getDatacenterIdShift())
+                | ((long) keycloakId << config.getKeycloakIdShift()) | curSequence;
+    }
+
     /**
      * Return the next time in milliseconds
      *
@@ -119,15 +178,28 @@ public class IdGenerator {
         return sequence;
     }
 
+    public IdGeneratorConfig getConfig() {
+        return config;
+    }
+
+    public int getKeycloakId() {
+        return keycloakId;
+    }
+
+    public int getDatacenterId() {
+        return datacenterId;
+    }
+
     @Override
     public String toString() {
         return new ToStringBuilder(this)
                 .append("componentId", keycloakId)
                 .append("datacenterId", datacenterId)
-                .append("timestamp left shift", IdGeneratorConfig.TIMESTAMP_LEFT_SHIFT)
-                .append("datacenter ID bits", IdGeneratorConfig.DATACENTER_ID_BITS)
-                .append("component ID bits", IdGeneratorConfig.KEYCLOAK_ID_BITS)
-                .append("sequence bits", IdGeneratorConfig.SEQUENCE_BITS)
+                .append("epoch", config.getEpoch())
+                .append("timestamp left shift", config.getTimestampLeftShift())
+                .append("datacenter ID bits", config.getDatacenterIdBits())
+                .append("component ID bits", config.getKeycloakIdBits())
+                .append("sequence bits", config.getSequenceBits())
                 .toString();
     }
 }
@@ -1,7 +1,12 @@
 package io.cloudtrust.keycloak.eventemitter.snowflake;
 
 
+import static com.google.common.base.Preconditions.checkArgument;
+
 /**
+ * Bit layout of the Snowflake IDs: from the most significant bits, the timestamp since the epoch, the datacenter ID,
+ * the keycloak ID and the sequence within the millisecond. The static constants describe the default layout.
+ *
  * @author Sébastien Pasche
  */
 
@@ -24,6 +29,138 @@ public final class IdGeneratorConfig {
     public static final long TIMESTAMP_LEFT_SHIFT = SEQUENCE_BITS + KEYCLOAK_ID_BITS + DATACENTER_ID_BITS;
     public static final long SEQUENCE_MASK = -1L ^ (-1L << SEQUENCE_BITS);
 
-    private IdGeneratorConfig() {
+    /**
+     * Minimum number of timestamp bits, i.e. about 17 years of IDs.
+     */
+    public static final int MIN_TIMESTAMP_BITS = 39;
+
+    public static final IdGeneratorConfig DEFAULT = new IdGeneratorConfig(START_EPOCH, (int) DATACENTER_ID_BITS,
+            (int) KEYCLOAK_ID_BITS, (int) SEQUENCE_BITS);
+
+    private final long epoch;
+    private final int datacenterIdBits;
+    private final int keycloakIdBits;
+    private final int sequenceBits;
+
+    /**
+     * @param epoch            start of the timestamps, in milliseconds since 1970
+     * @param datacenterIdBits number of bits of the datacenter ID
+     * @param keycloakIdBits   number of bits of the keycloak ID
+     * @param sequenceBits     number of bits of the sequence, i.e. log2 of the number of IDs per millisecond and node
+     */
+    public IdGeneratorConfig(long epoch, int datacenterIdBits, int keycloakIdBits, int sequenceBits) {
+        checkArgument(epoch >= 0, "Epoch can't be negative");
+        checkArgument(datacenterIdBits >= 0, "Datacenter ID bits can't be negative");
+        checkArgument(keycloakIdBits >= 0, "Keycloak ID bits can't be negative");
+        checkArgument(sequenceBits > 0, "Sequence bits must be positive");
+        checkArgument(Long.SIZE - 1 - datacenterIdBits - keycloakIdBits - sequenceBits >= MIN_TIMESTAMP_BITS,
+                String.format("Datacenter ID, keycloak ID and sequence bits can't exceed %d in total",
+                        Long.SIZE - 1 - MIN_TIMESTAMP_BITS));
+        this.epoch = epoch;
+        this.datacenterIdBits = datacenterIdBits;
+        this.keycloakIdBits = keycloakIdBits;
+        this.sequenceBits = sequenceBits;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public int getDatacenterIdBits() {
+        return datacenterIdBits;
+    }
+
+    public int getKeycloakIdBits() {
+        return keycloakIdBits;
+    }
+
+    public int getSequenceBits() {
+        return sequenceBits;
+    }
+
+    public int getTimestampBits() {
+        return Long.SIZE - 1 - getTimestampLeftShift();
+    }
+
+    public long getMaxDatacenterId() {
+        return -1L ^ (-1L << datacenterIdBits);
+    }
+
+    public long getMaxKeycloakId() {
+        return -1L ^ (-1L << keycloakIdBits);
+    }
+
+    public long getSequenceMask() {
+        return -1L ^ (-1L << sequenceBits);
+    }
+
+    public int getKeycloakIdShift() {
+        return sequenceBits;
+    }
+
+    public int getDatacenterIdShift() {
+        return sequenceBits + keycloakIdBits;
+    }
+
+    public int getTimestampLeftShift() {
+        return sequenceBits + keycloakIdBits + datacenterIdBits;
+    }
+
+    /**
+     * @return the last millisecond since 1970 for which IDs can be generated
+     */
+    public long getEndOfTime() {
+        return epoch + (-1L ^ (-1L << getTimestampBits()));
+    }
+
+    /**
+     * Splits an ID generated with this layout.
+     */
+    public DecodedId decode(long id) {
+        return new DecodedId((id >>> getTimestampLeftShift()) + epoch,
+                (int) ((id >>> getDatacenterIdShift()) & getMaxDatacenterId()),
+                (int) ((id >>> getKeycloakIdShift()) & getMaxKeycloakId()),
+                id & getSequenceMask());
+    }
+
+    /**
+     * @param timestamp milliseconds since 1970, bounded by the epoch and the end of time
+     * @return the smallest ID which can be generated at the given millisecond, whatever the node
+     */
+    public long firstId(long timestamp) {
+        return (Math.min(Math.max(timestamp, epoch), getEndOfTime()) - epoch) << getTimestampLeftShift();
+    }
+
+    /**
+     * @return the layout as "epoch/timestamp bits/datacenter ID bits/keycloak ID bits/sequence bits"
+     */
+    @Override
+    public String toString() {
+        return epoch + "/" + getTimestampBits() + "/" + datacenterIdBits + "/" + keycloakIdBits + "/" + sequenceBits;
+    }
+
+    /**
+     * Parses a layout formatted by {@link #toString()}.
+     *
+     * @throws IllegalArgumentException if the layout is invalid
+     */
+    public static IdGeneratorConfig fromString(String layout) {
+        String[] parts = layout.split("/");
+        checkArgument(parts.length == 5, "Layout must be epoch/timestamp bits/datacenter ID bits/keycloak ID bits/sequence bits");
+        IdGeneratorConfig config = new IdGeneratorConfig(Long.parseLong(parts[0]), Integer.parseInt(parts[2]),
+                Integer.parseInt(parts[3]), Integer.parseInt(parts[4]));
+        checkArgument(config.getTimestampBits() == Integer.parseInt(parts[1]), "Inconsistent number of timestamp bits");
+        return config;
+    }
+
+    /**
+     * Parts of a Snowflake ID.
+     *
+     * @param timestamp    generation time, in milliseconds since 1970
+     * @param datacenterId datacenter ID of the generator
+     * @param keycloakId   keycloak ID of the generator
+     * @param sequence     rank of the ID among the ones generated by the generator during the millisecond
+     */
+    public record DecodedId(long timestamp, int datacenterId, int keycloakId, long sequence) {
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,21 @@
+package io.cloudtrust.keycloak.eventemitter.snowflake;
+
+/**
+ * Consecutive IDs reserved at once. As the sequence is the least significant part of the IDs, the IDs of a range
+ * are consecutive numbers.
+ *
+ * @param firstId first ID of the range
+ * @param count   number of IDs
+ */
+public record IdRange(long firstId, int count) {
+    /**
+     * @param index rank of the ID in the range
+     * @return the ID
+     */
+    public long get(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of range of " + count + " IDs");
+        }
+        return firstId + index;
+    }
+}
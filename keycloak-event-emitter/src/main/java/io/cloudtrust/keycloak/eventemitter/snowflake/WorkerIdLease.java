@@ -0,0 +1,162 @@
+package io.cloudtrust.keycloak.eventemitter.snowflake;
+
+import org.jboss.logging.Logger;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.util.Map;
+import java.util.UUID;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Lease of a Snowflake worker ID (pair of datacenter ID and keycloak ID) in the single-use object store, which is
+ * replicated across the Keycloak cluster. Each worker ID is a store entry expiring after the lease duration, owned
+ * by the node which created it; the owner renews it periodically.
+ * <p>
+ * The store can't create an entry with notes atomically: the entry is claimed with putIfAbsent, then the winner writes
+ * its owner note. An entry without owner note has just been claimed by some node, so it is never taken as one's own.
+ * Nor can the store compare and set an entry: a renewal reading its own entry then overwriting it could overwrite the
+ * claim of another node if the entry expired in between. The entry is thus only overwritten while it can't have
+ * expired, i.e. within two thirds of the lease since it was last written, the last third covering the clock skew and
+ * the replication delay of the store; a later renewal gives the lease up.
+ */
+public class WorkerIdLease {
+    private static final Logger logger = Logger.getLogger(WorkerIdLease.class);
+
+    static final String KEY_PREFIX = "kafka-event-emitter-worker-";
+    static final String OWNER_NOTE = "owner";
+
+    private final int keycloakIdCount;
+    private final int workerIdCount;
+    private final long leaseSeconds;
+    private final String owner = UUID.randomUUID().toString();
+
+    private volatile int workerId = -1;
+    // Time after which the entry may have expired, in milliseconds
+    private volatile long renewalDeadline;
+
+    /**
+     * @param keycloakIdCount   number of keycloak IDs per datacenter
+     * @param datacenterIdCount number of datacenter IDs
+     * @param leaseSeconds      duration of the lease
+     */
+    public WorkerIdLease(int keycloakIdCount, int datacenterIdCount, long leaseSeconds) {
+        checkArgument(leaseSeconds > 0, "Lease duration must be positive");
+        this.keycloakIdCount = keycloakIdCount;
+        this.workerIdCount = keycloakIdCount * datacenterIdCount;
+        this.leaseSeconds = leaseSeconds;
+    }
+
+    /**
+     * Leases the first free worker ID. Nodes start looking at different worker IDs to limit the contention.
+     *
+     * @param store cluster-wide store
+     * @return true if a worker ID has been leased
+     */
+    public boolean acquire(SingleUseObjectProvider store) {
+        int start = Math.floorMod(owner.hashCode(), workerIdCount);
+        for (int i = 0; i < workerIdCount; i++) {
+            int candidate = (start + i) % workerIdCount;
+            if (claim(store, getKey(candidate))) {
+                workerId = candidate;
+                logger.infof("Snowflake worker ID %d leased for %d s", candidate, leaseSeconds);
+                return true;
+            }
+        }
+        logger.infof("No free Snowflake worker ID among %d", workerIdCount);
+        return false;
+    }
+
+    /**
+     * Extends the lease. Fails if the lease expired and the worker ID has been leased by another node meanwhile, or if
+     * the renewal is too late to be done safely.
+     *
+     * @param store cluster-wide store
+     * @return false if the lease has been lost
+     */
+    public boolean renew(SingleUseObjectProvider store) {
+        int currentWorkerId = workerId;
+        if (currentWorkerId < 0) {
+            return false;
+        }
+        String key = getKey(currentWorkerId);
+        Map<String, String> notes = store.get(key);
+        if (notes == null) {
+            // Expired: claimed again unless another node did it first
+            return claim(store, key) || lost(currentWorkerId);
+        }
+        if (!owner.equals(notes.get(OWNER_NOTE))) {
+            return lost(currentWorkerId);
+        }
+        long now = timeGen();
+        if (now >= renewalDeadline) {
+            // The entry may expire and be claimed by another node before being overwritten
+            logger.infof("Lease of Snowflake worker ID %d not renewed in time", currentWorkerId);
+            return lost(currentWorkerId);
+        }
+        store.put(key, leaseSeconds, Map.of(OWNER_NOTE, owner));
+        renewalDeadline = now + leaseSeconds * 2000L / 3;
+        notes = store.get(key);
+        return notes != null && owner.equals(notes.get(OWNER_NOTE)) || lost(currentWorkerId);
+    }
+
+    /**
+     * Frees the worker ID for the other nodes.
+     *
+     * @param store cluster-wide store
+     */
+    public void release(SingleUseObjectProvider store) {
+        int currentWorkerId = workerId;
+        if (currentWorkerId < 0) {
+            return;
+        }
+        workerId = -1;
+        Map<String, String> notes = store.get(getKey(currentWorkerId));
+        if (notes != null && owner.equals(notes.get(OWNER_NOTE))) {
+            store.remove(getKey(currentWorkerId));
+        }
+    }
+
+    public boolean isLeased() {
+        return workerId >= 0;
+    }
+
+    public int getKeycloakId() {
+        return workerId % keycloakIdCount;
+    }
+
+    public int getDatacenterId() {
+        return workerId / keycloakIdCount;
+    }
+
+    public long getLeaseSeconds() {
+        return leaseSeconds;
+    }
+
+    protected long timeGen() {
+        return System.currentTimeMillis();
+    }
+
+    /**
+     * Only the node whose putIfAbsent succeeded writes the owner note.
+     */
+    private boolean claim(SingleUseObjectProvider store, String key) {
+        long now = timeGen();
+        if (!store.putIfAbsent(key, leaseSeconds)) {
+            return false;
+        }
+        store.put(key, leaseSeconds, Map.of(OWNER_NOTE, owner));
+        renewalDeadline = now + leaseSeconds * 2000L / 3;
+        return true;
+    }
+
+    private boolean lost(int lostWorkerId) {
+        workerId = -1;
+        logger.infof("Lease of Snowflake worker ID %d lost", lostWorkerId);
+        return false;
+    }
+
+    private static String getKey(int workerId) {
+        return KEY_PREFIX + workerId;
+    }
+}
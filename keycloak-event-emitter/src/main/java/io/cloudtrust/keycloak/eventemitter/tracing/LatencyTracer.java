@@ -0,0 +1,86 @@
+package io.cloudtrust.keycloak.eventemitter.tracing;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the duration of each stage of the emission of events. The timestamp of the last stage is kept in a
+ * thread local record, allocated on the first stage of each thread: request threads are pooled, so they don't allocate
+ * once warm, whereas the virtual threads of the asynchronous enrichment run a single task each and allocate it for
+ * every event.
+ * A stage started on a thread must be marked on the same thread.
+ */
+public class LatencyTracer implements LatencyTracerMXBean {
+    private static final double[] PERCENTILES = {50.0, 90.0, 99.0, 99.9};
+    private static final String[] PERCENTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+    private final ThreadLocal<long[]> lastTimestamp = ThreadLocal.withInitial(() -> new long[1]);
+
+    public LatencyTracer() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Starts timing the next stage on the current thread.
+     */
+    public void begin() {
+        lastTimestamp.get()[0] = System.nanoTime();
+    }
+
+    /**
+     * Records the duration of the given stage, since the previous mark or begin on the current thread, and starts
+     * timing the next stage.
+     */
+    public void mark(Stage stage) {
+        long[] timestamp = lastTimestamp.get();
+        long now = System.nanoTime();
+        histograms[stage.ordinal()].record(now - timestamp[0]);
+        timestamp[0] = now;
+    }
+
+    public LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * @return a one-line summary of the latencies of the stage, in microseconds
+     */
+    public String getSummary(Stage stage) {
+        LatencyHistogram histogram = getHistogram(stage);
+        StringBuilder summary = new StringBuilder("count=").append(histogram.getCount());
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            summary.append(", ").append(PERCENTILE_NAMES[i]).append('=')
+                    .append(toMicros(histogram.getValueAtPercentile(PERCENTILES[i])));
+        }
+        return summary.append(", max=").append(toMicros(histogram.getMax())).toString();
+    }
+
+    @Override
+    public Map<String, Long> getLatencies() {
+        Map<String, Long> latencies = new LinkedHashMap<>();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = getHistogram(stage);
+            latencies.put(stage + ".count", histogram.getCount());
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                latencies.put(stage + "." + PERCENTILE_NAMES[i], toMicros(histogram.getValueAtPercentile(PERCENTILES[i])));
+            }
+            latencies.put(stage + ".max", toMicros(histogram.getMax()));
+        }
+        return latencies;
+    }
+
+    @Override
+    public void reset() {
+        for (LatencyHistogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+}
@@ -0,0 +1,12 @@
+package io.cloudtrust.keycloak.eventemitter.tracing;
+
+import java.util.Map;
+
+/**
+ * JMX view of the latency tracer. Latencies are in microseconds, keyed by stage then statistic (e.g. SEND.p99).
+ */
+public interface LatencyTracerMXBean {
+    Map<String, Long> getLatencies();
+
+    void reset();
+}
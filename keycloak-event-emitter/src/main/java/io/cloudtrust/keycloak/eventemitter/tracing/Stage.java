@@ -0,0 +1,15 @@
+package io.cloudtrust.keycloak.eventemitter.tracing;
+
+/**
+ * Stages of the emission of an event, in processing order.
+ */
+public enum Stage {
+    ENRICHMENT,
+    ID_GENERATION,
+    SERIALIZATION,
+    // Only when the events are journaled
+    JOURNAL,
+    // Priority, headers and Base64 encoding of the record
+    ENCODING,
+    SEND
+}